@@ -0,0 +1,83 @@
+package ws.temple.markov.benchmarks;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import ws.temple.markov.AbstractMarkovChain;
+import ws.temple.markov.MarkovChain;
+import ws.temple.markov.VariableOrderMarkovChain;
+import ws.temple.markov.feeders.NameFeeder;
+
+/**
+ * Compares the estimated heap space of a VariableOrderMarkovChain with that
+ * of a single MarkovChain of its highest order, and of separate chains for
+ * every order up to it, all trained on the same synthetic corpus. Space
+ * doesn't suit JMH, so this is run from the command line instead:
+ * 
+ * <pre>
+ * java -cp benchmarks.jar ws.temple.markov.benchmarks.ChainFootprint 200000 26 5
+ * </pre>
+ * 
+ * @author Brian Dixon
+ */
+public final class ChainFootprint {
+	
+	private ChainFootprint() {
+	}
+	
+	/**
+	 * Prints the estimates. Arguments are optionally the number of pairs in
+	 * the corpus (200000), the alphabet size (26) and the highest order (5).
+	 * 
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		final int pairs = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		final int alphabet = args.length > 1 ? Integer.parseInt(args[1]) : 26;
+		final int order = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		final String corpus = new SyntheticCorpus(42, alphabet).names(pairs);
+		
+		final long single = train(new MarkovChain<>(order), corpus).getStats().getEstimatedBytes();
+		long separate = 0;
+		for(int i = 1; i <= order; i++)
+			separate += train(new MarkovChain<>(i), corpus).getStats().getEstimatedBytes();
+		final long variable = train(new VariableOrderMarkovChain<>(order), corpus).getStats().getEstimatedBytes();
+		
+		System.out.printf("%-36s %,14d bytes%n", "order-" + order + " MarkovChain", single);
+		System.out.printf("%-36s %,14d bytes (%.2fx)%n", "orders 1-" + order + " as separate chains", separate, (double) separate / single);
+		System.out.printf("%-36s %,14d bytes (%.2fx)%n", "order-" + order + " VariableOrderMarkovChain", variable, (double) variable / single);
+	}
+	
+	private static <C extends AbstractMarkovChain<Character>> C train(C chain, String corpus) throws IOException {
+		new NameFeeder(chain).feed(new ByteArrayInputStream(corpus.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+		return chain;
+	}
+	
+}
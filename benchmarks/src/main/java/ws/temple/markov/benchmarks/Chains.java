@@ -0,0 +1,145 @@
+package ws.temple.markov.benchmarks;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ws.temple.markov.AbstractMarkovChain;
+import ws.temple.markov.ChainFile;
+import ws.temple.markov.CharMarkovChain;
+import ws.temple.markov.LiveMarkovChain;
+import ws.temple.markov.MarkovChain;
+import ws.temple.markov.Predictor;
+import ws.temple.markov.TokenCodec;
+import ws.temple.markov.feeders.NameFeeder;
+
+/**
+ * Builds the chains and inputs the benchmarks share.
+ * 
+ * @author Brian Dixon
+ */
+final class Chains {
+	
+	/* Every kind of chain the benchmarks know how to build */
+	static final String MARKOV = "markov";
+	static final String LIVE = "live";
+	static final String FROZEN = "frozen";
+	static final String CHAR = "char";
+	static final String MAPPED = "mapped";
+	
+	private Chains() {
+	}
+	
+	/**
+	 * Trains a chain of the specified kind on a newline-separated corpus.
+	 * Mapped chains are written to a temporary file, which is deleted when
+	 * the JVM exits.
+	 * 
+	 * @param kind
+	 * @param predictorLength
+	 * @param corpus
+	 * @return
+	 * @throws IOException
+	 */
+	static AbstractMarkovChain<Character> build(String kind, int predictorLength, String corpus) throws IOException {
+		final AbstractMarkovChain<Character> chain;
+		switch(kind) {
+		case MARKOV:
+		case FROZEN:
+		case MAPPED:
+			chain = new MarkovChain<>(predictorLength);
+			break;
+		case LIVE:
+			chain = new LiveMarkovChain<>(predictorLength);
+			break;
+		case CHAR:
+			chain = new CharMarkovChain(predictorLength);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown chain kind: " + kind);
+		}
+		new NameFeeder(chain).feed(new ByteArrayInputStream(corpus.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+		
+		if(kind.equals(FROZEN))
+			return ((MarkovChain<Character>) chain).freeze();
+		if(kind.equals(MAPPED)) {
+			final Path file = Files.createTempFile("markovelli-bench", ".chain");
+			file.toFile().deleteOnExit();
+			((MarkovChain<Character>) chain).write(file, TokenCodec.CHARACTER);
+			return ChainFile.map(file, TokenCodec.CHARACTER);
+		}
+		return chain;
+	}
+	
+	/**
+	 * Returns every Predictor/token pair in a corpus, in the order a feeder
+	 * would register them, with a null token for the end of each name.
+	 * 
+	 * @param corpus
+	 * @param predictorLength
+	 * @param predictors
+	 * @param tokens
+	 */
+	static void pairs(String corpus, int predictorLength, List<Predictor<Character>> predictors, List<Character> tokens) {
+		final Character[] context = new Character[predictorLength];
+		for(int i = 0; i < corpus.length(); i++) {
+			final char c = corpus.charAt(i);
+			final Character next = c == '\n' ? null : c;
+			predictors.add(new Predictor<>(context));
+			tokens.add(next);
+			
+			if(next == null)
+				Arrays.fill(context, null);
+			else if(predictorLength > 0) {
+				System.arraycopy(context, 1, context, 0, predictorLength - 1);
+				context[predictorLength - 1] = next;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the tokens of a corpus, with null for the end of each name.
+	 * 
+	 * @param corpus
+	 * @return
+	 */
+	static Character[] tokens(String corpus) {
+		final List<Character> tokens = new ArrayList<>(corpus.length());
+		for(int i = 0; i < corpus.length(); i++) {
+			final char c = corpus.charAt(i);
+			tokens.add(c == '\n' ? null : c);
+		}
+		return tokens.toArray(new Character[0]);
+	}
+	
+}
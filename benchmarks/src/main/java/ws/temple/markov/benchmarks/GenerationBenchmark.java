@@ -0,0 +1,133 @@
+package ws.temple.markov.benchmarks;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ws.temple.markov.AbstractMarkovChain;
+
+/**
+ * End-to-end generation from a chain trained on a synthetic name list.
+ * 
+ * The perToken benchmarks generate exactly {@link #TOKENS} tokens per
+ * invocation, however many sequences that takes, so their scores are per
+ * token. Run them with the GC profiler to see what each token allocates:
+ * 
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar GenerationBenchmark -prof gc
+ * </pre>
+ * 
+ * and read gc.alloc.rate.norm, which is then in bytes per token. The
+ * generateString benchmarks are per name.
+ * 
+ * @author Brian Dixon
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GenerationBenchmark {
+	
+	static final int TOKENS = 10000;
+	
+	private static final int CORPUS_PAIRS = 200000;
+	
+	private static final int MAX_LENGTH = 16;
+	
+	@Param({"2", "4"})
+	public int predictorLength;
+	
+	@Param({Chains.MARKOV, Chains.LIVE, Chains.FROZEN, Chains.CHAR, Chains.MAPPED})
+	public String chain;
+	
+	private AbstractMarkovChain<Character> markov;
+	private SplittableRandom rng;
+	private Character[] buffer;
+	private StringBuilder sb;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		markov = Chains.build(chain, predictorLength, new SyntheticCorpus(42, 26).names(CORPUS_PAIRS));
+		rng = new SplittableRandom(42);
+		buffer = new Character[MAX_LENGTH];
+		sb = new StringBuilder();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(TOKENS)
+	public int perTokenSequence() {
+		int total = 0;
+		while(total < TOKENS)
+			total += markov.generateSequence(buffer, 0, Math.min(MAX_LENGTH, TOKENS - total), rng);
+		return total;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(TOKENS)
+	public int perTokenString() {
+		int total = 0;
+		while(total < TOKENS) {
+			sb.setLength(0);
+			try {
+				total += markov.generateString(Math.min(MAX_LENGTH, TOKENS - total), null, (Appendable) sb, rng);
+			}
+			catch(IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return total;
+	}
+	
+	@Benchmark
+	public String generateString() {
+		return markov.generateString(MAX_LENGTH, null, rng);
+	}
+	
+	@Benchmark
+	public StringBuilder generateStringReused() {
+		sb.setLength(0);
+		return markov.generateString(MAX_LENGTH, null, sb, rng);
+	}
+	
+}
@@ -0,0 +1,105 @@
+package ws.temple.markov.benchmarks;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ws.temple.markov.AbstractMarkovChain;
+import ws.temple.markov.Predictor;
+
+/**
+ * The latency of picking a single token with next(Predictor), for each kind
+ * of chain, across Predictor lengths and fanouts. The Predictors are drawn
+ * from the training corpus and visited in a shuffled order, so each call
+ * lands on a different distribution, as it would while generating.
+ * 
+ * @author Brian Dixon
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SamplingBenchmark {
+	
+	private static final int CORPUS_PAIRS = 200000;
+	
+	/* A power of two, so the next Predictor can be picked with a mask */
+	private static final int PREDICTORS = 4096;
+	
+	@Param({"1", "3", "5"})
+	public int predictorLength;
+	
+	@Param({"4", "26", "256"})
+	public int fanout;
+	
+	@Param({Chains.MARKOV, Chains.LIVE, Chains.FROZEN, Chains.CHAR, Chains.MAPPED})
+	public String chain;
+	
+	private AbstractMarkovChain<Character> markov;
+	private Predictor<Character>[] predictors;
+	private SplittableRandom rng;
+	private int position;
+	
+	@SuppressWarnings("unchecked")
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		final String corpus = new SyntheticCorpus(42, fanout).names(CORPUS_PAIRS);
+		markov = Chains.build(chain, predictorLength, corpus);
+		
+		final List<Predictor<Character>> all = new ArrayList<>(CORPUS_PAIRS);
+		Chains.pairs(corpus, predictorLength, all, new ArrayList<>(CORPUS_PAIRS));
+		Collections.shuffle(all, new Random(42));
+		predictors = all.subList(0, PREDICTORS).toArray(new Predictor[0]);
+		rng = new SplittableRandom(42);
+	}
+	
+	@Benchmark
+	public Character next() {
+		return markov.next(predictors[position++ & (PREDICTORS - 1)], rng);
+	}
+	
+}
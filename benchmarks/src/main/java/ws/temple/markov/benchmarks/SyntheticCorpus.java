@@ -0,0 +1,198 @@
+package ws.temple.markov.benchmarks;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+
+/**
+ * Generates a newline-separated list of made-up names, the same every time
+ * for a given seed, so benchmarks don't depend on any downloaded corpus.
+ * 
+ * Each name is 3 to 10 symbols long. Symbols are picked from an alphabet
+ * of the requested size with a Zipf-like skew, offset by the previous
+ * symbol, so some transitions are much likelier than others and the
+ * fanout of a Predictor grows with the alphabet much as it does in real
+ * text. The first 26 symbols are the letters A to Z; larger alphabets
+ * continue into the CJK block, whose chars have no case and are never
+ * whitespace, so NameFeeder leaves them alone.
+ * 
+ * The corpus can also be written to a file from the command line:
+ * 
+ * <pre>
+ * java -cp benchmarks.jar ws.temple.markov.benchmarks.SyntheticCorpus names.txt 100000 26 42
+ * </pre>
+ * 
+ * @author Brian Dixon
+ */
+public class SyntheticCorpus {
+	
+	private final SplittableRandom rng;
+	private final int alphabet;
+	
+	/* Running totals of the symbol weights, for picking skewed offsets */
+	private final double[] cumulative;
+	
+	/**
+	 * Constructs a generator for an alphabet of the specified size.
+	 * 
+	 * @param seed
+	 * @param alphabet
+	 */
+	public SyntheticCorpus(long seed, int alphabet) {
+		if(alphabet < 1 || alphabet > 0x5000)
+			throw new IllegalArgumentException("Alphabet size must be between 1 and 20480");
+		
+		this.rng = new SplittableRandom(seed);
+		this.alphabet = alphabet;
+		this.cumulative = new double[alphabet];
+		double total = 0;
+		for(int i = 0; i < alphabet; i++)
+			cumulative[i] = total += 1.0 / (i + 1);
+	}
+	
+	/**
+	 * Returns the symbol with the specified number.
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public static char symbol(int i) {
+		return (char) (i < 26 ? 'A' + i : 0x4e00 + i);
+	}
+	
+	/**
+	 * Appends the next name, without a newline, and returns its length.
+	 * 
+	 * @param sb
+	 * @return
+	 */
+	public int nextName(StringBuilder sb) {
+		return nextName(sb, 3 + rng.nextInt(8));
+	}
+	
+	/**
+	 * Appends a name of the specified length, without a newline.
+	 * 
+	 * @param sb
+	 * @param length
+	 * @return
+	 */
+	public int nextName(StringBuilder sb, int length) {
+		int prev = 0;
+		for(int i = 0; i < length; i++) {
+			prev = (prev * 7 + skewed()) % alphabet;
+			sb.append(symbol(prev));
+		}
+		return length;
+	}
+	
+	/**
+	 * Returns names making up exactly the specified number of predictor/token
+	 * pairs when fed to a chain: one per symbol, plus one for the end of each
+	 * name. The last name is shortened to fit, so pairs must be at least 2.
+	 * 
+	 * @param pairs
+	 * @return
+	 */
+	public String names(int pairs) {
+		if(pairs < 2)
+			throw new IllegalArgumentException("A corpus needs at least 2 pairs");
+		
+		final StringBuilder sb = new StringBuilder(pairs);
+		int remaining = pairs;
+		while(remaining > 0) {
+			final int length = Math.min(3 + rng.nextInt(8), remaining - 1);
+			if(length == 0) {
+				/* A single pair left over can't make a name of its own, so
+				 * the previous name takes it */
+				sb.setLength(sb.length() - 1);
+				nextName(sb, 1);
+				sb.append('\n');
+				break;
+			}
+			nextName(sb, length);
+			sb.append('\n');
+			remaining -= length + 1;
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Writes the specified number of names to a file in UTF-8.
+	 * 
+	 * @param file
+	 * @param count
+	 * @throws IOException
+	 */
+	public void write(Path file, int count) throws IOException {
+		try(Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			final StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < count; i++) {
+				sb.setLength(0);
+				nextName(sb);
+				out.append(sb).append('\n');
+			}
+		}
+	}
+	
+	private int skewed() {
+		final double value = rng.nextDouble() * cumulative[alphabet - 1];
+		int lo = 0;
+		int hi = alphabet - 1;
+		while(lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if(cumulative[mid] > value)
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
+	}
+	
+	/**
+	 * Writes a corpus to a file. Arguments are the file, the number of names,
+	 * and optionally the alphabet size (26) and seed (42).
+	 * 
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.err.println("Usage: SyntheticCorpus <file> <names> [alphabet] [seed]");
+			System.exit(1);
+		}
+		final int alphabet = args.length > 2 ? Integer.parseInt(args[2]) : 26;
+		final long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+		new SyntheticCorpus(seed, alphabet).write(Paths.get(args[0]), Integer.parseInt(args[1]));
+	}
+	
+}
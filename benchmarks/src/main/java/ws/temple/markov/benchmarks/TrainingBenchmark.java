@@ -0,0 +1,159 @@
+package ws.temple.markov.benchmarks;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ws.temple.markov.CharMarkovChain;
+import ws.temple.markov.LiveMarkovChain;
+import ws.temple.markov.MarkovChain;
+import ws.temple.markov.Predictor;
+import ws.temple.markov.feeders.CharFeeder;
+import ws.temple.markov.feeders.NameFeeder;
+import ws.temple.markov.feeders.SequentialFeeder;
+
+/**
+ * Training throughput, reported in pairs per second. Every benchmark trains
+ * a fresh chain on the same corpus of exactly {@link #PAIRS} pairs, so the
+ * scores are directly comparable: addPair() with ready-made Predictors,
+ * a SequentialFeeder (ring buffer and batched addPairs), a CharFeeder into
+ * a CharMarkovChain, and NameFeeder reading the raw UTF-8 bytes.
+ * 
+ * @author Brian Dixon
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TrainingBenchmark {
+	
+	static final int PAIRS = 100000;
+	
+	@Param({"1", "3", "5"})
+	public int predictorLength;
+	
+	/* The alphabet size, which bounds the number of successors a Predictor has */
+	@Param({"4", "26", "256"})
+	public int fanout;
+	
+	private String corpus;
+	private byte[] bytes;
+	private Character[] tokens;
+	private Predictor<Character>[] predictors;
+	private Character[] nexts;
+	
+	@SuppressWarnings("unchecked")
+	@Setup(Level.Trial)
+	public void setup() {
+		corpus = new SyntheticCorpus(42, fanout).names(PAIRS);
+		bytes = corpus.getBytes(StandardCharsets.UTF_8);
+		tokens = Chains.tokens(corpus);
+		
+		final List<Predictor<Character>> predictorList = new ArrayList<>(PAIRS);
+		final List<Character> nextList = new ArrayList<>(PAIRS);
+		Chains.pairs(corpus, predictorLength, predictorList, nextList);
+		predictors = predictorList.toArray(new Predictor[0]);
+		nexts = nextList.toArray(new Character[0]);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(PAIRS)
+	public MarkovChain<Character> addPair() {
+		final MarkovChain<Character> chain = new MarkovChain<>(predictorLength);
+		for(int i = 0; i < PAIRS; i++)
+			chain.addPair(predictors[i], nexts[i]);
+		return chain;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(PAIRS)
+	public MarkovChain<Character> addPairLive() {
+		final MarkovChain<Character> chain = new LiveMarkovChain<>(predictorLength);
+		for(int i = 0; i < PAIRS; i++)
+			chain.addPair(predictors[i], nexts[i]);
+		return chain;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(PAIRS)
+	public MarkovChain<Character> sequentialFeeder() {
+		final MarkovChain<Character> chain = new MarkovChain<>(predictorLength);
+		final SequentialFeeder<Character> feeder = new SequentialFeeder<Character>(chain, SequentialFeeder.DEFAULT_BATCH_SIZE) { };
+		for(Character token : tokens) {
+			if(token == null)
+				feeder.endPath();
+			else
+				feeder.registerToken(token);
+		}
+		feeder.flush();
+		return chain;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(PAIRS)
+	public CharMarkovChain charFeeder() {
+		final CharMarkovChain chain = new CharMarkovChain(predictorLength);
+		final CharFeeder feeder = new CharFeeder(chain);
+		for(int i = 0; i < corpus.length(); i++) {
+			final char c = corpus.charAt(i);
+			if(c == '\n')
+				feeder.endPath();
+			else
+				feeder.registerChar(c);
+		}
+		return chain;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(PAIRS)
+	public MarkovChain<Character> nameFeeder() throws IOException {
+		final MarkovChain<Character> chain = new MarkovChain<>(predictorLength);
+		new NameFeeder(chain).feed(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8);
+		return chain;
+	}
+	
+}
@@ -0,0 +1,632 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+import java.util.stream.Stream;
+
+import ws.temple.util.BloomFilter;
+
+/**
+ * Functionality shared by every kind of Markov chain: given a Predictor,
+ * pick a token to follow it, and string those picks together into
+ * sequences.
+ * 
+ * Once a chain has finished training, next() and the generate methods may
+ * be called from any number of threads at once. Unless a generator is set
+ * with {@link #setRandom(RandomGenerator)}, each thread draws from its own
+ * ThreadLocalRandom, so callers don't contend on a shared seed. Callers that
+ * want reproducible output can pass their own RandomGenerator (for instance
+ * one split from a SplittableRandom) to the overloads that accept one.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public abstract class AbstractMarkovChain<T> implements Serializable {
+
+	private static final long serialVersionUID = -1390561772040926511L;
+
+	/* The number of tokens expected from Predictors */
+	protected final int predictorLength;
+	
+	/* RNG for grabbing random tokens, or null to use a per-thread RNG */
+	protected transient volatile RandomGenerator rng;
+	
+	/* Activity counts, or null to keep none */
+	protected transient volatile ChainMetrics metrics;
+	
+	/* Hashes of the paths this chain was trained on, or null if they aren't
+	 * being recorded; unlike the fields above, this is saved with the chain */
+	protected volatile BloomFilter sources;
+	
+	/* The hash of an empty path, into which each of its tokens is folded */
+	public static final long PATH_SEED = 0x9e3779b97f4a7c15L;
+	
+	/* Passed to endGeneration() when the metrics weren't timing a sequence */
+	private static final long NOT_TIMED = Long.MIN_VALUE;
+	
+	/**
+	 * Constructs a chain accepting Predictors of the specified length.
+	 * 
+	 * @param predictorLength
+	 */
+	protected AbstractMarkovChain(int predictorLength) {
+		this.predictorLength = predictorLength;
+	}
+	
+	/**
+	 * Sets the generator used by calls that don't supply their own. Passing null
+	 * restores the default, which gives each thread its own generator. A shared
+	 * generator must itself be safe to use from every calling thread.
+	 * 
+	 * @param rng
+	 */
+	public void setRandom(RandomGenerator rng) {
+		this.rng = rng;
+	}
+	
+	/**
+	 * Attaches metrics that this chain will record its training and generation
+	 * in, or detaches them if null. Metrics are off by default; while they're
+	 * off, the only cost is a null check per call.
+	 * 
+	 * @param metrics
+	 */
+	public void setMetrics(ChainMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Returns the metrics attached to this chain, or null if there are none.
+	 * 
+	 * @return
+	 */
+	public ChainMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Sets the filter that feeders record each completed path in, so that
+	 * generated sequences can later be checked against the training data
+	 * with {@link #isNovel(List)}. Passing null stops recording. The filter
+	 * should be sized for the number of paths expected:
+	 * 
+	 * <pre>
+	 * chain.setSourceFilter(new BloomFilter(1000000, 0.001));
+	 * </pre>
+	 * 
+	 * Paths are hashed from their tokens' hash codes, so the filter is only
+	 * of use after the chain is saved and reloaded if those are stable from
+	 * one run to the next, as they are for Strings and Characters.
+	 * 
+	 * @param sources
+	 */
+	public void setSourceFilter(BloomFilter sources) {
+		this.sources = sources;
+	}
+	
+	/**
+	 * Returns the filter that completed paths are recorded in, or null if
+	 * there is none.
+	 * 
+	 * @return
+	 */
+	public BloomFilter getSourceFilter() {
+		return sources;
+	}
+	
+	/**
+	 * Records a completed path, given its hash from {@link #hashPath(long, int)},
+	 * in the source filter if there is one. Feeders call this at the end of
+	 * every path; subclasses can override it to keep the record elsewhere too.
+	 * 
+	 * @param hash
+	 */
+	public void recordPath(long hash) {
+		final BloomFilter sources = this.sources;
+		if(sources != null)
+			sources.add(hash);
+	}
+	
+	/**
+	 * Returns false if the specified sequence was probably one of the paths
+	 * this chain was trained on, or true if it certainly wasn't. Without a
+	 * source filter every sequence is novel.
+	 * 
+	 * @param sequence
+	 * @return
+	 */
+	public boolean isNovel(List<? extends T> sequence) {
+		final BloomFilter sources = this.sources;
+		if(sources == null)
+			return true;
+		
+		long hash = PATH_SEED;
+		for(T token : sequence)
+			hash = hashPath(hash, token.hashCode());
+		return !sources.mightContain(hash);
+	}
+	
+	/**
+	 * Returns false if the specified string was probably one of the paths
+	 * this chain was trained on, taking each char as a token. This suits
+	 * chains of Characters, such as those fed by a NameFeeder, whose output
+	 * was generated with no glue.
+	 * 
+	 * @param chars
+	 * @return
+	 */
+	public boolean isNovel(CharSequence chars) {
+		final BloomFilter sources = this.sources;
+		if(sources == null)
+			return true;
+		
+		long hash = PATH_SEED;
+		for(int i = 0; i < chars.length(); i++)
+			hash = hashPath(hash, chars.charAt(i));
+		return !sources.mightContain(hash);
+	}
+	
+	/**
+	 * Folds the hash code of the next token of a path into the hash of the
+	 * tokens before it, starting from {@link #PATH_SEED}. Feeders use this
+	 * to record the paths they've completed.
+	 * 
+	 * @param hash
+	 * @param tokenHash
+	 * @return
+	 */
+	public static long hashPath(long hash, int tokenHash) {
+		return Long.rotateLeft((hash ^ tokenHash) * 0xff51afd7ed558ccdL, 29);
+	}
+	
+	/**
+	 * Returns the generator to use for a call that didn't supply one.
+	 * 
+	 * @return
+	 */
+	protected RandomGenerator random() {
+		final RandomGenerator rng = this.rng;
+		return rng != null ? rng : ThreadLocalRandom.current();
+	}
+	
+	/**
+	 * Adds a predictor/next-token pair to this Markov chain. Chains that can't be
+	 * trained throw an UnsupportedOperationException.
+	 * 
+	 * @param predictor
+	 * @param next
+	 */
+	public void addPair(Predictor<T> predictor, T next) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " is read-only");
+	}
+	
+	/**
+	 * Adds every pair in the specified batch to this Markov chain. Subclasses
+	 * should override this if they can do better than adding the pairs one
+	 * at a time.
+	 * 
+	 * @param batch
+	 */
+	@SuppressWarnings("unchecked")
+	public void addPairs(PairBatch<T> batch) {
+		final TrainingEvent event = new TrainingEvent();
+		event.begin();
+		for(int i = 0; i < batch.size(); i++) {
+			final T[] elements = (T[]) new Object[predictorLength];
+			for(int j = 0; j < predictorLength; j++)
+				elements[j] = batch.getContext(i, j);
+			addPair(new Predictor<>(elements), batch.getNext(i));
+		}
+		endTraining(event, "addPairs", batch.size(), false);
+	}
+	
+	/**
+	 * Records a finished batch of training in the metrics, if any, and
+	 * commits its Flight Recorder event if that's enabled. Pairs are only
+	 * counted in the metrics if they weren't already, one at a time.
+	 * 
+	 * @param event
+	 * @param operation
+	 * @param pairs
+	 * @param countPairs
+	 */
+	final void endTraining(TrainingEvent event, String operation, long pairs, boolean countPairs) {
+		final ChainMetrics metrics = this.metrics;
+		if(metrics != null) {
+			metrics.recordBatch();
+			if(countPairs)
+				metrics.recordPairs(pairs);
+		}
+		
+		event.end();
+		if(event.shouldCommit()) {
+			event.chain = getClass().getSimpleName();
+			event.operation = operation;
+			event.pairs = pairs;
+			event.predictors = size();
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Returns the time to measure a sequence's generation from, if the metrics
+	 * need it.
+	 * 
+	 * @return
+	 */
+	final long beginGeneration() {
+		return metrics != null ? System.nanoTime() : NOT_TIMED;
+	}
+	
+	/**
+	 * Records a generated sequence in the metrics, if any, and commits its
+	 * Flight Recorder event if that's enabled.
+	 * 
+	 * @param event
+	 * @param start
+	 * @param tokens
+	 */
+	final void endGeneration(GenerationEvent event, long start, int tokens) {
+		final ChainMetrics metrics = this.metrics;
+		if(metrics != null && start != NOT_TIMED)
+			metrics.recordGeneration(tokens, System.nanoTime() - start);
+		
+		event.end();
+		if(event.shouldCommit()) {
+			event.chain = getClass().getSimpleName();
+			event.tokens = tokens;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Returns a random token from the weighted set of those that can follow the given
+	 * Predictor, or null if no such token exists.
+	 * 
+	 * @param predictor 
+	 * @return
+	 */
+	public T next(Predictor<T> predictor) {
+		return next(predictor, random());
+	}
+	
+	/**
+	 * Returns a random token from the weighted set of those that can follow the given
+	 * Predictor, or null if no such token exists, drawing from the specified generator.
+	 * 
+	 * @param predictor
+	 * @param rng
+	 * @return
+	 */
+	public abstract T next(Predictor<T> predictor, RandomGenerator rng);
+	
+	/**
+	 * Generates a sequence from the current dictionary. 
+	 * 
+	 * @param maxLength
+	 * @return
+	 */
+	public List<T> generateSequence(int maxLength) {
+		return generateSequence(maxLength, random());
+	}
+	
+	/**
+	 * Generates a sequence from the current dictionary, drawing from the
+	 * specified generator.
+	 * 
+	 * @param maxLength
+	 * @param rng
+	 * @return
+	 */
+	public List<T> generateSequence(int maxLength, RandomGenerator rng) {
+		final GenerationEvent event = new GenerationEvent();
+		event.begin();
+		final long start = beginGeneration();
+		
+		final List<T> seq = new ArrayList<>();
+		final Cursor cursor = newCursor(rng);
+		
+		T next;
+		while(seq.size() < maxLength && (next = cursor.next()) != null)
+			seq.add(next);
+		
+		endGeneration(event, start, seq.size());
+		return seq;
+	}
+	
+	/**
+	 * Generates a sequence into the specified buffer, returning the number of
+	 * tokens written. The sequence is no longer than the buffer.
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	public int generateSequence(T[] buffer) {
+		return generateSequence(buffer, 0, buffer.length, random());
+	}
+	
+	/**
+	 * Generates a sequence of at most maxLength tokens into the specified buffer,
+	 * starting at the given offset, and returns the number of tokens written.
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param maxLength
+	 * @param rng
+	 * @return
+	 */
+	public int generateSequence(T[] buffer, int offset, int maxLength, RandomGenerator rng) {
+		final GenerationEvent event = new GenerationEvent();
+		event.begin();
+		final long start = beginGeneration();
+		
+		final Cursor cursor = newCursor(rng);
+		
+		int length = 0;
+		T next;
+		while(length < maxLength && (next = cursor.next()) != null)
+			buffer[offset + length++] = next;
+		
+		endGeneration(event, start, length);
+		return length;
+	}
+	
+	/**
+	 * Generate a string from the current dictionary, inserting the
+	 * specified string between tokens.
+	 * 
+	 * @param maxLength
+	 * @param glue
+	 * @return
+	 */
+	public String generateString(int maxLength, String glue) {
+		return generateString(maxLength, glue, random());
+	}
+	
+	/**
+	 * Generate a string from the current dictionary, inserting the
+	 * specified string between tokens and drawing from the specified
+	 * generator.
+	 * 
+	 * @param maxLength
+	 * @param glue
+	 * @param rng
+	 * @return
+	 */
+	public String generateString(int maxLength, String glue, RandomGenerator rng) {
+		return generateString(maxLength, glue, new StringBuilder(), rng).toString();
+	}
+	
+	/**
+	 * Generate a string from the current dictionary onto the end of the
+	 * specified StringBuilder, inserting the specified string between tokens.
+	 * 
+	 * @param maxLength
+	 * @param glue
+	 * @param sb
+	 * @return
+	 */
+	public StringBuilder generateString(int maxLength, String glue, StringBuilder sb) {
+		return generateString(maxLength, glue, sb, random());
+	}
+	
+	/**
+	 * Generate a string from the current dictionary onto the end of the
+	 * specified StringBuilder, inserting the specified string between tokens
+	 * and drawing from the specified generator.
+	 * 
+	 * @param maxLength
+	 * @param glue
+	 * @param sb
+	 * @param rng
+	 * @return
+	 */
+	public StringBuilder generateString(int maxLength, String glue, StringBuilder sb, RandomGenerator rng) {
+		try {
+			generateString(maxLength, glue, (Appendable) sb, rng);
+		}
+		catch(IOException e) {
+			/* StringBuilder doesn't actually throw these */
+			throw new IllegalStateException(e);
+		}
+		return sb;
+	}
+	
+	/**
+	 * Generate a string from the current dictionary onto the specified
+	 * Appendable, inserting the specified string between tokens. Returns
+	 * the number of tokens written.
+	 * 
+	 * @param maxLength
+	 * @param glue
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	public int generateString(int maxLength, String glue, Appendable out) throws IOException {
+		return generateString(maxLength, glue, out, random());
+	}
+	
+	/**
+	 * Generate a string from the current dictionary onto the specified
+	 * Appendable, inserting the specified string between tokens and drawing
+	 * from the specified generator. Returns the number of tokens written.
+	 * 
+	 * @param maxLength
+	 * @param glue
+	 * @param out
+	 * @param rng
+	 * @return
+	 * @throws IOException
+	 */
+	public int generateString(int maxLength, String glue, Appendable out, RandomGenerator rng) throws IOException {
+		final GenerationEvent event = new GenerationEvent();
+		event.begin();
+		final long start = beginGeneration();
+		
+		final Cursor cursor = newCursor(rng);
+		
+		int length = 0;
+		T next;
+		while(length < maxLength && (next = cursor.next()) != null) {
+			if(glue != null && length > 0)
+				out.append(glue);
+			appendToken(out, next);
+			length++;
+		}
+		
+		endGeneration(event, start, length);
+		return length;
+	}
+
+	/**
+	 * Returns a stream of the specified number of strings, generated in
+	 * parallel with no glue between tokens. See {@link #generator()} for
+	 * more options, including a seed for reproducible results.
+	 * 
+	 * @param count
+	 * @param maxLength
+	 * @return
+	 */
+	public Stream<String> generate(long count, int maxLength) {
+		return generator().maxLength(maxLength).strings(count);
+	}
+	
+	/**
+	 * Returns a BatchGenerator for generating many sequences from this chain
+	 * at once.
+	 * 
+	 * @return
+	 */
+	public BatchGenerator<T> generator() {
+		return new BatchGenerator<>(this);
+	}
+	
+	/**
+	 * Appends a token to the output, avoiding the String that toString() would
+	 * create for the common token types.
+	 * 
+	 * @param out
+	 * @param token
+	 * @throws IOException
+	 */
+	protected static void appendToken(Appendable out, Object token) throws IOException {
+		if(token instanceof Character)
+			out.append((Character) token);
+		else if(token instanceof CharSequence)
+			out.append((CharSequence) token);
+		else
+			out.append(token.toString());
+	}
+	
+	/**
+	 * Returns a Cursor positioned at the start of a new sequence, drawing from
+	 * the specified generator. Subclasses should override this if they can step
+	 * through the chain without building a Predictor for every token.
+	 * 
+	 * @param rng
+	 * @return
+	 */
+	protected Cursor newCursor(RandomGenerator rng) {
+		return new PredictorCursor(rng);
+	}
+	
+	/**
+	 * Tracks the end of a sequence while it's being generated, so that each
+	 * token can be picked from the last few.
+	 */
+	protected abstract class Cursor {
+		
+		protected final RandomGenerator rng;
+		
+		protected Cursor(RandomGenerator rng) {
+			this.rng = rng;
+		}
+		
+		/**
+		 * Picks the token to follow the current context and moves the context
+		 * past it. Returns null when the sequence ends.
+		 * 
+		 * @return
+		 */
+		public abstract T next();
+		
+	}
+	
+	/**
+	 * A Cursor that keeps the context in a ring buffer and builds a Predictor
+	 * from it at each step; used by chains that have nothing quicker.
+	 */
+	private class PredictorCursor extends Cursor {
+		
+		private final Object[] context = new Object[predictorLength];
+		private int head;
+		
+		PredictorCursor(RandomGenerator rng) {
+			super(rng);
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		public T next() {
+			final T[] elements = (T[]) new Object[predictorLength];
+			for(int i = 0; i < predictorLength; i++)
+				elements[i] = (T) context[(head + i) % predictorLength];
+			
+			final T next = AbstractMarkovChain.this.next(new Predictor<>(elements), rng);
+			if(next != null && predictorLength > 0) {
+				context[head] = next;
+				head = (head + 1) % predictorLength;
+			}
+			return next;
+		}
+		
+	}
+	
+	/**
+	 * Returns the number of distinct Predictors in this chain.
+	 * 
+	 * @return
+	 */
+	public abstract int size();
+	
+	/**
+	 * Returns the number of tokens this chain expects in each Predictor.
+	 * 
+	 * @return
+	 */
+	public int getPredictorLength() {
+		return predictorLength;
+	}
+	
+}
@@ -0,0 +1,395 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.random.RandomGenerator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Generates many sequences from a chain at once, optionally in parallel.
+ * Options are set with the chaining methods, and the results are produced
+ * by {@link #strings(long)} or {@link #sequences(long)}:
+ * 
+ * <pre>
+ * String[] names = chain.generator().seed(42).minLength(4).maxLength(12)
+ *     .distinct().strings(1000000).toArray(String[]::new);
+ * </pre>
+ * 
+ * Each candidate is generated from its own SplittableRandom, seeded from the
+ * generator's seed and the candidate's position, so a given seed always
+ * produces the same results in the same order however many threads share
+ * the work. Candidates that are too short or are rejected by the filter
+ * are skipped, as are repeats when distinct() is set and copies of the
+ * training data when novel() is set, and generation
+ * carries on until enough results have been found or the attempt limit is
+ * reached.
+ * 
+ * The chain mustn't be trained while results are being generated.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class BatchGenerator<T> {
+	
+	/* The number of candidates generated together when results may be rejected */
+	private static final int MIN_ROUND = 1 << 12;
+	
+	/* The chain results are generated from */
+	protected final AbstractMarkovChain<T> chain;
+	
+	protected long seed = ThreadLocalRandom.current().nextLong();
+	protected int minLength;
+	protected int maxLength = 16;
+	protected String glue;
+	protected Predicate<? super String> filter;
+	protected boolean distinct;
+	protected boolean novel;
+	protected long attempts = Long.MAX_VALUE;
+	protected boolean parallel = true;
+	
+	/**
+	 * Constructs a generator for the specified chain. Chains also provide one
+	 * through {@link AbstractMarkovChain#generator()}.
+	 * 
+	 * @param chain
+	 */
+	public BatchGenerator(AbstractMarkovChain<T> chain) {
+		this.chain = chain;
+	}
+	
+	/**
+	 * Sets the seed that results are generated from. Without one, a random
+	 * seed is picked when the generator is constructed.
+	 * 
+	 * @param seed
+	 * @return
+	 */
+	public BatchGenerator<T> seed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+	
+	/**
+	 * Sets the fewest tokens a result may have. The default is 0.
+	 * 
+	 * @param minLength
+	 * @return
+	 */
+	public BatchGenerator<T> minLength(int minLength) {
+		this.minLength = minLength;
+		return this;
+	}
+	
+	/**
+	 * Sets the most tokens a result may have; longer sequences are cut short.
+	 * The default is 16.
+	 * 
+	 * @param maxLength
+	 * @return
+	 */
+	public BatchGenerator<T> maxLength(int maxLength) {
+		this.maxLength = maxLength;
+		return this;
+	}
+	
+	/**
+	 * Sets the string inserted between tokens by {@link #strings(long)}. The
+	 * default is null, which inserts nothing.
+	 * 
+	 * @param glue
+	 * @return
+	 */
+	public BatchGenerator<T> glue(String glue) {
+		this.glue = glue;
+		return this;
+	}
+	
+	/**
+	 * Sets a test that every result of {@link #strings(long)} must pass. The
+	 * filter is called from several threads at once when generating in
+	 * parallel.
+	 * 
+	 * @param filter
+	 * @return
+	 */
+	public BatchGenerator<T> filter(Predicate<? super String> filter) {
+		this.filter = filter;
+		return this;
+	}
+	
+	/**
+	 * Skips any result equal to one produced earlier, so that every result
+	 * is unique.
+	 * 
+	 * @return
+	 */
+	public BatchGenerator<T> distinct() {
+		this.distinct = true;
+		return this;
+	}
+	
+	/**
+	 * Skips any result that the chain's source filter says was probably one
+	 * of the paths it was trained on. A small fraction of novel results, set
+	 * by the filter's false positive rate, are skipped too. This has no
+	 * effect if the chain has no source filter.
+	 * 
+	 * @return
+	 * @see AbstractMarkovChain#setSourceFilter(ws.temple.util.BloomFilter)
+	 */
+	public BatchGenerator<T> novel() {
+		this.novel = true;
+		return this;
+	}
+	
+	/**
+	 * Sets the most candidates that may be generated, including those that
+	 * are rejected. Once the limit is reached, the results found so far are
+	 * returned even if there are fewer than were asked for. A small chain
+	 * with distinct() set may not have enough distinct sequences to give,
+	 * so it's best to set a limit in that case. There's none by default.
+	 * 
+	 * @param attempts
+	 * @return
+	 */
+	public BatchGenerator<T> attempts(long attempts) {
+		this.attempts = attempts;
+		return this;
+	}
+	
+	/**
+	 * Sets whether candidates are generated on several threads. The default
+	 * is true; the results are the same either way.
+	 * 
+	 * @param parallel
+	 * @return
+	 */
+	public BatchGenerator<T> parallel(boolean parallel) {
+		this.parallel = parallel;
+		return this;
+	}
+	
+	/**
+	 * Returns a stream of the specified number of generated strings. Unless
+	 * results may be rejected, they're generated lazily as the stream is
+	 * consumed; otherwise they're all generated before this returns, since
+	 * which of them survive can only be decided in order.
+	 * 
+	 * @param count
+	 * @return
+	 */
+	public Stream<String> strings(long count) {
+		final int minLength = this.minLength;
+		final int maxLength = this.maxLength;
+		final String glue = this.glue;
+		final Predicate<? super String> filter = this.filter;
+		final boolean novel = this.novel && chain.getSourceFilter() != null;
+		
+		return results(count, filter != null || novel, rng -> {
+			final StringBuilder sb = new StringBuilder();
+			try {
+				if(novel) {
+					/* The tokens themselves are needed to check the filter */
+					final List<T> seq = chain.generateSequence(maxLength, rng);
+					if(seq.size() < minLength || !chain.isNovel(seq))
+						return null;
+					for(int i = 0; i < seq.size(); i++) {
+						if(glue != null && i > 0)
+							sb.append(glue);
+						AbstractMarkovChain.appendToken(sb, seq.get(i));
+					}
+				}
+				else if(chain.generateString(maxLength, glue, (Appendable) sb, rng) < minLength)
+					return null;
+			}
+			catch(IOException e) {
+				/* StringBuilder doesn't actually throw these */
+				throw new IllegalStateException(e);
+			}
+			final String s = sb.toString();
+			return filter == null || filter.test(s) ? s : null;
+		});
+	}
+	
+	/**
+	 * Returns a stream of the specified number of generated sequences. The
+	 * filter and glue only apply to {@link #strings(long)}, but novel() applies
+	 * to both.
+	 * 
+	 * @param count
+	 * @return
+	 */
+	public Stream<List<T>> sequences(long count) {
+		final int minLength = this.minLength;
+		final int maxLength = this.maxLength;
+		final boolean novel = this.novel && chain.getSourceFilter() != null;
+		
+		return results(count, novel, rng -> {
+			final List<T> seq = chain.generateSequence(maxLength, rng);
+			return seq.size() < minLength || (novel && !chain.isNovel(seq)) ? null : seq;
+		});
+	}
+	
+	/**
+	 * Fills the specified array with generated strings, returning the number
+	 * written, which is only short of the array's length if the attempt
+	 * limit was reached.
+	 * 
+	 * @param results
+	 * @return
+	 */
+	public int fill(String[] results) {
+		final Object[] generated = strings(results.length).toArray();
+		System.arraycopy(generated, 0, results, 0, generated.length);
+		return generated.length;
+	}
+	
+	private <R> Stream<R> results(long count, boolean filtered, Function<RandomGenerator, R> generate) {
+		if(count < 0)
+			throw new IllegalArgumentException("Count must not be negative");
+		
+		if(!filtered && minLength <= 0 && !distinct)
+			return StreamSupport.stream(new Candidates<>(seed, 0, Math.min(count, attempts), generate), parallel);
+		
+		if(count > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Too many results to collect: " + count);
+		
+		/* Filtering may leave far fewer results than were asked for, so the
+		 * list starts no bigger than the attempts allow and grows from there */
+		final List<R> results = new ArrayList<>((int) Math.min(count, attempts));
+		final Set<R> seen = distinct ? new HashSet<>() : null;
+		
+		/* Candidates are generated a round at a time, each round a little
+		 * larger than the number of results still wanted, and the survivors
+		 * are picked out in order */
+		long next = 0;
+		while(results.size() < count && next < attempts) {
+			final long wanted = count - results.size();
+			final long round = Math.min(attempts - next, Math.max(MIN_ROUND, wanted + (wanted >> 1)));
+			final Object[] candidates = StreamSupport.stream(new Candidates<>(seed, next, next + round, generate), parallel).toArray();
+			next += round;
+			
+			for(Object candidate : candidates) {
+				@SuppressWarnings("unchecked")
+				final R result = (R) candidate;
+				if(result == null || (seen != null && !seen.add(result)))
+					continue;
+				results.add(result);
+				if(results.size() == count)
+					break;
+			}
+		}
+		return parallel ? results.parallelStream() : results.stream();
+	}
+	
+	/**
+	 * Generates the candidates in a range of positions, each from a generator
+	 * seeded by its position, so that the candidates don't depend on how the
+	 * range is split up. Rejected candidates come out as nulls.
+	 */
+	private static class Candidates<R> implements Spliterator<R> {
+		
+		private final long seed;
+		private long position;
+		private final long end;
+		private final Function<RandomGenerator, R> generate;
+		
+		Candidates(long seed, long position, long end, Function<RandomGenerator, R> generate) {
+			this.seed = seed;
+			this.position = position;
+			this.end = end;
+			this.generate = generate;
+		}
+		
+		private R generate(long position) {
+			return generate.apply(new SplittableRandom(mix(seed + position * 0x9e3779b97f4a7c15L)));
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super R> action) {
+			if(position >= end)
+				return false;
+			action.accept(generate(position++));
+			return true;
+		}
+		
+		@Override
+		public void forEachRemaining(Consumer<? super R> action) {
+			final long end = this.end;
+			for(long i = position; i < end; i++)
+				action.accept(generate(i));
+			position = end;
+		}
+		
+		@Override
+		public Spliterator<R> trySplit() {
+			final long mid = (position + end) >>> 1;
+			if(mid <= position)
+				return null;
+			final Spliterator<R> prefix = new Candidates<>(seed, position, mid, generate);
+			position = mid;
+			return prefix;
+		}
+		
+		@Override
+		public long estimateSize() {
+			return end - position;
+		}
+		
+		@Override
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED | IMMUTABLE;
+		}
+		
+		/**
+		 * The SplitMix64 finalizer, so that neighbouring positions get
+		 * unrelated seeds.
+		 * 
+		 * @param z
+		 * @return
+		 */
+		private static long mix(long z) {
+			z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+			z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+			return z ^ (z >>> 31);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,411 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the most likely ways for a MarkovChain to complete a prefix, for
+ * things like autocompletion, without sampling. Each step of the search
+ * keeps only the beam's width of most probable partial sequences, extends
+ * every one of them by every possible successor, and keeps the best of
+ * those in turn; sequences the chain ends are collected along the way, and
+ * the best of them returned.
+ * 
+ * When the searcher is built, every Predictor's successors are sorted from
+ * most to least likely, so extending a partial sequence can stop at the
+ * first successor that couldn't make it into the next beam, and a partial
+ * sequence already less likely than every result collected is dropped
+ * without being extended at all. A query therefore only touches the top
+ * few successors of a few Predictors per step.
+ * 
+ * Like any beam search this is approximate: a sequence whose start falls
+ * out of the beam can't be found, even if it would have ended up among the
+ * most likely. A wider beam trades time for accuracy. Instances are obtained
+ * from {@link MarkovChain#beamSearch()}; later changes to the chain aren't
+ * reflected, and any number of threads may search at once.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class BeamSearch<T> {
+	
+	/* Tokens by id, copied from the chain's dictionary */
+	protected final TokenDictionary<T> dictionary;
+	
+	/* The successors of Predictor n occupy [offsets[n], offsets[n + 1]) in
+	 * the arrays below, most likely first */
+	protected final int[] offsets;
+	
+	/* Successor token ids, back to back */
+	protected final int[] successors;
+	
+	/* The log-probability of each successor following its Predictor */
+	protected final double[] logs;
+	
+	/* The Predictor reached by appending each successor, or -1 for the null
+	 * token and for Predictors the chain doesn't have */
+	protected final int[] targets;
+	
+	/* The slot holding the null token for each Predictor, or -1 */
+	protected final int[] ends;
+	
+	/* The Predictor every sequence starts from, or -1 if the chain is empty */
+	protected final int start;
+	
+	/**
+	 * Compiles the specified chain, sorting every Predictor's successors.
+	 * 
+	 * @param chain
+	 */
+	@SuppressWarnings("unchecked")
+	BeamSearch(MarkovChain<T> chain) {
+		final PredictorIndex<T> index = chain.index;
+		final int length = chain.predictorLength;
+		this.dictionary = new TokenDictionary<>(chain.dictionary);
+		
+		final int predictors = index.size();
+		int slots = 0;
+		for(int n = 0; n < predictors; n++)
+			slots += chain.distributions[n].size();
+		
+		this.offsets = new int[predictors + 1];
+		this.successors = new int[slots];
+		this.logs = new double[slots];
+		this.targets = new int[slots];
+		this.ends = new int[predictors];
+		
+		int pos = 0;
+		for(int n = 0; n < predictors; n++) {
+			final Distribution dist = chain.distributions[n];
+			offsets[n] = pos;
+			ends[n] = -1;
+			final Predictor<T> predictor = index.isPacked() ? null : index.getPredictor(n);
+			
+			/* Sort by descending count, keeping the original order for ties,
+			 * by packing the inverted count above the slot number */
+			final long[] order = new long[dist.size()];
+			int live = 0;
+			for(int i = 0; i < dist.size(); i++)
+				if(dist.getCount(i) > 0)
+					order[live++] = ((long) (Integer.MAX_VALUE - dist.getCount(i)) << 32) | i;
+			Arrays.sort(order, 0, live);
+			
+			final double total = Math.log(dist.getTotal());
+			for(int k = 0; k < live; k++) {
+				final int i = (int) order[k];
+				final int id = dist.getId(i);
+				successors[pos] = id;
+				logs[pos] = Math.log(dist.getCount(i)) - total;
+				if(id == TokenDictionary.NULL) {
+					targets[pos] = -1;
+					ends[n] = pos;
+				}
+				else if(predictor == null)
+					targets[pos] = index.get(index.roll(index.getKey(n), id));
+				else {
+					final T[] elements = (T[]) new Object[length];
+					if(length > 0) {
+						System.arraycopy(predictor.elements, 1, elements, 0, length - 1);
+						elements[length - 1] = chain.dictionary.get(id);
+					}
+					targets[pos] = index.get(new Predictor<>(elements));
+				}
+				pos++;
+			}
+		}
+		offsets[predictors] = pos;
+		this.start = index.get(new Predictor<>((T[]) new Object[length]));
+	}
+	
+	/**
+	 * Returns up to beamWidth of the most likely sequences the chain could
+	 * generate that start with the specified prefix and end within maxLength
+	 * tokens, prefix included, most likely first. The result is empty if the
+	 * chain can't generate the prefix.
+	 * 
+	 * @param prefix
+	 * @param beamWidth
+	 * @param maxLength
+	 * @return
+	 */
+	public List<Result<T>> search(List<? extends T> prefix, int beamWidth, int maxLength) {
+		if(beamWidth < 1)
+			throw new IllegalArgumentException("Beam width must be positive");
+		if(prefix.size() > maxLength || start < 0)
+			return Collections.emptyList();
+		
+		/* Follow the prefix from the start of a path */
+		int n = start;
+		double prefixLog = 0;
+		for(int i = 0; i < prefix.size(); i++) {
+			final int id = dictionary.lookup(prefix.get(i));
+			final int slot = n >= 0 && id > TokenDictionary.NULL ? slotOf(n, id) : -1;
+			if(slot < 0)
+				return Collections.emptyList();
+			prefixLog += logs[slot];
+			n = targets[slot];
+		}
+		
+		/* Partial sequences are kept as a tree of tokens, each pointing back to
+		 * the one before; entry 0 is the end of the prefix */
+		final Hypotheses tree = new Hypotheses(beamWidth * 4);
+		final Heap results = new Heap(beamWidth);
+		Heap beam = new Heap(beamWidth);
+		if(n < 0)
+			results.offer(prefixLog, -1, 0, -1);
+		else
+			beam.offer(prefixLog, n, 0, -1);
+		
+		for(int length = prefix.size(); length < maxLength && beam.size > 0; length++) {
+			final Heap next = new Heap(beamWidth);
+			for(int b = 0; b < beam.size; b++) {
+				final double base = beam.keys[b];
+				if(results.isFull() && base <= results.min())
+					continue;
+				
+				final int node = beam.a[b];
+				final int hypothesis = tree.add(beam.b[b], beam.c[b]);
+				for(int slot = offsets[node]; slot < offsets[node + 1]; slot++) {
+					final double log = base + logs[slot];
+					
+					/* Successors only get less likely from here on */
+					if(results.isFull() && log <= results.min())
+						break;
+					if(next.isFull() && log <= next.min()) {
+						final int end = ends[node];
+						if(end >= slot)
+							results.offer(base + logs[end], -1, hypothesis, -1);
+						break;
+					}
+					
+					/* A successor with no Predictor of its own ends the
+					 * sequence, just as it would when generating */
+					final int target = targets[slot];
+					if(target < 0)
+						results.offer(log, -1, hypothesis, successors[slot]);
+					else
+						next.offer(log, target, hypothesis, successors[slot]);
+				}
+			}
+			beam = next;
+		}
+		
+		/* Partial sequences that reach the maximum length can still end there */
+		for(int b = 0; b < beam.size; b++) {
+			final int end = ends[beam.a[b]];
+			if(end >= 0)
+				results.offer(beam.keys[b] + logs[end], -1, tree.add(beam.b[b], beam.c[b]), -1);
+		}
+		return collect(prefix, tree, results);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private List<Result<T>> collect(List<? extends T> prefix, Hypotheses tree, Heap results) {
+		final Integer[] order = new Integer[results.size];
+		for(int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (x, y) -> Double.compare(results.keys[y], results.keys[x]));
+		
+		final List<Result<T>> list = new ArrayList<>(order.length);
+		for(int i : order) {
+			final List<T> sequence = new ArrayList<>(prefix);
+			final int first = sequence.size();
+			if(results.c[i] > TokenDictionary.NULL)
+				sequence.add(dictionary.get(results.c[i]));
+			for(int h = results.b[i]; h > 0; h = tree.parents[h])
+				sequence.add(first, dictionary.get(tree.tokens[h]));
+			list.add(new Result<>(sequence, results.keys[i]));
+		}
+		return list;
+	}
+	
+	private int slotOf(int n, int id) {
+		for(int slot = offsets[n]; slot < offsets[n + 1]; slot++)
+			if(successors[slot] == id)
+				return slot;
+		return -1;
+	}
+	
+	/**
+	 * One of the sequences found by a search, with its log-probability.
+	 * 
+	 * @param <T>
+	 */
+	public static final class Result<T> {
+		
+		private final List<T> sequence;
+		private final double logProbability;
+		
+		Result(List<T> sequence, double logProbability) {
+			this.sequence = Collections.unmodifiableList(sequence);
+			this.logProbability = logProbability;
+		}
+		
+		/**
+		 * Returns the whole sequence, prefix included.
+		 * 
+		 * @return
+		 */
+		public List<T> getSequence() {
+			return sequence;
+		}
+		
+		/**
+		 * Returns the natural log of the probability of the chain generating
+		 * exactly this sequence.
+		 * 
+		 * @return
+		 */
+		public double getLogProbability() {
+			return logProbability;
+		}
+		
+		/**
+		 * Returns the probability of the chain generating exactly this sequence.
+		 * 
+		 * @return
+		 */
+		public double getProbability() {
+			return Math.exp(logProbability);
+		}
+		
+		@Override
+		public String toString() {
+			return sequence + " " + logProbability;
+		}
+		
+	}
+	
+	/**
+	 * The tokens of every partial sequence kept by a search, each pointing
+	 * back to the partial sequence it extends.
+	 */
+	private static final class Hypotheses {
+		
+		int[] parents;
+		int[] tokens;
+		int size = 1;
+		
+		Hypotheses(int capacity) {
+			parents = new int[Math.max(capacity, 2)];
+			tokens = new int[parents.length];
+		}
+		
+		int add(int parent, int token) {
+			if(token < 0)
+				return parent;
+			if(size == parents.length) {
+				parents = Arrays.copyOf(parents, size * 2);
+				tokens = Arrays.copyOf(tokens, size * 2);
+			}
+			parents[size] = parent;
+			tokens[size] = token;
+			return size++;
+		}
+		
+	}
+	
+	/**
+	 * A bounded min-heap of log-probabilities, each with three ints attached,
+	 * that keeps only the largest it's offered.
+	 */
+	private static final class Heap {
+		
+		final double[] keys;
+		final int[] a;
+		final int[] b;
+		final int[] c;
+		int size;
+		
+		Heap(int capacity) {
+			keys = new double[capacity];
+			a = new int[capacity];
+			b = new int[capacity];
+			c = new int[capacity];
+		}
+		
+		boolean isFull() {
+			return size == keys.length;
+		}
+		
+		double min() {
+			return keys[0];
+		}
+		
+		void offer(double key, int x, int y, int z) {
+			int i;
+			if(size < keys.length)
+				i = size++;
+			else if(key > keys[0])
+				i = 0;
+			else
+				return;
+			
+			/* Sift up from the end, or down from the root when replacing it */
+			if(i > 0) {
+				while(i > 0) {
+					final int parent = (i - 1) >>> 1;
+					if(keys[parent] <= key)
+						break;
+					move(parent, i);
+					i = parent;
+				}
+			}
+			else {
+				for(;;) {
+					int child = 2 * i + 1;
+					if(child >= size)
+						break;
+					if(child + 1 < size && keys[child + 1] < keys[child])
+						child++;
+					if(keys[child] >= key)
+						break;
+					move(child, i);
+					i = child;
+				}
+			}
+			keys[i] = key;
+			a[i] = x;
+			b[i] = y;
+			c[i] = z;
+		}
+		
+		private void move(int from, int to) {
+			keys[to] = keys[from];
+			a[to] = a[from];
+			b[to] = b[from];
+			c[to] = c[from];
+		}
+		
+	}
+
+}
@@ -0,0 +1,393 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import ws.temple.util.CountMinSketch;
+
+/**
+ * A MarkovChain that holds its size under fixed caps on the number of
+ * Predictors and the number of distinct predictor/next-token pairs
+ * (transitions), for training on open-ended streams where the long tail of
+ * rare contexts would otherwise grow without limit.
+ * 
+ * Pairs the chain doesn't know yet have to earn their place: they're
+ * counted in a small, aging count-min sketch first, and only added once
+ * they've been seen the admission threshold number of times, at which point
+ * they're credited with every sighting so far. Pairs already in the chain
+ * are counted as usual. Once a cap is exceeded, the least frequent
+ * transitions or Predictors are evicted in one sweep, bringing the chain
+ * down to seven eighths of the cap so the cost of the sweep is spread over
+ * many additions.
+ * 
+ * Evicting a Predictor means sequences that reach it simply end there, and
+ * the start of every sequence is never evicted on its own. Tokens stay in
+ * the dictionary after every pair mentioning them is gone.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class BoundedMarkovChain<T> extends MarkovChain<T> {
+
+	private static final long serialVersionUID = -2378126400871522530L;
+	
+	/* Pairs have to be seen this many times before they're added, by default */
+	public static final int DEFAULT_ADMISSION = 2;
+	
+	/* The sketch never has fewer or more columns than these */
+	private static final int MIN_SKETCH_WIDTH = 1 << 10;
+	private static final int MAX_SKETCH_WIDTH = 1 << 18;
+	
+	private final int maxPredictors;
+	private final int maxTransitions;
+	private final int admission;
+	
+	/* Counts pairs that haven't been admitted yet; null if every pair is */
+	private final CountMinSketch sketch;
+	
+	/* The number of distinct pairs held across all distributions */
+	private int transitions;
+	
+	private long rejectedPairs;
+	private long evictedPredictors;
+	private long evictedTransitions;
+	
+	/**
+	 * Constructs an empty BoundedMarkovChain accepting Predictors of the
+	 * specified length, holding no more than the given number of Predictors.
+	 * 
+	 * @param predictorLength
+	 * @param maxPredictors
+	 */
+	public BoundedMarkovChain(int predictorLength, int maxPredictors) {
+		this(predictorLength, maxPredictors, Integer.MAX_VALUE, DEFAULT_ADMISSION);
+	}
+	
+	/**
+	 * Constructs an empty BoundedMarkovChain accepting Predictors of the
+	 * specified length, holding no more than the given numbers of Predictors
+	 * and transitions, and adding new pairs once they've been seen the given
+	 * number of times. An admission threshold of 1 adds every pair at once.
+	 * 
+	 * @param predictorLength
+	 * @param maxPredictors
+	 * @param maxTransitions
+	 * @param admission
+	 */
+	public BoundedMarkovChain(int predictorLength, int maxPredictors, int maxTransitions, int admission) {
+		super(predictorLength);
+		if(maxPredictors < 1 || maxTransitions < 1)
+			throw new IllegalArgumentException("Caps must be positive");
+		if(admission < 1)
+			throw new IllegalArgumentException("Admission threshold must be positive");
+		
+		this.maxPredictors = maxPredictors;
+		this.maxTransitions = maxTransitions;
+		this.admission = admission;
+		
+		/* Sized to the number of pairs the chain can hold, which is roughly
+		 * the number of candidates worth tracking */
+		final long expected = Math.min(maxTransitions, 4L * maxPredictors);
+		this.sketch = admission == 1 ? null : new CountMinSketch(
+				(int) Math.max(MIN_SKETCH_WIDTH, Math.min(MAX_SKETCH_WIDTH, 2 * expected)));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.MarkovChain#addPair(ws.temple.markov.Predictor, java.lang.Object, int)
+	 */
+	@Override
+	public void addPair(Predictor<T> predictor, T next, int count) {
+		if(predictor.size() != predictorLength)
+			throw new IllegalArgumentException("Predictor length does not match chain");
+		if(count < 0)
+			throw new IllegalArgumentException("Count must not be negative");
+		
+		final ChainMetrics metrics = this.metrics;
+		if(metrics != null)
+			metrics.recordPairs(count);
+		
+		int added = count;
+		if(sketch != null && !contains(predictor, next)) {
+			final int seen = sketch.add(hash(predictor, next), count);
+			if(seen < admission) {
+				rejectedPairs += count;
+				return;
+			}
+			
+			/* Credit the sightings made while the pair was waiting */
+			added = Math.max(seen, count);
+		}
+		
+		final Distribution distribution = distributionFor(index.put(predictor));
+		final int before = distribution.size();
+		distribution.add(dictionary.intern(next), added);
+		transitions += distribution.size() - before;
+		
+		if(transitions > maxTransitions)
+			evictTransitions(maxTransitions - maxTransitions / 8);
+		if(index.size() > maxPredictors)
+			evictPredictors(maxPredictors - maxPredictors / 8);
+	}
+	
+	/**
+	 * Adds every pair in the specified batch to this Markov chain, one at a
+	 * time, since each has to pass admission on its own.
+	 * 
+	 * @param batch
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public void addPairs(PairBatch<T> batch) {
+		if(batch.getPredictorLength() != predictorLength)
+			throw new IllegalArgumentException("Predictor length does not match chain");
+		
+		final TrainingEvent event = new TrainingEvent();
+		event.begin();
+		for(int i = 0; i < batch.size(); i++) {
+			final T[] elements = (T[]) new Object[predictorLength];
+			for(int j = 0; j < predictorLength; j++)
+				elements[j] = batch.getContext(i, j);
+			addPair(new Predictor<>(elements), batch.getNext(i), 1);
+		}
+		endTraining(event, "addPairs", batch.size(), false);
+	}
+	
+	/**
+	 * Adds every pair in the specified chain to this one, passing each through
+	 * admission with its full count. The other chain is left unchanged.
+	 * 
+	 * @param other
+	 */
+	@Override
+	public void merge(MarkovChain<T> other) {
+		if(other.predictorLength != predictorLength)
+			throw new IllegalArgumentException("Predictor length does not match chain");
+		
+		final TrainingEvent event = new TrainingEvent();
+		event.begin();
+		
+		long pairs = 0;
+		for(int n = 0; n < other.index.size(); n++) {
+			final Predictor<T> predictor = other.index.getPredictor(n);
+			final Distribution source = other.distributions[n];
+			for(int i = 0; i < source.size(); i++)
+				if(source.getCount(i) > 0)
+					addPair(predictor, other.dictionary.get(source.getId(i)), source.getCount(i));
+			pairs += source.getTotal();
+		}
+		endTraining(event, "merge", pairs, false);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.MarkovChain#removePredictor(int)
+	 */
+	@Override
+	protected void removePredictor(int n) {
+		transitions -= distributions[n].size();
+		super.removePredictor(n);
+	}
+	
+	/**
+	 * Returns whether the chain already holds the specified pair.
+	 * 
+	 * @param predictor
+	 * @param next
+	 * @return
+	 */
+	private boolean contains(Predictor<T> predictor, T next) {
+		final int n = index.get(predictor);
+		if(n < 0)
+			return false;
+		final int id = dictionary.lookup(next);
+		return id != TokenDictionary.MISSING && distributions[n].count(id) > 0;
+	}
+	
+	/**
+	 * Removes the least frequent transitions until no more than the target
+	 * number remain, along with any Predictors left with nothing to follow.
+	 * 
+	 * @param target
+	 */
+	private void evictTransitions(int target) {
+		final int excess = transitions - target;
+		final int predictors = index.size();
+		
+		/* Everything counted no higher than the excess-th smallest count goes,
+		 * except for as many ties at that count as are needed to make it exact */
+		final int[] counts = new int[transitions];
+		int k = 0;
+		for(int n = 0; n < predictors; n++) {
+			final Distribution distribution = distributions[n];
+			for(int i = 0; i < distribution.size(); i++)
+				counts[k++] = distribution.getCount(i);
+		}
+		Arrays.sort(counts);
+		final int threshold = counts[excess - 1];
+		int ties = 0;
+		for(int i = excess - 1; i >= 0 && counts[i] == threshold; i--)
+			ties++;
+		
+		/* Going backwards means a Predictor moved into a removed one's place
+		 * has already been visited */
+		for(int n = predictors - 1; n >= 0; n--) {
+			final Distribution distribution = distributions[n];
+			int equal = 0;
+			for(int i = 0; i < distribution.size(); i++)
+				if(distribution.getCount(i) == threshold)
+					equal++;
+			
+			final int allowed = Math.min(equal, ties);
+			final int removed = distribution.prune(threshold, allowed);
+			ties -= allowed;
+			transitions -= removed;
+			evictedTransitions += removed;
+			
+			if(distribution.getTotal() == 0) {
+				removePredictor(n);
+				evictedPredictors++;
+			}
+		}
+	}
+	
+	/**
+	 * Removes the Predictors seen least often until no more than the target
+	 * number remain.
+	 * 
+	 * @param target
+	 */
+	@SuppressWarnings("unchecked")
+	private void evictPredictors(int target) {
+		final int predictors = index.size();
+		final int start = index.get(new Predictor<>((T[]) new Object[predictorLength]));
+		
+		final int[] totals = new int[predictors];
+		for(int n = 0; n < predictors; n++)
+			totals[n] = n == start ? Integer.MAX_VALUE : distributions[n].getTotal();
+		final int[] sorted = totals.clone();
+		Arrays.sort(sorted);
+		
+		final int excess = predictors - target;
+		final int threshold = sorted[excess - 1];
+		int ties = 0;
+		for(int i = excess - 1; i >= 0 && sorted[i] == threshold; i--)
+			ties++;
+		
+		for(int n = predictors - 1; n >= 0; n--) {
+			final int total = totals[n];
+			if(n != start && (total < threshold || (total == threshold && ties-- > 0))) {
+				evictedTransitions += distributions[n].size();
+				removePredictor(n);
+				evictedPredictors++;
+			}
+		}
+	}
+	
+	/**
+	 * Hashes a pair for the sketch.
+	 * 
+	 * @param predictor
+	 * @param next
+	 * @return
+	 */
+	private static long hash(Predictor<?> predictor, Object next) {
+		long hash = 1;
+		for(int i = 0; i < predictor.size(); i++)
+			hash = (hash + Objects.hashCode(predictor.get(i))) * 0x9e3779b97f4a7c15L;
+		return hash + Objects.hashCode(next);
+	}
+	
+	/**
+	 * Returns the number of distinct predictor/next-token pairs in the chain.
+	 * 
+	 * @return
+	 */
+	public int getTransitions() {
+		return transitions;
+	}
+	
+	/**
+	 * Returns the most Predictors the chain will hold.
+	 * 
+	 * @return
+	 */
+	public int getMaxPredictors() {
+		return maxPredictors;
+	}
+	
+	/**
+	 * Returns the most transitions the chain will hold.
+	 * 
+	 * @return
+	 */
+	public int getMaxTransitions() {
+		return maxTransitions;
+	}
+	
+	/**
+	 * Returns the number of times a pair must be seen before it's added.
+	 * 
+	 * @return
+	 */
+	public int getAdmission() {
+		return admission;
+	}
+	
+	/**
+	 * Returns the number of pair occurrences turned away because the pair
+	 * hadn't been seen often enough yet.
+	 * 
+	 * @return
+	 */
+	public long getRejectedPairs() {
+		return rejectedPairs;
+	}
+	
+	/**
+	 * Returns the number of Predictors evicted so far.
+	 * 
+	 * @return
+	 */
+	public long getEvictedPredictors() {
+		return evictedPredictors;
+	}
+	
+	/**
+	 * Returns the number of transitions evicted so far, including those
+	 * belonging to evicted Predictors.
+	 * 
+	 * @return
+	 */
+	public long getEvictedTransitions() {
+		return evictedTransitions;
+	}
+
+}
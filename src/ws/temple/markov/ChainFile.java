@@ -0,0 +1,327 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import ws.temple.util.BloomFilter;
+
+/**
+ * Reads and writes Markov chains in a compact, versioned binary format that
+ * can be memory-mapped and sampled in place. All values are little-endian.
+ * 
+ * <pre>
+ * Header (64 bytes)
+ *   int    magic ('MKVL')
+ *   int    version
+ *   int    Predictor length (L)
+ *   int    number of token ids, including the null token
+ *   int    number of Predictors
+ *   int    capacity of the Predictor hash table (a power of two)
+ *   long   number of successor slots
+ *   long   offset of the token table
+ *   long   offset of the Predictor hash table
+ *   long   offset of the Predictor records
+ *   long   offset of the successor slots
+ * Token table, for every id but the null token's
+ *   int    length, then that many bytes from the TokenCodec
+ * Predictor hash table
+ *   int    Predictor number + 1 per bucket, or 0 when empty; linear probing
+ * Predictor records
+ *   int[L] token ids, oldest first
+ *   int    first successor slot
+ *   int    number of successor slots
+ * Successor slots
+ *   int    token id
+ *   int    count
+ *   int    alias slot, as an absolute slot number
+ *   float  probability of keeping this slot rather than taking its alias
+ * Source filter, only present if the chain has one
+ *   int    magic ('MKVB')
+ *   int    number of bits set per path
+ *   long   number of words (W)
+ *   long[W] bits of the filter, 64 to a word
+ * </pre>
+ * 
+ * Readers that predate the source filter simply ignore it, since it comes
+ * after everything else in the file.
+ * 
+ * @author Brian Dixon
+ */
+public final class ChainFile {
+	
+	private ChainFile(){}
+	
+	static final int MAGIC = 0x4d4b564c;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	static final int SLOT_SIZE = 16;
+	static final int FILTER_MAGIC = 0x4d4b5642;
+	static final int FILTER_HEADER_SIZE = 16;
+	
+	/**
+	 * Writes the specified chain to a file, replacing anything already there.
+	 * 
+	 * @param chain
+	 * @param file
+	 * @param codec
+	 * @throws IOException
+	 */
+	public static <T> void write(MarkovChain<T> chain, Path file, TokenCodec<T> codec) throws IOException {
+		final int length = chain.predictorLength;
+		final TokenDictionary<T> dictionary = chain.dictionary;
+		final PredictorIndex<T> index = chain.index;
+		final int predictors = index.size();
+		
+		/* Encode the tokens first so that every section's size is known
+		 * before anything is written */
+		final byte[][] tokens = new byte[dictionary.size()][];
+		long tokenBytes = 0;
+		for(int id = 1; id < tokens.length; id++) {
+			tokens[id] = codec.encode(dictionary.get(id));
+			tokenBytes += 4 + tokens[id].length;
+		}
+		
+		long slots = 0;
+		for(int n = 0; n < predictors; n++)
+			slots += liveSlots(chain.distributions[n]);
+		if(slots > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Chain has too many successors to write");
+		
+		final int capacity = tableCapacity(predictors);
+		final long tokenOffset = HEADER_SIZE;
+		final long tableOffset = tokenOffset + tokenBytes;
+		final long recordOffset = tableOffset + 4L * capacity;
+		final long slotOffset = recordOffset + (long) recordSize(length) * predictors;
+		
+		/* Lay out the hash table in memory; it's the only section that isn't
+		 * written in order */
+		final int[] table = new int[capacity];
+		final int[] ids = new int[length];
+		for(int n = 0; n < predictors; n++) {
+			index.getIds(n, ids);
+			int bucket = hash(ids) & (capacity - 1);
+			while(table[bucket] != 0)
+				bucket = (bucket + 1) & (capacity - 1);
+			table[bucket] = n + 1;
+		}
+		
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final Output out = new Output(channel);
+			
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+			out.putInt(length);
+			out.putInt(tokens.length);
+			out.putInt(predictors);
+			out.putInt(capacity);
+			out.putLong(slots);
+			out.putLong(tokenOffset);
+			out.putLong(tableOffset);
+			out.putLong(recordOffset);
+			out.putLong(slotOffset);
+			
+			for(int id = 1; id < tokens.length; id++) {
+				out.putInt(tokens[id].length);
+				out.put(tokens[id]);
+			}
+			
+			for(int bucket : table)
+				out.putInt(bucket);
+			
+			int slot = 0;
+			for(int n = 0; n < predictors; n++) {
+				final int live = liveSlots(chain.distributions[n]);
+				index.getIds(n, ids);
+				for(int id : ids)
+					out.putInt(id);
+				out.putInt(slot);
+				out.putInt(live);
+				slot += live;
+			}
+			
+			slot = 0;
+			for(int n = 0; n < predictors; n++) {
+				final Distribution dist = chain.distributions[n];
+				final int live = liveSlots(dist);
+				final int[] successors = new int[live];
+				final int[] counts = new int[live];
+				for(int i = 0, j = 0; i < dist.size(); i++) {
+					if(dist.getCount(i) > 0) {
+						successors[j] = dist.getId(i);
+						counts[j++] = dist.getCount(i);
+					}
+				}
+				
+				final double[] probabilities = new double[live];
+				final int[] aliases = new int[live];
+				FrozenMarkovChain.buildAliasTable(counts, 0, live, probabilities, aliases);
+				for(int j = 0; j < live; j++) {
+					out.putInt(successors[j]);
+					out.putInt(counts[j]);
+					out.putInt(slot + aliases[j]);
+					out.putFloat((float) probabilities[j]);
+				}
+				slot += live;
+			}
+			
+			final BloomFilter sources = chain.sources;
+			if(sources != null) {
+				final long[] words = sources.toLongArray();
+				out.putInt(FILTER_MAGIC);
+				out.putInt(sources.getHashCount());
+				out.putLong(words.length);
+				for(long word : words)
+					out.putLong(word);
+			}
+			out.flush();
+		}
+	}
+	
+	/**
+	 * Maps the chain in the specified file into memory. Only the token table and
+	 * any source filter are read up front; everything else is sampled straight
+	 * from the mapping.
+	 * 
+	 * @param file
+	 * @param codec
+	 * @return
+	 * @throws IOException
+	 */
+	public static <T> MappedMarkovChain<T> map(Path file, TokenCodec<T> codec) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return new MappedMarkovChain<>(channel, codec);
+		}
+	}
+	
+	/**
+	 * Reads the chain in the specified file into a MarkovChain that can be
+	 * trained further.
+	 * 
+	 * @param file
+	 * @param codec
+	 * @return
+	 * @throws IOException
+	 */
+	public static <T> MarkovChain<T> read(Path file, TokenCodec<T> codec) throws IOException {
+		return map(file, codec).toMarkovChain();
+	}
+	
+	/**
+	 * Hashes the token ids of a Predictor to pick its bucket.
+	 * 
+	 * @param ids
+	 * @return
+	 */
+	static int hash(int[] ids) {
+		long h = 0x9e3779b97f4a7c15L;
+		for(int id : ids)
+			h = (h ^ id) * 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+	
+	/**
+	 * Returns the size in bytes of a Predictor record.
+	 * 
+	 * @param length
+	 * @return
+	 */
+	static int recordSize(int length) {
+		return 4 * (length + 2);
+	}
+	
+	private static int tableCapacity(int predictors) {
+		/* Keep the load factor at or below one half */
+		return Integer.highestOneBit(Math.max(1, predictors) * 2 - 1) << 1;
+	}
+	
+	private static int liveSlots(Distribution dist) {
+		int live = 0;
+		for(int i = 0; i < dist.size(); i++)
+			if(dist.getCount(i) > 0)
+				live++;
+		return live;
+	}
+	
+	/**
+	 * Buffers little-endian values on their way to a channel.
+	 */
+	private static class Output {
+		
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		
+		Output(FileChannel channel) {
+			this.channel = channel;
+		}
+		
+		void putInt(int value) throws IOException {
+			ensure(4);
+			buffer.putInt(value);
+		}
+		
+		void putLong(long value) throws IOException {
+			ensure(8);
+			buffer.putLong(value);
+		}
+		
+		void putFloat(float value) throws IOException {
+			ensure(4);
+			buffer.putFloat(value);
+		}
+		
+		void put(byte[] bytes) throws IOException {
+			for(int pos = 0; pos < bytes.length; ) {
+				ensure(1);
+				final int n = Math.min(buffer.remaining(), bytes.length - pos);
+				buffer.put(bytes, pos, n);
+				pos += n;
+			}
+		}
+		
+		void flush() throws IOException {
+			buffer.flip();
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+		
+		private void ensure(int bytes) throws IOException {
+			if(buffer.remaining() < bytes)
+				flush();
+		}
+		
+	}
+	
+}
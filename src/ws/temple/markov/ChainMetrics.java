@@ -0,0 +1,173 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.concurrent.atomic.LongAdder;
+
+import ws.temple.util.Histogram;
+
+/**
+ * Running counts of what a chain has been asked to do: pairs added, training
+ * batches, and the length and latency of every sequence generated. A chain
+ * only keeps these once an instance is attached with
+ * {@link AbstractMarkovChain#setMetrics(ChainMetrics)}, and the same
+ * instance may be shared by several chains to see their totals. Everything
+ * is recorded with LongAdders, so any number of threads can train and
+ * generate at once without contending here.
+ * 
+ * For the shape of a chain rather than its activity, see
+ * {@link MarkovChain#getStats()}.
+ * 
+ * @author Brian Dixon
+ */
+public class ChainMetrics {
+	
+	private final LongAdder pairs = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final Histogram sequenceLengths = new Histogram();
+	private final Histogram generationNanos = new Histogram();
+	
+	/* When the counts were last reset, for working out rates */
+	private volatile long since = System.nanoTime();
+	
+	/**
+	 * Records pairs added to a chain.
+	 * 
+	 * @param count
+	 */
+	public void recordPairs(long count) {
+		pairs.add(count);
+	}
+	
+	/**
+	 * Records a batch of pairs added to a chain at once. The pairs themselves
+	 * are recorded separately.
+	 */
+	public void recordBatch() {
+		batches.increment();
+	}
+	
+	/**
+	 * Records a generated sequence and how long it took.
+	 * 
+	 * @param tokens
+	 * @param nanos
+	 */
+	public void recordGeneration(int tokens, long nanos) {
+		sequenceLengths.record(tokens);
+		generationNanos.record(Math.max(0, nanos));
+	}
+	
+	/**
+	 * Returns the number of pairs added, one at a time or in batches.
+	 * 
+	 * @return
+	 */
+	public long getPairs() {
+		return pairs.sum();
+	}
+	
+	/**
+	 * Returns the number of batches of pairs added.
+	 * 
+	 * @return
+	 */
+	public long getBatches() {
+		return batches.sum();
+	}
+	
+	/**
+	 * Returns the average number of pairs added per second since the counts
+	 * were last reset.
+	 * 
+	 * @return
+	 */
+	public double getPairsPerSecond() {
+		final double seconds = (System.nanoTime() - since) / 1e9;
+		return seconds <= 0 ? 0.0 : getPairs() / seconds;
+	}
+	
+	/**
+	 * Returns the number of sequences generated.
+	 * 
+	 * @return
+	 */
+	public long getSequences() {
+		return sequenceLengths.getCount();
+	}
+	
+	/**
+	 * Returns the number of tokens generated.
+	 * 
+	 * @return
+	 */
+	public long getTokens() {
+		return sequenceLengths.getSum();
+	}
+	
+	/**
+	 * Returns the histogram of generated sequence lengths, in tokens.
+	 * 
+	 * @return
+	 */
+	public Histogram getSequenceLengths() {
+		return sequenceLengths;
+	}
+	
+	/**
+	 * Returns the histogram of time taken to generate each sequence, in
+	 * nanoseconds.
+	 * 
+	 * @return
+	 */
+	public Histogram getGenerationNanos() {
+		return generationNanos;
+	}
+	
+	/**
+	 * Clears every count.
+	 */
+	public void reset() {
+		pairs.reset();
+		batches.reset();
+		sequenceLengths.reset();
+		generationNanos.reset();
+		since = System.nanoTime();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "pairs=" + getPairs() + " batches=" + getBatches()
+				+ String.format(" pairs/s=%.0f", getPairsPerSecond())
+				+ "\nsequence lengths: " + sequenceLengths
+				+ "\ngeneration nanos: " + generationNanos;
+	}
+	
+}
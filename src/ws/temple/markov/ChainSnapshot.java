@@ -0,0 +1,197 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.random.RandomGenerator;
+
+/**
+ * An immutable, compiled view of a {@link SnapshotMarkovChain} as it was when
+ * the snapshot was published. Each Predictor's distribution is compiled into
+ * an alias table, like a FrozenMarkovChain's, together with the number of
+ * the Predictor that follows each successor, so generating walks from row
+ * to row without any hashing. Nothing in a snapshot ever changes, so any
+ * number of threads may generate from it at once without locking, however
+ * much the chain it came from is being trained.
+ * 
+ * Rows are held in fixed-size chunks, and a snapshot shares every chunk
+ * that nothing changed in with the one published before it.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class ChainSnapshot<T> extends AbstractMarkovChain<T> {
+
+	private static final long serialVersionUID = -5630946818734312574L;
+	
+	/* The number of rows in each chunk, as a power of two */
+	static final int CHUNK_BITS = 10;
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	
+	/* Tokens by id; shared with later snapshots, which only ever append */
+	private final Object[] tokens;
+	
+	/* The compiled row for each Predictor number, or null where nothing can
+	 * follow the Predictor */
+	private final Row[][] chunks;
+	
+	/* The number of Predictors in the snapshot */
+	private final int size;
+	
+	/* Numbers Predictors for next(Predictor); may hold later Predictors too */
+	private final Map<Predictor<T>, Integer> numbers;
+	
+	private final long version;
+	
+	ChainSnapshot(int predictorLength, Object[] tokens, Row[][] chunks, int size, Map<Predictor<T>, Integer> numbers, long version) {
+		super(predictorLength);
+		this.tokens = tokens;
+		this.chunks = chunks;
+		this.size = size;
+		this.numbers = numbers;
+		this.version = version;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#next(ws.temple.markov.Predictor, java.util.random.RandomGenerator)
+	 */
+	@Override
+	public T next(Predictor<T> predictor, RandomGenerator rng) {
+		final Integer n = numbers.get(predictor);
+		if(n == null || n >= size)
+			return null;
+		
+		final Row row = row(n);
+		return row == null ? null : token(row.successors[row.sample(rng)]);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#newCursor(java.util.random.RandomGenerator)
+	 */
+	@Override
+	protected Cursor newCursor(RandomGenerator rng) {
+		return new Cursor(rng) {
+			
+			/* Every sequence starts from the Predictor of nulls, numbered 0 */
+			private int n = size > 0 ? 0 : -1;
+			
+			@Override
+			public T next() {
+				final Row row = n < 0 ? null : row(n);
+				if(row == null)
+					return null;
+				
+				final int slot = row.sample(rng);
+				final int id = row.successors[slot];
+				if(id == TokenDictionary.NULL)
+					return null;
+				n = row.targets[slot];
+				return token(id);
+			}
+			
+		};
+	}
+	
+	private Row row(int n) {
+		final Row[] chunk = chunks[n >>> CHUNK_BITS];
+		return chunk == null ? null : chunk[n & (CHUNK_SIZE - 1)];
+	}
+	
+	@SuppressWarnings("unchecked")
+	private T token(int id) {
+		return (T) tokens[id];
+	}
+	
+	/**
+	 * Returns the number of Predictors in this snapshot, including those that
+	 * nothing follows yet.
+	 * 
+	 * @return
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the number of times the source chain had been published when
+	 * this snapshot was taken, starting from 1.
+	 * 
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * The compiled distribution for one Predictor. Successors whose counts
+	 * were removed are left out entirely.
+	 */
+	static final class Row implements Serializable {
+		
+		private static final long serialVersionUID = 3170466709853150839L;
+		
+		/* Successor token ids */
+		final int[] successors;
+		
+		/* The number of the Predictor reached by each successor, or -1 for
+		 * the end of a path */
+		final int[] targets;
+		
+		/* The probability of keeping a slot rather than taking its alias */
+		final double[] probabilities;
+		
+		/* The slot to use instead when a slot isn't kept */
+		final int[] aliases;
+		
+		Row(int[] successors, int[] counts, int[] targets) {
+			this.successors = successors;
+			this.targets = targets;
+			this.probabilities = new double[successors.length];
+			this.aliases = new int[successors.length];
+			FrozenMarkovChain.buildAliasTable(counts, 0, successors.length, probabilities, aliases);
+		}
+		
+		/**
+		 * Picks a slot in proportion to its count.
+		 * 
+		 * @param rng
+		 * @return
+		 */
+		int sample(RandomGenerator rng) {
+			final double u = rng.nextDouble() * successors.length;
+			final int j = (int) u;
+			return u - j < probabilities[j] ? j : aliases[j];
+		}
+		
+	}
+
+}
@@ -0,0 +1,142 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import ws.temple.util.Histogram;
+
+/**
+ * A snapshot of the shape of a chain: how many Predictors and tokens it
+ * has, how many pairs it was trained on, how many successors its
+ * Predictors have, and roughly how much heap it takes up. Obtained from
+ * {@link MarkovChain#getStats()}, which walks the whole chain, so it's
+ * meant for occasional reporting rather than every request.
+ * 
+ * The heap estimate adds up the arrays and objects the chain keeps,
+ * assuming a 64-bit JVM with compressed references. The tokens themselves
+ * aren't counted, since they're usually shared with the rest of the
+ * program.
+ * 
+ * @author Brian Dixon
+ */
+public class ChainStats {
+	
+	private final int predictors;
+	private final int tokens;
+	private final long pairs;
+	private final Histogram fanout;
+	private final long estimatedBytes;
+	
+	ChainStats(int predictors, int tokens, long pairs, Histogram fanout, long estimatedBytes) {
+		this.predictors = predictors;
+		this.tokens = tokens;
+		this.pairs = pairs;
+		this.fanout = fanout;
+		this.estimatedBytes = estimatedBytes;
+	}
+	
+	/**
+	 * Returns the number of distinct Predictors.
+	 * 
+	 * @return
+	 */
+	public int getPredictors() {
+		return predictors;
+	}
+	
+	/**
+	 * Returns the number of distinct tokens, not counting null.
+	 * 
+	 * @return
+	 */
+	public int getTokens() {
+		return tokens;
+	}
+	
+	/**
+	 * Returns the total count of every pair in the chain.
+	 * 
+	 * @return
+	 */
+	public long getPairs() {
+		return pairs;
+	}
+	
+	/**
+	 * Returns the histogram of the number of distinct successors each
+	 * Predictor has.
+	 * 
+	 * @return
+	 */
+	public Histogram getFanout() {
+		return fanout;
+	}
+	
+	/**
+	 * Returns a rough estimate of the heap taken by the chain, in bytes.
+	 * 
+	 * @return
+	 */
+	public long getEstimatedBytes() {
+		return estimatedBytes;
+	}
+	
+	/**
+	 * Returns the estimated heap per Predictor, in bytes.
+	 * 
+	 * @return
+	 */
+	public double getBytesPerPredictor() {
+		return predictors == 0 ? 0.0 : (double) estimatedBytes / predictors;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "predictors=" + predictors + " tokens=" + tokens + " pairs=" + pairs
+				+ " estimatedBytes=" + estimatedBytes + String.format(" bytes/predictor=%.1f", getBytesPerPredictor())
+				+ "\nfanout: " + fanout;
+	}
+	
+	static long intArray(int length) {
+		return align(16 + 4L * length);
+	}
+	
+	static long longArray(int length) {
+		return align(16 + 8L * length);
+	}
+	
+	static long objectArray(int length) {
+		return align(16 + 4L * length);
+	}
+	
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+	
+}
@@ -0,0 +1,376 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+import ws.temple.util.LongIntHashMap;
+
+/**
+ * A Markov chain over chars that never boxes them. Each distinct char is
+ * given a small code (0 stands for the start or end of a path), a context
+ * of the last few codes is packed into a long, and each context keeps a
+ * dense row of int counts indexed by code. This suits character-level
+ * models, where the alphabet is small and the number of contexts large.
+ * 
+ * The alphabet may hold up to 2^bits - 1 chars, where bits is 64 divided
+ * by the order, capped at 16; an order-3 chain can hold any char, while an
+ * order-8 chain is limited to 255 distinct chars.
+ * 
+ * Primitive training is done through {@link #encode(char)},
+ * {@link #increment(long, int)} and {@link #roll(long, int)}, which is what
+ * {@link ws.temple.markov.feeders.CharFeeder} does; the boxed methods inherited
+ * from AbstractMarkovChain also work, so existing feeders can be used too.
+ * 
+ * @author Brian Dixon
+ */
+public class CharMarkovChain extends AbstractMarkovChain<Character> {
+
+	private static final long serialVersionUID = 2393658745209016016L;
+
+	/* The code standing for the start or end of a path */
+	public static final int END = 0;
+	
+	private static final int INITIAL_STRIDE = 32;
+	
+	/* The number of bits given to each code in a context */
+	protected final int bits;
+	
+	/* Covers the bits used by a context */
+	protected final long mask;
+	
+	/* The highest code the alphabet can hold */
+	protected final int maxCode;
+	
+	/* Codes for each char, or 0 for chars not yet seen */
+	protected final char[] codes = new char[Character.MAX_VALUE + 1];
+	
+	/* Chars for each code */
+	protected char[] alphabet = new char[INITIAL_STRIDE];
+	
+	/* The number of codes assigned, including END */
+	protected int alphabetSize = 1;
+	
+	/* Maps contexts to their row numbers */
+	protected final LongIntHashMap rows = new LongIntHashMap();
+	
+	/* The number of rows */
+	protected int size;
+	
+	/* Row r's count for code c is at counts[r * stride + c] */
+	protected int stride = INITIAL_STRIDE;
+	protected int[] counts = new int[16 * INITIAL_STRIDE];
+	
+	/* The sum of each row's counts */
+	protected int[] totals = new int[16];
+	
+	/**
+	 * Constructs an empty chain whose contexts are the specified number of chars.
+	 * 
+	 * @param order
+	 */
+	public CharMarkovChain(int order) {
+		super(order);
+		if(order > 64)
+			throw new IllegalArgumentException("Order must be 64 or less");
+		this.bits = order == 0 ? 16 : Math.min(16, 64 / order);
+		this.mask = bits * order >= 64 ? -1L : (1L << (bits * order)) - 1;
+		this.maxCode = (1 << bits) - 1;
+	}
+	
+	/**
+	 * Returns the code for the specified char, adding it to the alphabet if needed.
+	 * 
+	 * @param c
+	 * @return
+	 */
+	public int encode(char c) {
+		final int code = codes[c];
+		if(code != END)
+			return code;
+		
+		if(alphabetSize > maxCode)
+			throw new IllegalStateException("Alphabet is full for an order-" + predictorLength + " chain");
+		if(alphabetSize == alphabet.length)
+			alphabet = Arrays.copyOf(alphabet, alphabetSize * 2);
+		if(alphabetSize == stride)
+			widen(Math.min(stride * 2, maxCode + 1));
+		
+		alphabet[alphabetSize] = c;
+		codes[c] = (char) alphabetSize;
+		return alphabetSize++;
+	}
+	
+	/**
+	 * Returns the code for the specified char, or -1 if it isn't in the alphabet.
+	 * 
+	 * @param c
+	 * @return
+	 */
+	public int lookup(char c) {
+		final int code = codes[c];
+		return code == END ? -1 : code;
+	}
+	
+	/**
+	 * Returns the char with the specified code, which must not be END.
+	 * 
+	 * @param code
+	 * @return
+	 */
+	public char decode(int code) {
+		return alphabet[code];
+	}
+	
+	/**
+	 * Returns the context that follows the specified one once the given code is
+	 * added to it. The context at the start of a path is 0.
+	 * 
+	 * @param context
+	 * @param code
+	 * @return
+	 */
+	public long roll(long context, int code) {
+		return ((context << bits) | code) & mask;
+	}
+	
+	/**
+	 * Records a single occurrence of the specified code following a context.
+	 * 
+	 * @param context
+	 * @param code
+	 */
+	public void increment(long context, int code) {
+		add(context, code, 1);
+	}
+	
+	/**
+	 * Records the specified number of occurrences of a code following a context.
+	 * 
+	 * @param context
+	 * @param code
+	 * @param count
+	 */
+	public void add(long context, int code, int count) {
+		if(count < 0)
+			throw new IllegalArgumentException("Count must not be negative");
+		
+		int row = rows.get(context);
+		if(row < 0) {
+			row = size++;
+			if(row == totals.length) {
+				totals = Arrays.copyOf(totals, row * 2);
+				counts = Arrays.copyOf(counts, row * 2 * stride);
+			}
+			rows.put(context, row);
+		}
+		counts[row * stride + code] += count;
+		totals[row] += count;
+		
+		final ChainMetrics metrics = this.metrics;
+		if(metrics != null)
+			metrics.recordPairs(count);
+	}
+	
+	/**
+	 * Returns a random code to follow the specified context, weighted by count,
+	 * or END if nothing follows it.
+	 * 
+	 * @param context
+	 * @param rng
+	 * @return
+	 */
+	public int sample(long context, RandomGenerator rng) {
+		final int row = rows.get(context);
+		if(row < 0 || totals[row] == 0)
+			return END;
+		
+		/* Rows are only as wide as the alphabet, so a linear scan is as
+		 * quick as anything fancier */
+		int value = rng.nextInt(totals[row]);
+		final int base = row * stride;
+		int code = 0;
+		while((value -= counts[base + code]) >= 0)
+			code++;
+		return code;
+	}
+	
+	/**
+	 * Returns the number of times the specified code has followed a context.
+	 * 
+	 * @param context
+	 * @param code
+	 * @return
+	 */
+	public int count(long context, int code) {
+		final int row = rows.get(context);
+		return row < 0 ? 0 : counts[row * stride + code];
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#addPair(ws.temple.markov.Predictor, java.lang.Object)
+	 */
+	@Override
+	public void addPair(Predictor<Character> predictor, Character next) {
+		if(predictor.size() != predictorLength)
+			throw new IllegalArgumentException("Predictor length does not match chain");
+		
+		long context = 0;
+		for(int i = 0; i < predictorLength; i++) {
+			final Character c = predictor.get(i);
+			context = roll(context, c == null ? END : encode(c));
+		}
+		increment(context, next == null ? END : encode(next));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#next(ws.temple.markov.Predictor, java.util.random.RandomGenerator)
+	 */
+	@Override
+	public Character next(Predictor<Character> predictor, RandomGenerator rng) {
+		long context = 0;
+		for(int i = 0; i < predictorLength; i++) {
+			final Character c = predictor.get(i);
+			final int code = c == null ? END : lookup(c);
+			if(code < 0)
+				return null;
+			context = roll(context, code);
+		}
+		
+		final int code = sample(context, rng);
+		return code == END ? null : alphabet[code];
+	}
+	
+	/**
+	 * Generates a sequence of at most maxLength chars into the specified buffer,
+	 * starting at the given offset, and returns the number of chars written.
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param maxLength
+	 * @param rng
+	 * @return
+	 */
+	public int generateChars(char[] buffer, int offset, int maxLength, RandomGenerator rng) {
+		final GenerationEvent event = new GenerationEvent();
+		event.begin();
+		final long start = beginGeneration();
+		
+		long context = 0;
+		int length = 0;
+		int code;
+		while(length < maxLength && (code = sample(context, rng)) != END) {
+			buffer[offset + length++] = alphabet[code];
+			context = roll(context, code);
+		}
+		
+		endGeneration(event, start, length);
+		return length;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#generateString(int, java.lang.String, java.lang.Appendable, java.util.random.RandomGenerator)
+	 */
+	@Override
+	public int generateString(int maxLength, String glue, Appendable out, RandomGenerator rng) throws IOException {
+		final GenerationEvent event = new GenerationEvent();
+		event.begin();
+		final long start = beginGeneration();
+		
+		long context = 0;
+		int length = 0;
+		int code;
+		while(length < maxLength && (code = sample(context, rng)) != END) {
+			if(glue != null && length > 0)
+				out.append(glue);
+			out.append(alphabet[code]);
+			context = roll(context, code);
+			length++;
+		}
+		
+		endGeneration(event, start, length);
+		return length;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#newCursor(java.util.random.RandomGenerator)
+	 */
+	@Override
+	protected Cursor newCursor(RandomGenerator rng) {
+		return new Cursor(rng) {
+			
+			private long context;
+			
+			@Override
+			public Character next() {
+				final int code = sample(context, rng);
+				if(code == END)
+					return null;
+				context = roll(context, code);
+				return alphabet[code];
+			}
+			
+		};
+	}
+	
+	/**
+	 * Returns the number of distinct contexts in this chain.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the number of chars in the alphabet, not counting END.
+	 * 
+	 * @return
+	 */
+	public int getAlphabetSize() {
+		return alphabetSize - 1;
+	}
+	
+	/**
+	 * Spreads the count rows out to make room for more codes.
+	 * 
+	 * @param newStride
+	 */
+	private void widen(int newStride) {
+		final int[] widened = new int[totals.length * newStride];
+		for(int row = 0; row < size; row++)
+			System.arraycopy(counts, row * stride, widened, row * newStride, stride);
+		counts = widened;
+		stride = newStride;
+	}
+	
+}
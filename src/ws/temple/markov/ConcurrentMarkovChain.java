@@ -0,0 +1,185 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.random.RandomGenerator;
+
+import ws.temple.util.BloomFilter;
+
+/**
+ * A Markov chain that any number of threads can train at once, for instance
+ * with one SequentialFeeder per thread. Predictors are kept in a
+ * ConcurrentHashMap, and each successor count is a LongAdder, so threads
+ * only contend when they add the same pair at the same moment, and even
+ * then without blocking.
+ * 
+ * Sampling from this chain walks every successor of the Predictor, so it's
+ * intended for training; once that's done, {@link #toMarkovChain()} or
+ * {@link #freeze()} produce a chain suited to generation.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class ConcurrentMarkovChain<T> extends AbstractMarkovChain<T> {
+
+	private static final long serialVersionUID = 8850154237785960264L;
+
+	/* ConcurrentHashMap doesn't allow null keys, so the null token is
+	 * stored as this instead */
+	private enum NullToken { INSTANCE }
+	
+	/* Matches a Predictor to the counts for each possible token to follow it */
+	protected final ConcurrentHashMap<Predictor<T>, ConcurrentHashMap<Object, LongAdder>> top = new ConcurrentHashMap<>();
+	
+	/**
+	 * Constructs an empty ConcurrentMarkovChain accepting Predictors of the
+	 * specified length.
+	 * 
+	 * @param predictorLength
+	 */
+	public ConcurrentMarkovChain(int predictorLength) {
+		super(predictorLength);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#addPair(ws.temple.markov.Predictor, java.lang.Object)
+	 */
+	@Override
+	public void addPair(Predictor<T> predictor, T next) {
+		addPair(predictor, next, 1);
+	}
+	
+	/**
+	 * Adds the specified number of occurrences of a predictor/next-token pair to
+	 * this Markov chain.
+	 * 
+	 * @param predictor
+	 * @param next
+	 * @param count
+	 */
+	public void addPair(Predictor<T> predictor, T next, long count) {
+		if(predictor.size() != predictorLength)
+			throw new IllegalArgumentException("Predictor length does not match chain");
+		if(count < 0)
+			throw new IllegalArgumentException("Count must not be negative");
+		
+		/* Plain gets are lock-free, so they're tried before falling back to
+		 * computeIfAbsent(), which may lock a bin */
+		ConcurrentHashMap<Object, LongAdder> distribution = top.get(predictor);
+		if(distribution == null)
+			distribution = top.computeIfAbsent(predictor, p -> new ConcurrentHashMap<>());
+		
+		final Object key = next == null ? NullToken.INSTANCE : next;
+		LongAdder counter = distribution.get(key);
+		if(counter == null)
+			counter = distribution.computeIfAbsent(key, k -> new LongAdder());
+		counter.add(count);
+		
+		final ChainMetrics metrics = this.metrics;
+		if(metrics != null)
+			metrics.recordPairs(count);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#next(ws.temple.markov.Predictor, java.util.random.RandomGenerator)
+	 */
+	@Override
+	public T next(Predictor<T> predictor, RandomGenerator rng) {
+		final Map<Object, LongAdder> distribution = top.get(predictor);
+		if(distribution == null)
+			return null;
+		
+		long total = 0;
+		for(LongAdder counter : distribution.values())
+			total += counter.sum();
+		if(total == 0)
+			return null;
+		
+		/* Other threads may be adding as we go, so the last successor seen
+		 * is used if the counts have moved on since they were totalled */
+		long value = rng.nextLong(total);
+		Object token = null;
+		for(Entry<Object, LongAdder> entry : distribution.entrySet()) {
+			token = entry.getKey();
+			value -= entry.getValue().sum();
+			if(value < 0)
+				break;
+		}
+		return unwrap(token);
+	}
+	
+	/**
+	 * Returns the number of distinct Predictors in this chain.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return top.size();
+	}
+	
+	/**
+	 * Copies the current counts, and any source filter, into a new MarkovChain.
+	 * Pairs added while the copy is being made may or may not be included.
+	 * 
+	 * @return
+	 */
+	public MarkovChain<T> toMarkovChain() {
+		final MarkovChain<T> chain = new MarkovChain<>(predictorLength);
+		final BloomFilter sources = this.sources;
+		if(sources != null)
+			chain.setSourceFilter(new BloomFilter(sources));
+		for(Entry<Predictor<T>, ConcurrentHashMap<Object, LongAdder>> topEntry : top.entrySet()) {
+			for(Entry<Object, LongAdder> distEntry : topEntry.getValue().entrySet()) {
+				final long count = distEntry.getValue().sum();
+				if(count > 0)
+					chain.addPair(topEntry.getKey(), unwrap(distEntry.getKey()), Math.toIntExact(count));
+			}
+		}
+		return chain;
+	}
+	
+	/**
+	 * Returns a read-only copy of this chain compiled for O(1) sampling.
+	 * 
+	 * @return
+	 */
+	public FrozenMarkovChain<T> freeze() {
+		return toMarkovChain().freeze();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> T unwrap(Object token) {
+		return token == NullToken.INSTANCE ? null : (T) token;
+	}
+	
+}
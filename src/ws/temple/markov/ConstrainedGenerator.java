@@ -0,0 +1,410 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+/**
+ * Generates sequences from a MarkovChain that always satisfy a set of
+ * constraints: a length range, a prefix the sequence must start with, and a
+ * suffix it must end with. Rather than generating freely and throwing away
+ * whatever doesn't fit, every draw produces a valid sequence.
+ * 
+ * When constructed, the generator works backwards from the longest allowed
+ * length to find, for every Predictor, length so far, and amount of the
+ * suffix already matched, the probability that the chain would go on to
+ * produce a valid ending from there. Each token is then drawn only from the
+ * successors with a chance of reaching a valid ending, weighted by that
+ * chance. The results therefore follow exactly the distribution that
+ * rejection sampling would give, just without the rejections.
+ * 
+ * The table holds a double for every combination of Predictor, allowed
+ * length and suffix position, and building it takes time in proportion to
+ * the number of pairs in the chain times the same factors, so it's meant
+ * to be built once and drawn from many times. The prefix is matched token
+ * for token, so it has to be something the chain can generate; the suffix
+ * may overlap it. Instances are obtained from
+ * {@link MarkovChain#constrain(int, int, List, List)}. Later changes to the
+ * chain aren't reflected, and any number of threads may generate from a
+ * generator at once.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class ConstrainedGenerator<T> {
+	
+	/* The chain this was built from, whose generator is used by calls that
+	 * don't supply their own */
+	protected final AbstractMarkovChain<T> chain;
+	
+	/* Tokens by id, copied from the chain's dictionary */
+	protected final Object[] tokens;
+	
+	/* The successors of Predictor n occupy [offsets[n], offsets[n + 1]) in
+	 * the arrays below */
+	protected final int[] offsets;
+	
+	/* Successor token ids, back to back */
+	protected final int[] successors;
+	
+	/* The chance of each successor following its Predictor */
+	protected final double[] probabilities;
+	
+	/* The Predictor reached by appending each successor, or -1 for the null
+	 * token and for Predictors the chain doesn't have */
+	protected final int[] targets;
+	
+	/* Suffix token ids, and the KMP failure function over them */
+	protected final int[] suffix;
+	protected final int[] failure;
+	
+	protected final int minLength;
+	protected final int maxLength;
+	
+	/* The prefix, and the Predictor, length and suffix position it leaves
+	 * the sequence at; start is -1 if the chain can't generate the prefix */
+	protected final List<T> prefix;
+	protected final int start;
+	protected final int startMatched;
+	
+	/* The chance of the chain generating the prefix */
+	protected final double prefixProbability;
+	
+	/* viable[length - prefix length][n * (suffix length + 1) + matched] holds
+	 * the chance of finishing validly from that point */
+	protected final double[][] viable;
+	
+	/**
+	 * Builds the table of viable continuations for the specified chain and
+	 * constraints.
+	 * 
+	 * @param chain
+	 * @param minLength
+	 * @param maxLength
+	 * @param prefix
+	 * @param suffix
+	 */
+	@SuppressWarnings("unchecked")
+	ConstrainedGenerator(MarkovChain<T> chain, int minLength, int maxLength, List<? extends T> prefix, List<? extends T> suffix) {
+		if(minLength < 0 || maxLength < minLength)
+			throw new IllegalArgumentException("Invalid length range: " + minLength + " to " + maxLength);
+		
+		final TokenDictionary<T> dictionary = chain.dictionary;
+		final PredictorIndex<T> index = chain.index;
+		final int length = chain.predictorLength;
+		
+		this.chain = chain;
+		this.minLength = minLength;
+		this.maxLength = maxLength;
+		this.prefix = new ArrayList<>(prefix);
+		this.tokens = new Object[dictionary.size()];
+		for(int id = 1; id < tokens.length; id++)
+			tokens[id] = dictionary.get(id);
+		
+		/* Flatten the chain, working out where each successor leads */
+		final int predictors = index.size();
+		int slots = 0;
+		for(int n = 0; n < predictors; n++)
+			slots += chain.distributions[n].size();
+		
+		this.offsets = new int[predictors + 1];
+		this.successors = new int[slots];
+		this.probabilities = new double[slots];
+		this.targets = new int[slots];
+		
+		int pos = 0;
+		for(int n = 0; n < predictors; n++) {
+			final Distribution dist = chain.distributions[n];
+			offsets[n] = pos;
+			final Predictor<T> predictor = index.isPacked() ? null : index.getPredictor(n);
+			
+			for(int i = 0; i < dist.size(); i++) {
+				final int id = dist.getId(i);
+				if(dist.getCount(i) == 0)
+					continue;
+				
+				successors[pos] = id;
+				probabilities[pos] = (double) dist.getCount(i) / dist.getTotal();
+				if(id == TokenDictionary.NULL)
+					targets[pos] = -1;
+				else if(predictor == null)
+					targets[pos] = index.get(index.roll(index.getKey(n), id));
+				else {
+					final T[] elements = (T[]) new Object[length];
+					if(length > 0) {
+						System.arraycopy(predictor.elements, 1, elements, 0, length - 1);
+						elements[length - 1] = dictionary.get(id);
+					}
+					targets[pos] = index.get(new Predictor<>(elements));
+				}
+				pos++;
+			}
+		}
+		offsets[predictors] = pos;
+		
+		/* A suffix token the chain has never seen can't be generated */
+		this.suffix = new int[suffix.size()];
+		boolean possible = true;
+		for(int i = 0; i < this.suffix.length; i++) {
+			this.suffix[i] = dictionary.lookup(suffix.get(i));
+			possible &= this.suffix[i] > TokenDictionary.NULL;
+		}
+		this.failure = failureFunction(this.suffix);
+		
+		/* Follow the prefix from the start of a path */
+		int n = index.get(new Predictor<>((T[]) new Object[length]));
+		int matched = 0;
+		double chance = 1.0;
+		for(int i = 0; i < this.prefix.size() && n >= 0; i++) {
+			final int id = dictionary.lookup(this.prefix.get(i));
+			final int slot = id > TokenDictionary.NULL ? slotOf(n, id) : -1;
+			if(slot < 0) {
+				n = -1;
+				break;
+			}
+			chance *= probabilities[slot];
+			matched = advance(matched, id);
+			n = targets[slot];
+		}
+		
+		final int first = this.prefix.size();
+		this.start = possible && first <= maxLength ? n : -1;
+		this.startMatched = matched;
+		this.prefixProbability = start < 0 ? 0.0 : chance;
+		this.viable = start < 0 ? new double[0][] : buildTable(predictors, first);
+	}
+	
+	/**
+	 * Fills in the chance of finishing validly from every state, working back
+	 * from the longest allowed length.
+	 * 
+	 * @param predictors
+	 * @param first
+	 * @return
+	 */
+	private double[][] buildTable(int predictors, int first) {
+		final int positions = suffix.length + 1;
+		final double[][] table = new double[maxLength - first + 1][];
+		
+		for(int length = maxLength; length >= first; length--) {
+			final double[] layer = new double[predictors * positions];
+			final double[] after = length < maxLength ? table[length - first + 1] : null;
+			final boolean canEnd = length >= minLength;
+			
+			for(int n = 0; n < predictors; n++) {
+				for(int matched = 0; matched < positions; matched++) {
+					double total = 0.0;
+					for(int slot = offsets[n]; slot < offsets[n + 1]; slot++) {
+						final int target = targets[slot];
+						if(successors[slot] == TokenDictionary.NULL) {
+							if(canEnd && matched == suffix.length)
+								total += probabilities[slot];
+						}
+						else if(after != null && target >= 0)
+							total += probabilities[slot] * after[target * positions + advance(matched, successors[slot])];
+					}
+					layer[n * positions + matched] = total;
+				}
+			}
+			table[length - first] = layer;
+		}
+		return table;
+	}
+	
+	/**
+	 * Returns true if the chain can generate any sequence meeting the
+	 * constraints.
+	 * 
+	 * @return
+	 */
+	public boolean isSatisfiable() {
+		return start >= 0 && viable[0][start * (suffix.length + 1) + startMatched] > 0.0;
+	}
+	
+	/**
+	 * Returns the chance that an unconstrained sequence from the chain would
+	 * have met the constraints; the reciprocal is the number of tries that
+	 * rejection sampling would need on average.
+	 * 
+	 * @return
+	 */
+	public double getAcceptanceProbability() {
+		return start < 0 ? 0.0 : prefixProbability * viable[0][start * (suffix.length + 1) + startMatched];
+	}
+	
+	/**
+	 * Generates a sequence meeting the constraints, drawing from the chain's
+	 * generator, or returns null if there is no such sequence.
+	 * 
+	 * @return
+	 * @see AbstractMarkovChain#setRandom(RandomGenerator)
+	 */
+	public List<T> generateSequence() {
+		return generateSequence(chain.random());
+	}
+	
+	/**
+	 * Generates a sequence meeting the constraints, drawing from the specified
+	 * generator, or returns null if there is no such sequence.
+	 * 
+	 * @param rng
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> generateSequence(RandomGenerator rng) {
+		if(!isSatisfiable())
+			return null;
+		
+		final int positions = suffix.length + 1;
+		final List<T> seq = new ArrayList<>(prefix);
+		int n = start;
+		int matched = startMatched;
+		
+		for(int length = prefix.size(); ; length++) {
+			final double[] after = length < maxLength ? viable[length - prefix.size() + 1] : null;
+			final boolean canEnd = length >= minLength && matched == suffix.length;
+			final double total = viable[length - prefix.size()][n * positions + matched];
+			
+			/* Walk the successors' shares of the remaining chance until the
+			 * draw is used up; rounding can leave a sliver at the end, in
+			 * which case the last viable successor is taken */
+			double remaining = rng.nextDouble() * total;
+			int chosen = -1;
+			for(int slot = offsets[n]; slot < offsets[n + 1]; slot++) {
+				final double weight;
+				if(successors[slot] == TokenDictionary.NULL)
+					weight = canEnd ? probabilities[slot] : 0.0;
+				else if(after != null && targets[slot] >= 0)
+					weight = probabilities[slot] * after[targets[slot] * positions + advance(matched, successors[slot])];
+				else
+					weight = 0.0;
+				
+				if(weight > 0.0) {
+					chosen = slot;
+					if((remaining -= weight) < 0.0)
+						break;
+				}
+			}
+			
+			final int id = successors[chosen];
+			if(id == TokenDictionary.NULL)
+				return seq;
+			seq.add((T) tokens[id]);
+			matched = advance(matched, id);
+			n = targets[chosen];
+		}
+	}
+	
+	/**
+	 * Generates a string meeting the constraints, inserting the specified
+	 * string between tokens and drawing from the chain's generator, or
+	 * returns null if there is no such string.
+	 * 
+	 * @param glue
+	 * @return
+	 */
+	public String generateString(String glue) {
+		return generateString(glue, chain.random());
+	}
+	
+	/**
+	 * Generates a string meeting the constraints, inserting the specified
+	 * string between tokens and drawing from the specified generator, or
+	 * returns null if there is no such string.
+	 * 
+	 * @param glue
+	 * @param rng
+	 * @return
+	 */
+	public String generateString(String glue, RandomGenerator rng) {
+		final List<T> seq = generateSequence(rng);
+		if(seq == null)
+			return null;
+		
+		final StringBuilder sb = new StringBuilder();
+		for(T token : seq) {
+			if(glue != null && sb.length() > 0)
+				sb.append(glue);
+			sb.append(token);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Returns the slot of the specified successor of Predictor n, or -1.
+	 * 
+	 * @param n
+	 * @param id
+	 * @return
+	 */
+	private int slotOf(int n, int id) {
+		for(int slot = offsets[n]; slot < offsets[n + 1]; slot++)
+			if(successors[slot] == id)
+				return slot;
+		return -1;
+	}
+	
+	/**
+	 * Returns how much of the suffix is matched after appending a token id,
+	 * given how much was matched before.
+	 * 
+	 * @param matched
+	 * @param id
+	 * @return
+	 */
+	private int advance(int matched, int id) {
+		if(suffix.length == 0)
+			return 0;
+		if(matched == suffix.length)
+			matched = failure[matched - 1];
+		while(matched > 0 && suffix[matched] != id)
+			matched = failure[matched - 1];
+		return suffix[matched] == id ? matched + 1 : 0;
+	}
+	
+	/**
+	 * Computes the KMP failure function: for each prefix of the pattern, the
+	 * length of its longest proper prefix that is also a suffix.
+	 * 
+	 * @param pattern
+	 * @return
+	 */
+	private static int[] failureFunction(int[] pattern) {
+		final int[] failure = new int[pattern.length];
+		for(int i = 1, k = 0; i < pattern.length; i++) {
+			while(k > 0 && pattern[i] != pattern[k])
+				k = failure[k - 1];
+			if(pattern[i] == pattern[k])
+				k++;
+			failure[i] = k;
+		}
+		return failure;
+	}
+	
+}
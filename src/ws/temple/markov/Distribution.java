@@ -0,0 +1,341 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+import ws.temple.util.LongIntHashMap;
+
+/**
+ * The set of tokens that may follow a single Predictor, stored as exact
+ * integer counts against token ids from a {@link TokenDictionary}. The
+ * cumulative table used for sampling is only built when it's needed, and
+ * is thrown away again whenever the counts change.
+ *
+ * @author Brian Dixon
+ */
+public class Distribution implements Serializable {
+
+	private static final long serialVersionUID = -3263581209345185741L;
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	/* Distributions with more successors than this find slots through a hash
+	 * table rather than a linear scan */
+	private static final int SCAN_LIMIT = 8;
+
+	/* Successor token ids, in the order they were first seen */
+	protected int[] ids = new int[INITIAL_CAPACITY];
+
+	/* The number of times each successor has been seen, parallel to ids */
+	protected int[] counts = new int[INITIAL_CAPACITY];
+
+	/* The number of distinct successors */
+	protected int size;
+
+	/* The sum of all counts */
+	protected int total;
+
+	/* Maps each successor id to its slot; only created once the
+	 * distribution grows past SCAN_LIMIT */
+	protected LongIntHashMap slots;
+
+	/* Running totals of counts, built on demand; null when stale. This is
+	 * volatile so that a table built by one sampling thread is safely
+	 * visible to the others. */
+	protected transient volatile int[] cumulative;
+
+	/**
+	 * Records a single occurrence of the specified token id.
+	 *
+	 * @param id
+	 */
+	public void add(int id) {
+		add(id, 1);
+	}
+
+	/**
+	 * Records the specified number of occurrences of a token id.
+	 *
+	 * @param id
+	 * @param count
+	 */
+	public void add(int id, int count) {
+		if(count < 0)
+			throw new IllegalArgumentException("Count must not be negative");
+
+		final int slot = slotOf(id);
+		if(slot >= 0)
+			adjust(slot, count);
+		else {
+			if(size == ids.length)
+				grow(size * 2);
+			ids[size] = id;
+			if(slots != null)
+				slots.put(id, size);
+			else if(size == SCAN_LIMIT) {
+				slots = new LongIntHashMap(size * 2);
+				for(int i = 0; i <= size; i++)
+					slots.put(ids[i], i);
+			}
+			adjust(size++, count);
+		}
+	}
+
+	/**
+	 * Removes up to the specified number of occurrences of a token id,
+	 * returning the number actually removed. The id keeps its slot even if
+	 * its count drops to zero, so it will simply never be sampled.
+	 *
+	 * @param id
+	 * @param count
+	 * @return
+	 */
+	public int remove(int id, int count) {
+		if(count < 0)
+			throw new IllegalArgumentException("Count must not be negative");
+
+		final int slot = slotOf(id);
+		if(slot < 0)
+			return 0;
+		final int removed = Math.min(count, counts[slot]);
+		adjust(slot, -removed);
+		return removed;
+	}
+
+	/**
+	 * Returns the slot holding the specified id, or -1 if it has none.
+	 *
+	 * @param id
+	 * @return
+	 */
+	protected int slotOf(int id) {
+		if(slots != null)
+			return slots.get(id);
+		for(int i = 0; i < size; i++)
+			if(ids[i] == id)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Changes the count in the specified slot by the given amount. Subclasses
+	 * that keep their own sampling structures should override this to update
+	 * them, rather than letting the cumulative table go stale.
+	 *
+	 * @param slot
+	 * @param delta
+	 */
+	protected void adjust(int slot, int delta) {
+		counts[slot] += delta;
+		total += delta;
+		if(cumulative != null)
+			cumulative = null;
+	}
+
+	/**
+	 * Removes every successor seen fewer times than the threshold, along with
+	 * the first few seen exactly that many times, and returns the number of
+	 * successors removed. Successors whose counts have dropped to zero are
+	 * always removed. Unlike remove(), this frees their slots.
+	 * 
+	 * @param threshold
+	 * @param ties
+	 * @return
+	 */
+	public int prune(int threshold, int ties) {
+		int kept = 0;
+		for(int i = 0; i < size; i++) {
+			final int count = counts[i];
+			if(count > threshold || (count == threshold && count > 0 && ties-- <= 0)) {
+				ids[kept] = ids[i];
+				counts[kept++] = count;
+			}
+			else
+				total -= count;
+		}
+		
+		final int removed = size - kept;
+		if(removed == 0)
+			return 0;
+		
+		Arrays.fill(ids, kept, size, 0);
+		Arrays.fill(counts, kept, size, 0);
+		size = kept;
+		if(size > SCAN_LIMIT) {
+			slots.clear();
+			for(int i = 0; i < size; i++)
+				slots.put(ids[i], i);
+		}
+		else
+			slots = null;
+		rebuild();
+		return removed;
+	}
+	
+	/**
+	 * Called after the slots have been rearranged. Subclasses that keep their
+	 * own sampling structures should override this to rebuild them.
+	 */
+	protected void rebuild() {
+		cumulative = null;
+	}
+	
+	/**
+	 * Resizes the slot arrays to the specified capacity.
+	 *
+	 * @param capacity
+	 */
+	protected void grow(int capacity) {
+		ids = Arrays.copyOf(ids, capacity);
+		counts = Arrays.copyOf(counts, capacity);
+	}
+
+	/**
+	 * Returns the number of times the specified token id has been seen.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public int count(int id) {
+		final int slot = slotOf(id);
+		return slot < 0 ? 0 : counts[slot];
+	}
+
+	/**
+	 * Returns a random token id, weighted by its count, or -1 if the
+	 * distribution is empty.
+	 *
+	 * @param rng
+	 * @return
+	 */
+	public int sample(RandomGenerator rng) {
+		if(total == 0)
+			return -1;
+		return ids[find(rng.nextInt(total))];
+	}
+
+	/**
+	 * Returns the slot whose range of cumulative counts contains the
+	 * specified value, which must be in [0, total).
+	 *
+	 * @param value
+	 * @return
+	 */
+	protected int find(int value) {
+		int[] cumulative = this.cumulative;
+		if(cumulative == null)
+			this.cumulative = cumulative = buildCumulative();
+
+		/* Find the first slot whose running total exceeds the value */
+		int lo = 0;
+		int hi = size - 1;
+		while(lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if(cumulative[mid] > value)
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
+	}
+
+	private int[] buildCumulative() {
+		final int[] result = new int[size];
+		int accum = 0;
+		for(int i = 0; i < size; i++)
+			result[i] = accum += counts[i];
+		return result;
+	}
+
+	/**
+	 * Returns the successor token id in the specified slot.
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public int getId(int slot) {
+		return ids[slot];
+	}
+
+	/**
+	 * Returns the count for the successor in the specified slot.
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public int getCount(int slot) {
+		return counts[slot];
+	}
+
+	/**
+	 * Returns the number of distinct successors in the distribution.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the total number of occurrences recorded.
+	 *
+	 * @return
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns a rough estimate of the heap space taken by the distribution,
+	 * in bytes.
+	 * 
+	 * @return
+	 */
+	long estimateBytes() {
+		final int[] cumulative = this.cumulative;
+		long bytes = 40 + ChainStats.intArray(ids.length) + ChainStats.intArray(counts.length);
+		if(slots != null)
+			bytes += slots.estimateBytes();
+		if(cumulative != null)
+			bytes += ChainStats.intArray(cumulative.length);
+		return bytes;
+	}
+	
+	/**
+	 * Returns the probability of the specified token id following the
+	 * owning Predictor.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public double probability(int id) {
+		return total == 0 ? 0.0 : (double) count(id) / total;
+	}
+
+}
@@ -0,0 +1,130 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * A Distribution that keeps its counts in a Fenwick tree (binary indexed
+ * tree), so that adding, removing and sampling are all O(log n) in the
+ * number of successors. Unlike the base class, nothing has to be rebuilt
+ * after a change, which makes this the better choice for chains that are
+ * trained and sampled at the same time.
+ * 
+ * @author Brian Dixon
+ */
+public class FenwickDistribution extends Distribution {
+
+	private static final long serialVersionUID = 4118046420919734257L;
+
+	/* One-based Fenwick tree over counts; tree[i] holds the sum of the
+	 * lowbit(i) counts ending at slot i - 1 */
+	protected int[] tree = new int[counts.length + 1];
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.Distribution#adjust(int, int)
+	 */
+	@Override
+	protected void adjust(int slot, int delta) {
+		counts[slot] += delta;
+		total += delta;
+		for(int i = slot + 1; i < tree.length; i += i & -i)
+			tree[i] += delta;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.Distribution#grow(int)
+	 */
+	@Override
+	protected void grow(int capacity) {
+		super.grow(capacity);
+		
+		/* The new entries cover ranges that include existing slots, so the
+		 * tree is rebuilt rather than patched */
+		rebuild();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.Distribution#rebuild()
+	 */
+	@Override
+	protected void rebuild() {
+		/* Each entry is added into its parent in turn, which builds the
+		 * whole tree in linear time */
+		final int capacity = counts.length;
+		tree = new int[capacity + 1];
+		for(int i = 1; i <= capacity; i++) {
+			if(i <= size)
+				tree[i] += counts[i - 1];
+			final int parent = i + (i & -i);
+			if(parent <= capacity)
+				tree[parent] += tree[i];
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.Distribution#find(int)
+	 */
+	@Override
+	protected int find(int value) {
+		/* Walk down the tree, skipping every block whose sum doesn't
+		 * exceed what's left of the value */
+		int pos = 0;
+		for(int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+			final int next = pos + step;
+			if(next < tree.length && tree[next] <= value) {
+				pos = next;
+				value -= tree[next];
+			}
+		}
+		return pos;
+	}
+	
+	/**
+	 * Returns the sum of the counts in the slots before the specified one.
+	 * 
+	 * @param slot
+	 * @return
+	 */
+	public int prefixSum(int slot) {
+		int sum = 0;
+		for(int i = slot; i > 0; i -= i & -i)
+			sum += tree[i];
+		return sum;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.Distribution#estimateBytes()
+	 */
+	@Override
+	long estimateBytes() {
+		return super.estimateBytes() + ChainStats.intArray(tree.length);
+	}
+
+}
@@ -0,0 +1,245 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.random.RandomGenerator;
+
+import ws.temple.util.BloomFilter;
+
+/**
+ * A read-only copy of a MarkovChain, compiled for generation. Each Predictor's
+ * distribution is stored as an alias table (Vose's method) in flat primitive
+ * arrays, so picking a token costs O(1) regardless of how many tokens can
+ * follow the Predictor, and allocates nothing. Since nothing in it ever
+ * changes, any number of threads may generate from it at once.
+ * 
+ * Instances are obtained from {@link MarkovChain#freeze()}.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class FrozenMarkovChain<T> extends AbstractMarkovChain<T> {
+
+	private static final long serialVersionUID = -2871795325468207651L;
+
+	/* A private copy of the source chain's token ids */
+	protected final TokenDictionary<T> dictionary;
+	
+	/* A private copy of the source chain's Predictor numbering */
+	protected final PredictorIndex<T> index;
+	
+	/* The successors for Predictor n occupy [offsets[n], offsets[n + 1]) in
+	 * the arrays below */
+	protected final int[] offsets;
+	
+	/* Successor token ids for every Predictor, back to back */
+	protected final int[] successors;
+	
+	/* The probability of keeping a slot rather than taking its alias */
+	protected final double[] probabilities;
+	
+	/* The slot to use instead when a slot isn't kept */
+	protected final int[] aliases;
+	
+	/**
+	 * Compiles the current contents of the specified chain.
+	 * 
+	 * @param source
+	 */
+	FrozenMarkovChain(MarkovChain<T> source) {
+		super(source.predictorLength);
+		
+		this.dictionary = new TokenDictionary<>(source.dictionary);
+		this.index = new PredictorIndex<>(source.index, dictionary);
+		if(source.sources != null)
+			this.sources = new BloomFilter(source.sources);
+		
+		final int predictors = index.size();
+		int slots = 0;
+		for(int n = 0; n < predictors; n++)
+			slots += source.distributions[n].size();
+		
+		this.offsets = new int[predictors + 1];
+		this.successors = new int[slots];
+		this.probabilities = new double[slots];
+		this.aliases = new int[slots];
+		
+		final int[] counts = new int[slots];
+		int pos = 0;
+		for(int n = 0; n < predictors; n++) {
+			final Distribution dist = source.distributions[n];
+			offsets[n] = pos;
+			
+			/* Successors whose counts were removed are left out entirely */
+			for(int i = 0; i < dist.size(); i++) {
+				if(dist.getCount(i) > 0) {
+					successors[pos] = dist.getId(i);
+					counts[pos++] = dist.getCount(i);
+				}
+			}
+			buildAliasTable(counts, offsets[n], pos - offsets[n], probabilities, aliases);
+		}
+		offsets[predictors] = pos;
+	}
+	
+	/**
+	 * Fills in an alias table for the specified range of counts using Vose's
+	 * method. The work is done in integer arithmetic, scaled by the length of
+	 * the range, so the resulting table is exact up to the final division.
+	 * Aliases are written as absolute indices.
+	 * 
+	 * @param counts
+	 * @param offset
+	 * @param length
+	 * @param probabilities
+	 * @param aliases
+	 */
+	static void buildAliasTable(int[] counts, int offset, int length, double[] probabilities, int[] aliases) {
+		long total = 0;
+		for(int i = offset; i < offset + length; i++)
+			total += counts[i];
+		
+		/* Each slot starts with count * length; a slot holding exactly total
+		 * is full. Slots below that are topped up from ones above it. */
+		final long[] scaled = new long[length];
+		final int[] small = new int[length];
+		final int[] large = new int[length];
+		int smallSize = 0;
+		int largeSize = 0;
+		for(int i = 0; i < length; i++) {
+			scaled[i] = (long) counts[offset + i] * length;
+			if(scaled[i] < total)
+				small[smallSize++] = i;
+			else
+				large[largeSize++] = i;
+		}
+		
+		while(smallSize > 0 && largeSize > 0) {
+			final int s = small[--smallSize];
+			final int l = large[--largeSize];
+			probabilities[offset + s] = (double) scaled[s] / total;
+			aliases[offset + s] = offset + l;
+			
+			scaled[l] -= total - scaled[s];
+			if(scaled[l] < total)
+				small[smallSize++] = l;
+			else
+				large[largeSize++] = l;
+		}
+		
+		/* Whatever's left is full */
+		while(largeSize > 0) {
+			final int l = large[--largeSize];
+			probabilities[offset + l] = 1.0;
+			aliases[offset + l] = offset + l;
+		}
+		while(smallSize > 0) {
+			final int s = small[--smallSize];
+			probabilities[offset + s] = 1.0;
+			aliases[offset + s] = offset + s;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#next(ws.temple.markov.Predictor, java.util.random.RandomGenerator)
+	 */
+	@Override
+	public T next(Predictor<T> predictor, RandomGenerator rng) {
+		final int n = index.get(predictor);
+		if(n < 0)
+			return null;
+		return dictionary.get(sample(n, rng));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#newCursor(java.util.random.RandomGenerator)
+	 */
+	@Override
+	protected Cursor newCursor(RandomGenerator rng) {
+		return index.isPacked() ? new PackedCursor(rng) : super.newCursor(rng);
+	}
+	
+	/**
+	 * A Cursor that tracks the context as a packed key, so each step is a
+	 * primitive table lookup and an alias draw with nothing allocated.
+	 */
+	private class PackedCursor extends Cursor {
+		
+		private long key;
+		
+		PackedCursor(RandomGenerator rng) {
+			super(rng);
+		}
+		
+		@Override
+		public T next() {
+			final int n = index.get(key);
+			if(n < 0)
+				return null;
+			
+			final int id = sample(n, rng);
+			if(id == TokenDictionary.NULL)
+				return null;
+			key = index.roll(key, id);
+			return dictionary.get(id);
+		}
+		
+	}
+	
+	/**
+	 * Picks a successor id for the Predictor with the specified number.
+	 * 
+	 * @param n
+	 * @param rng
+	 * @return
+	 */
+	protected int sample(int n, RandomGenerator rng) {
+		final int offset = offsets[n];
+		final int length = offsets[n + 1] - offset;
+		if(length == 0)
+			return TokenDictionary.NULL;
+		
+		/* A single draw picks both the slot (integer part) and whether to
+		 * keep it (fractional part) */
+		final double u = rng.nextDouble() * length;
+		final int j = (int) u;
+		final int slot = offset + j;
+		return successors[u - j < probabilities[slot] ? slot : aliases[slot]];
+	}
+	
+	/**
+	 * Returns the number of Predictors in this chain.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return index.size();
+	}
+	
+}
@@ -0,0 +1,363 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.random.RandomGenerator;
+
+import ws.temple.util.BoundedQueue;
+
+/**
+ * Keeps a supply of pre-generated results ready, so that serving one is
+ * usually just a pop from a lock-free queue. Background workers fill the
+ * queue to capacity and then sleep until it drains below a low-water mark.
+ * When the queue runs dry, {@link #take()} generates a result on the
+ * calling thread rather than waiting.
+ * 
+ * <pre>
+ * GenerationPool&lt;String&gt; names = GenerationPool.ofStrings(chain.freeze(), 16, null, 10000, 2500);
+ * String name = names.take();
+ * </pre>
+ * 
+ * Workers are created by a ThreadFactory. By default they're daemon
+ * platform threads; on a JVM with virtual threads, passing
+ * Thread.ofVirtual().factory() runs them as virtual threads instead.
+ * 
+ * If the source throws an exception on a worker, it's counted in
+ * {@link #getFailures()} and the worker waits to be woken again, so one
+ * bad result doesn't stop the pool from refilling.
+ * 
+ * The chain mustn't be trained while the pool is running, since workers
+ * generate from it at any time; a FrozenMarkovChain is a good fit.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <R>
+ */
+public class GenerationPool<R> implements AutoCloseable {
+	
+	/**
+	 * Generates a single result.
+	 *
+	 * @param <R>
+	 */
+	public interface Source<R> {
+		
+		/**
+		 * Generates a result from the specified generator. This is called from
+		 * several threads at once, so it must be thread-safe. It must not
+		 * return null.
+		 * 
+		 * @param rng
+		 * @return
+		 */
+		R generate(RandomGenerator rng);
+		
+	}
+	
+	private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+	
+	/* Generates each result */
+	protected final Source<R> source;
+	
+	/* Results waiting to be served */
+	protected final BoundedQueue<R> queue;
+	
+	/* The queue size below which the workers are woken */
+	protected final int lowWaterMark;
+	
+	protected final List<Thread> workers;
+	
+	/* Set once a consumer has woken the workers, until they've filled the
+	 * queue again, so consumers don't all try to wake them */
+	private final AtomicBoolean refilling = new AtomicBoolean();
+	
+	private volatile boolean closed;
+	
+	private final LongAdder generated = new LongAdder();
+	private final LongAdder generationNanos = new LongAdder();
+	private final LongAdder servedQueued = new LongAdder();
+	private final LongAdder servedInline = new LongAdder();
+	private final LongAdder refills = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	
+	/* The most recent exception thrown by the source on a worker */
+	private volatile RuntimeException lastFailure;
+	
+	/**
+	 * Constructs a pool with a single daemon worker and starts filling it.
+	 * 
+	 * @param source
+	 * @param capacity
+	 * @param lowWaterMark
+	 */
+	public GenerationPool(Source<R> source, int capacity, int lowWaterMark) {
+		this(source, capacity, lowWaterMark, 1, daemonThreads());
+	}
+	
+	/**
+	 * Constructs a pool with the specified number of workers, created by the
+	 * given factory, and starts filling it.
+	 * 
+	 * @param source
+	 * @param capacity
+	 * @param lowWaterMark
+	 * @param workerCount
+	 * @param threadFactory
+	 */
+	public GenerationPool(Source<R> source, int capacity, int lowWaterMark, int workerCount, ThreadFactory threadFactory) {
+		if(lowWaterMark < 0 || lowWaterMark > capacity)
+			throw new IllegalArgumentException("Low-water mark must be between 0 and the capacity");
+		if(workerCount <= 0)
+			throw new IllegalArgumentException("There must be at least one worker");
+		
+		this.source = source;
+		this.queue = new BoundedQueue<>(capacity);
+		this.lowWaterMark = lowWaterMark;
+		this.workers = new ArrayList<>(workerCount);
+		for(int i = 0; i < workerCount; i++)
+			workers.add(threadFactory.newThread(this::work));
+		for(Thread worker : workers)
+			worker.start();
+	}
+	
+	/**
+	 * Constructs a pool of strings generated from the specified chain, with a
+	 * single daemon worker.
+	 * 
+	 * @param chain
+	 * @param maxLength
+	 * @param glue
+	 * @param capacity
+	 * @param lowWaterMark
+	 * @return
+	 */
+	public static GenerationPool<String> ofStrings(AbstractMarkovChain<?> chain, int maxLength, String glue, int capacity, int lowWaterMark) {
+		return new GenerationPool<>(rng -> chain.generateString(maxLength, glue, rng), capacity, lowWaterMark);
+	}
+	
+	/**
+	 * Returns a pre-generated result, or null if none are ready.
+	 * 
+	 * @return
+	 */
+	public R poll() {
+		final R result = queue.poll();
+		if(result != null) {
+			servedQueued.increment();
+			if(queue.size() < lowWaterMark)
+				wake();
+		}
+		else
+			wake();
+		return result;
+	}
+	
+	/**
+	 * Returns a pre-generated result, or generates one on the calling thread if
+	 * none are ready. This never waits for the workers.
+	 * 
+	 * @return
+	 */
+	public R take() {
+		final R result = poll();
+		if(result != null)
+			return result;
+		
+		servedInline.increment();
+		return source.generate(ThreadLocalRandom.current());
+	}
+	
+	/**
+	 * Wakes the workers, unless another caller already has.
+	 */
+	private void wake() {
+		if(!closed && refilling.compareAndSet(false, true)) {
+			refills.increment();
+			for(Thread worker : workers)
+				LockSupport.unpark(worker);
+		}
+	}
+	
+	/**
+	 * Fills the queue, then sleeps until woken, until the pool is closed.
+	 */
+	private void work() {
+		final RandomGenerator rng = ThreadLocalRandom.current();
+		while(!closed) {
+			boolean failed;
+			try {
+				failed = fill(rng);
+			}
+			finally {
+				/* Check the level again after letting consumers wake us, in
+				 * case it dropped while the flag was still set */
+				refilling.set(false);
+			}
+			
+			/* After a failure, wait to be woken again rather than retrying
+			 * straight away, so a source that always fails can't spin */
+			if(!failed && queue.size() < lowWaterMark)
+				continue;
+			LockSupport.park(this);
+		}
+	}
+	
+	/**
+	 * Generates results until the queue is full, returning true if it stopped
+	 * early because the source threw an exception.
+	 * 
+	 * @param rng
+	 * @return
+	 */
+	private boolean fill(RandomGenerator rng) {
+		while(!closed && queue.size() < queue.capacity()) {
+			final long start = System.nanoTime();
+			final R result;
+			try {
+				result = source.generate(rng);
+			}
+			catch(RuntimeException e) {
+				failures.increment();
+				lastFailure = e;
+				return true;
+			}
+			generationNanos.add(System.nanoTime() - start);
+			generated.increment();
+			
+			/* Another worker may have filled the last slot first */
+			if(!queue.offer(result))
+				break;
+		}
+		return false;
+	}
+	
+	/**
+	 * Stops the workers once they finish the result they're generating. Results
+	 * already queued can still be polled.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for(Thread worker : workers)
+			LockSupport.unpark(worker);
+	}
+	
+	/**
+	 * Returns the number of results ready to be served.
+	 * 
+	 * @return
+	 */
+	public int getQueued() {
+		return queue.size();
+	}
+	
+	/**
+	 * Returns the number of results generated by the workers.
+	 * 
+	 * @return
+	 */
+	public long getGenerated() {
+		return generated.sum();
+	}
+	
+	/**
+	 * Returns the total time the workers have spent generating, in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getGenerationNanos() {
+		return generationNanos.sum();
+	}
+	
+	/**
+	 * Returns the number of results served from the queue.
+	 * 
+	 * @return
+	 */
+	public long getServedQueued() {
+		return servedQueued.sum();
+	}
+	
+	/**
+	 * Returns the number of results {@link #take()} had to generate itself
+	 * because the queue was empty.
+	 * 
+	 * @return
+	 */
+	public long getServedInline() {
+		return servedInline.sum();
+	}
+	
+	/**
+	 * Returns the number of times the workers have been woken to refill the
+	 * queue.
+	 * 
+	 * @return
+	 */
+	public long getRefills() {
+		return refills.sum();
+	}
+	
+	/**
+	 * Returns the number of times the source has thrown an exception on a
+	 * worker. The worker carries on, but waits to be woken again before
+	 * generating any more.
+	 * 
+	 * @return
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+	
+	/**
+	 * Returns the most recent exception thrown by the source on a worker, or
+	 * null if there hasn't been one.
+	 * 
+	 * @return
+	 */
+	public RuntimeException getLastFailure() {
+		return lastFailure;
+	}
+	
+	private static ThreadFactory daemonThreads() {
+		final int pool = POOL_COUNT.incrementAndGet();
+		final AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			final Thread thread = new Thread(runnable, "generation-pool-" + pool + "-worker-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+	
+}
@@ -0,0 +1,682 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import ws.temple.util.BloomFilter;
+
+/**
+ * A MarkovChain that makes its training durable by appending every change to
+ * a journal, and now and then compacting the journal into a checkpoint. A
+ * change costs a few bytes in a buffer, and a batch of changes costs one
+ * sequential write, rather than writing out the whole chain; reopening the
+ * directory after a crash loads the last checkpoint and replays just the
+ * journal written since.
+ * 
+ * The directory holds a checkpoint-N.mkvl file, which is an ordinary
+ * {@link ChainFile} and can be mapped or read like any other, and a
+ * journal-N.log file holding the changes made after it. Both are written
+ * under temporary names and moved into place once complete. A new
+ * generation's empty journal is created first, and moving its checkpoint
+ * into place is what makes it current, after which the old files are
+ * removed; so a crash at any point leaves one complete generation to
+ * recover, and anything left over from an unfinished checkpoint is removed
+ * when the directory is next opened. All values are little-endian.
+ * 
+ * <pre>
+ * Journal header (16 bytes)
+ *   int    magic ('MKVJ')
+ *   int    version
+ *   int    Predictor length (L)
+ *   int    generation, matching the checkpoint's N
+ * Batches, each written in one go
+ *   int    payload length
+ *   int    CRC-32C of the payload
+ *   Records
+ *     byte   1, for a token given its id after the checkpoint
+ *     int    id
+ *     int    length, then that many bytes from the TokenCodec
+ *     
+ *     byte   2, for a change in a pair's count
+ *     int[L] Predictor token ids, oldest first
+ *     int    successor token id
+ *     int    count, negative for removals
+ *     
+ *     byte   3, for a path recorded in the source filter (version 2)
+ *     long   hash of the path
+ * </pre>
+ * 
+ * Changes reach the journal when a batch fills up or {@link #flush()} is
+ * called; with sync on, each batch is also forced to the disk before flush()
+ * returns. A batch cut short by a crash is detected by its checksum, and the
+ * journal is truncated back to the last whole batch on recovery.
+ * 
+ * The source filter is saved in each checkpoint, and the paths recorded in
+ * it are journaled along with the pairs, so it's as durable as the model.
+ * Setting a filter writes a checkpoint straight away, so that there's a
+ * filter for the journaled paths to be replayed into. Merging in a chain
+ * that has a filter writes one too, since the paths it holds can't be
+ * journaled one by one.
+ * 
+ * Like a MarkovChain, a JournaledMarkovChain should only be trained by one
+ * thread at a time. The training methods throw an UncheckedIOException if
+ * a batch can't be written. The journal is cut back to the last whole batch
+ * and the batch kept, so the write can be tried again by the next flush();
+ * if even that fails, the chain refuses any further training. Instances
+ * can't be serialized; the directory is their persistent form.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class JournaledMarkovChain<T> extends MarkovChain<T> implements Closeable, Flushable {
+
+	private static final long serialVersionUID = -1874420921568531604L;
+	
+	static final int MAGIC = 0x4d4b564a;
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 16;
+	
+	/* Bytes buffered before a batch is written */
+	public static final int DEFAULT_BATCH_BYTES = 1 << 20;
+	
+	private static final byte TOKEN = 1;
+	private static final byte PAIR = 2;
+	private static final byte PATH = 3;
+	private static final int FRAME_SIZE = 8;
+	
+	private static final Pattern CHECKPOINT = Pattern.compile("checkpoint-(\\d+)\\.mkvl");
+	private static final Pattern STALE = Pattern.compile("(checkpoint|journal)-(\\d+)\\.(mkvl|log|tmp)");
+	
+	private final Path directory;
+	private final TokenCodec<T> codec;
+	private final boolean sync;
+	
+	private FileChannel journal;
+	private ByteBuffer buffer;
+	private final CRC32C crc = new CRC32C();
+	
+	/* The generation of the current checkpoint and journal */
+	private long generation;
+	
+	/* Token ids below this are in the checkpoint or already journaled */
+	private int journaledTokens = 1;
+	
+	/* Set while loading, so that recovered changes aren't journaled again */
+	private boolean replaying;
+	
+	private final int[] ids;
+	private long replayed;
+	
+	/* Set when the journal couldn't be cut back after a failed write, so
+	 * nothing more can safely be appended to it */
+	private IOException failure;
+	
+	private JournaledMarkovChain(Path directory, int predictorLength, TokenCodec<T> codec, boolean sync, int batchBytes) {
+		super(predictorLength);
+		this.directory = directory;
+		this.codec = codec;
+		this.sync = sync;
+		this.ids = new int[predictorLength];
+		this.buffer = ByteBuffer.allocate(Math.max(batchBytes, FRAME_SIZE + 64)).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.position(FRAME_SIZE);
+	}
+	
+	/**
+	 * Opens the journaled chain in the specified directory, creating it if
+	 * needed, and recovers whatever was durably written there. Batches aren't
+	 * forced to the disk.
+	 * 
+	 * @param directory
+	 * @param predictorLength
+	 * @param codec
+	 * @return
+	 * @throws IOException
+	 */
+	public static <T> JournaledMarkovChain<T> open(Path directory, int predictorLength, TokenCodec<T> codec) throws IOException {
+		return open(directory, predictorLength, codec, false, DEFAULT_BATCH_BYTES);
+	}
+	
+	/**
+	 * Opens the journaled chain in the specified directory, creating it if
+	 * needed, and recovers whatever was durably written there. With sync on,
+	 * every batch is forced to the disk as it's written.
+	 * 
+	 * @param directory
+	 * @param predictorLength
+	 * @param codec
+	 * @param sync
+	 * @param batchBytes
+	 * @return
+	 * @throws IOException
+	 */
+	public static <T> JournaledMarkovChain<T> open(Path directory, int predictorLength, TokenCodec<T> codec, boolean sync, int batchBytes) throws IOException {
+		Files.createDirectories(directory);
+		final JournaledMarkovChain<T> chain = new JournaledMarkovChain<>(directory, predictorLength, codec, sync, batchBytes);
+		chain.recover();
+		return chain;
+	}
+	
+	private void recover() throws IOException {
+		replaying = true;
+		
+		/* The newest checkpoint is complete, since they're only ever moved
+		 * into place once written */
+		generation = -1;
+		try(Stream<Path> files = Files.list(directory)) {
+			for(Path file : (Iterable<Path>) files::iterator) {
+				final Matcher matcher = CHECKPOINT.matcher(file.getFileName().toString());
+				if(matcher.matches())
+					generation = Math.max(generation, Long.parseLong(matcher.group(1)));
+			}
+		}
+		
+		if(generation >= 0) {
+			final MappedMarkovChain<T> checkpoint = ChainFile.map(checkpointFile(generation), codec);
+			if(checkpoint.predictorLength != predictorLength)
+				throw new IOException("Checkpoint has Predictor length " + checkpoint.predictorLength + ", not " + predictorLength);
+			checkpoint.copyTo(this);
+		}
+		else
+			generation = 0;
+		
+		final Path file = journalFile(generation);
+		if(Files.exists(file))
+			journal = replay(file);
+		else
+			journal = create(file, generation);
+		
+		/* Anything from an older generation has been superseded, and anything
+		 * from a newer one belongs to a checkpoint that was never finished */
+		try(Stream<Path> files = Files.list(directory)) {
+			for(Path stale : (Iterable<Path>) files::iterator) {
+				final Matcher matcher = STALE.matcher(stale.getFileName().toString());
+				if(matcher.matches() && (matcher.group(3).equals("tmp") || Long.parseLong(matcher.group(2)) != generation))
+					Files.delete(stale);
+			}
+		}
+		
+		journaledTokens = dictionary.size();
+		replaying = false;
+	}
+	
+	/**
+	 * Applies every whole batch in the journal, truncates anything after the
+	 * last one, and returns the journal ready for appending.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private FileChannel replay(Path file) throws IOException {
+		final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			/* Journals are only moved into place with their header written,
+			 * but one cut short some other way holds no batches either */
+			if(channel.size() < HEADER_SIZE) {
+				channel.truncate(0);
+				writeHeader(channel, generation);
+				return channel;
+			}
+			
+			final ByteBuffer header = read(channel, 0, HEADER_SIZE);
+			if(header == null || header.getInt() != MAGIC)
+				throw new IOException("Not a journal file: " + file);
+			final int version = header.getInt();
+			if(version < 1 || version > VERSION)
+				throw new IOException("Unsupported journal version " + version);
+			if(header.getInt() != predictorLength)
+				throw new IOException("Journal has Predictor length " + header.getInt(8) + ", not " + predictorLength);
+			if(header.getInt() != (int) generation)
+				throw new IOException("Journal doesn't belong to checkpoint " + generation);
+			
+			long position = HEADER_SIZE;
+			for(;;) {
+				final ByteBuffer frame = read(channel, position, FRAME_SIZE);
+				if(frame == null)
+					break;
+				final int length = frame.getInt();
+				final int checksum = frame.getInt();
+				if(length < 0 || position + FRAME_SIZE + length > channel.size())
+					break;
+				
+				final ByteBuffer payload = read(channel, position + FRAME_SIZE, length);
+				crc.reset();
+				crc.update(payload.duplicate());
+				if((int) crc.getValue() != checksum)
+					break;
+				apply(payload);
+				position += FRAME_SIZE + length;
+			}
+			
+			/* Whatever follows the last whole batch was cut off mid-write */
+			channel.truncate(position);
+			channel.position(position);
+			return channel;
+		}
+		catch(IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	private void apply(ByteBuffer payload) throws IOException {
+		final Object[] elements = new Object[predictorLength];
+		while(payload.hasRemaining()) {
+			final byte type = payload.get();
+			if(type == TOKEN) {
+				final int id = payload.getInt();
+				final byte[] bytes = new byte[payload.getInt()];
+				payload.get(bytes);
+				if(dictionary.intern(codec.decode(bytes)) != id)
+					throw new IOException("Journal token " + id + " is out of sequence");
+			}
+			else if(type == PAIR) {
+				for(int i = 0; i < predictorLength; i++)
+					elements[i] = token(payload.getInt());
+				final T next = token(payload.getInt());
+				final int count = payload.getInt();
+				
+				final int n = index.put(elements, 0);
+				final int id = dictionary.intern(next);
+				if(count >= 0)
+					add(n, id, count);
+				else if(distributionFor(n).remove(id, -count) > 0 && distributions[n].getTotal() == 0)
+					removePredictor(n);
+			}
+			else if(type == PATH) {
+				final long hash = payload.getLong();
+				if(sources != null)
+					sources.add(hash);
+			}
+			else
+				throw new IOException("Unknown journal record type " + type);
+			replayed++;
+		}
+	}
+	
+	private T token(int id) throws IOException {
+		if(id < 0 || id >= dictionary.size())
+			throw new IOException("Journal refers to unknown token " + id);
+		return dictionary.get(id);
+	}
+	
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while(buffer.hasRemaining())
+			if(channel.read(buffer, position + buffer.position()) < 0)
+				return null;
+		return buffer.flip();
+	}
+	
+	/**
+	 * Creates an empty journal for the specified generation, writing its header
+	 * under a temporary name first so the journal never appears without one.
+	 * 
+	 * @param file
+	 * @param generation
+	 * @return
+	 * @throws IOException
+	 */
+	private FileChannel create(Path file, long generation) throws IOException {
+		final Path temporary = directory.resolve("journal-" + generation + ".tmp");
+		try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			writeHeader(channel, generation);
+		}
+		Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+		
+		final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		return channel;
+	}
+	
+	private void writeHeader(FileChannel channel, long generation) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(predictorLength).putInt((int) generation).flip();
+		channel.position(0);
+		while(header.hasRemaining())
+			channel.write(header);
+		channel.force(true);
+	}
+	
+	/**
+	 * Forces the directory's entries to the disk, so that files moved into
+	 * place stay there after a crash.
+	 * 
+	 * @throws IOException
+	 */
+	private void syncDirectory() throws IOException {
+		try(FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.MarkovChain#add(int, int, int)
+	 */
+	@Override
+	protected void add(int n, int id, int count) {
+		/* Journaled first, so a change that can't be written isn't made */
+		if(!replaying) {
+			index.getIds(n, ids);
+			journal(ids, id, count);
+		}
+		super.add(n, id, count);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.MarkovChain#removePair(ws.temple.markov.Predictor, java.lang.Object)
+	 */
+	@Override
+	public boolean removePair(Predictor<T> predictor, T next) {
+		/* The Predictor may be renumbered by the removal, so its ids are
+		 * fetched first */
+		final int n = index.get(predictor);
+		if(n >= 0)
+			index.getIds(n, ids);
+		if(!super.removePair(predictor, next))
+			return false;
+		journal(ids, dictionary.lookup(next), -1);
+		return true;
+	}
+	
+	/**
+	 * Records a completed path in the source filter, and journals it if there
+	 * is a filter.
+	 * 
+	 * @param hash
+	 */
+	@Override
+	public void recordPath(long hash) {
+		if(sources != null && !replaying) {
+			try {
+				reserve(9);
+				buffer.put(PATH).putLong(hash);
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		super.recordPath(hash);
+	}
+	
+	/**
+	 * Sets the source filter and writes a checkpoint, so that the filter is
+	 * saved before any paths are journaled against it. Throws an
+	 * UncheckedIOException if the checkpoint can't be written.
+	 * 
+	 * @param sources
+	 */
+	@Override
+	public void setSourceFilter(BloomFilter sources) {
+		super.setSourceFilter(sources);
+		try {
+			checkpoint();
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Adds every pair in the specified chain to this one. The pairs are
+	 * journaled as they're added, but the paths in the other chain's source
+	 * filter are only known by their bits, so if it has a filter a checkpoint
+	 * is written to save them. Throws an UncheckedIOException if the
+	 * checkpoint can't be written.
+	 * 
+	 * @param other
+	 */
+	@Override
+	public void merge(MarkovChain<T> other) {
+		super.merge(other);
+		if(other.sources != null) {
+			try {
+				checkpoint();
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Buffers a record of a change in a pair's count, preceded by records of
+	 * any tokens given ids since the last one.
+	 * 
+	 * @param context
+	 * @param id
+	 * @param count
+	 */
+	private void journal(int[] context, int id, int count) {
+		try {
+			for(; journaledTokens < dictionary.size(); journaledTokens++) {
+				final byte[] bytes = codec.encode(dictionary.get(journaledTokens));
+				reserve(9 + bytes.length);
+				buffer.put(TOKEN).putInt(journaledTokens).putInt(bytes.length).put(bytes);
+			}
+			
+			reserve(9 + 4 * predictorLength);
+			buffer.put(PAIR);
+			for(int i = 0; i < predictorLength; i++)
+				buffer.putInt(context[i]);
+			buffer.putInt(id).putInt(count);
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Makes room in the buffer for a record of the specified size, writing out
+	 * the current batch if it's too full.
+	 * 
+	 * @param bytes
+	 * @throws IOException
+	 */
+	private void reserve(int bytes) throws IOException {
+		if(failure != null)
+			throw new IOException("Journal is unusable after a failed write", failure);
+		if(buffer.remaining() >= bytes)
+			return;
+		flush();
+		if(buffer.remaining() < bytes) {
+			buffer = ByteBuffer.allocate(FRAME_SIZE + bytes).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.position(FRAME_SIZE);
+		}
+	}
+	
+	/**
+	 * Writes any buffered changes to the journal as one batch, forcing it to
+	 * the disk if sync is on. If the batch can't be written, the journal is
+	 * cut back to where it was and the changes stay buffered.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(failure != null)
+			throw new IOException("Journal is unusable after a failed write", failure);
+		if(buffer.position() == FRAME_SIZE)
+			return;
+		
+		final int end = buffer.position();
+		final long start = journal.position();
+		buffer.flip();
+		crc.reset();
+		crc.update(buffer.duplicate().position(FRAME_SIZE));
+		buffer.putInt(0, buffer.limit() - FRAME_SIZE);
+		buffer.putInt(4, (int) crc.getValue());
+		try {
+			while(buffer.hasRemaining())
+				journal.write(buffer);
+			if(sync)
+				journal.force(false);
+		}
+		catch(IOException e) {
+			/* Part of the batch may have reached the file, so it's cut back to
+			 * the last whole batch before the buffer is reopened for appending;
+			 * the frame is worked out again by the next flush */
+			try {
+				journal.truncate(start);
+				journal.position(start);
+			}
+			catch(IOException truncation) {
+				e.addSuppressed(truncation);
+				failure = e;
+			}
+			buffer.limit(buffer.capacity()).position(end);
+			throw e;
+		}
+		
+		buffer.clear();
+		buffer.position(FRAME_SIZE);
+	}
+	
+	/**
+	 * Writes the whole chain to a new checkpoint and starts an empty journal
+	 * after it, discarding the old checkpoint and journal once the new ones
+	 * are safely in place. If this fails before the new checkpoint is in
+	 * place, the chain carries on journaling to the old one.
+	 * 
+	 * @throws IOException
+	 */
+	public void checkpoint() throws IOException {
+		flush();
+		
+		final long next = generation + 1;
+		final Path temporary = directory.resolve("checkpoint-" + next + ".tmp");
+		ChainFile.write(this, temporary, codec);
+		try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		
+		/* The new journal has to exist before the checkpoint does, since
+		 * recovery discards the old journal as soon as it sees the new
+		 * checkpoint; moving the checkpoint into place is the switch */
+		final FileChannel fresh = create(journalFile(next), next);
+		try {
+			Files.move(temporary, checkpointFile(next), StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException | RuntimeException e) {
+			fresh.close();
+			Files.deleteIfExists(journalFile(next));
+			throw e;
+		}
+		
+		final FileChannel old = journal;
+		final long previous = generation;
+		journal = fresh;
+		generation = next;
+		journaledTokens = dictionary.size();
+		
+		/* The switch has to reach the disk before the old generation goes,
+		 * or a crash could leave neither; files left behind here are removed
+		 * on the next recovery */
+		try {
+			old.close();
+		}
+		finally {
+			syncDirectory();
+			Files.deleteIfExists(journalFile(previous));
+			Files.deleteIfExists(checkpointFile(previous));
+		}
+	}
+	
+	/**
+	 * Flushes any buffered changes and closes the journal. The chain can still
+	 * be used for generation, but no longer trained.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(journal.isOpen()) {
+			try {
+				flush();
+				if(!sync)
+					journal.force(false);
+			}
+			finally {
+				journal.close();
+			}
+		}
+	}
+	
+	private Path checkpointFile(long generation) {
+		return directory.resolve("checkpoint-" + generation + ".mkvl");
+	}
+	
+	private Path journalFile(long generation) {
+		return directory.resolve("journal-" + generation + ".log");
+	}
+	
+	/**
+	 * Returns the generation of the current checkpoint, which is 0 before the
+	 * first one is written.
+	 * 
+	 * @return
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+	
+	/**
+	 * Returns the size of the current journal, not counting changes still
+	 * buffered.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public long getJournalSize() throws IOException {
+		return journal.size();
+	}
+	
+	/**
+	 * Returns the number of journal records replayed when the chain was opened.
+	 * 
+	 * @return
+	 */
+	public long getReplayedRecords() {
+		return replayed;
+	}
+
+}
@@ -0,0 +1,60 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * A MarkovChain backed by FenwickDistributions, for chains that keep being
+ * trained while they're used to generate sequences. Adding, removing and
+ * sampling a pair all cost O(log n) in the number of successors for the
+ * Predictor, with nothing rebuilt in between.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class LiveMarkovChain<T> extends MarkovChain<T> {
+
+	private static final long serialVersionUID = -6204593152740968128L;
+
+	/**
+	 * Constructs an empty LiveMarkovChain accepting Predictors of the specified length.
+	 * 
+	 * @param predictorLength
+	 */
+	public LiveMarkovChain(int predictorLength) {
+		super(predictorLength);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.MarkovChain#newDistribution()
+	 */
+	@Override
+	protected Distribution newDistribution() {
+		return new FenwickDistribution();
+	}
+
+}
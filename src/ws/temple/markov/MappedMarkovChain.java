@@ -0,0 +1,348 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.random.RandomGenerator;
+
+import ws.temple.util.BloomFilter;
+
+/**
+ * A read-only chain served straight from a memory-mapped {@link ChainFile}.
+ * Apart from the token table, nothing is copied onto the heap: Predictors
+ * are found through the file's hash table and sampled from its alias
+ * tables in place, so opening even a very large model is nearly instant.
+ * Any number of threads may generate from it at once. A source filter
+ * saved in the file is read onto the heap along with the tokens.
+ * 
+ * Instances are obtained from {@link ChainFile#map(java.nio.file.Path, TokenCodec)},
+ * and can't be serialized; write the file instead.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class MappedMarkovChain<T> extends AbstractMarkovChain<T> {
+
+	private static final long serialVersionUID = -5400883283302155163L;
+
+	/* Tokens decoded from the file's token table */
+	protected final TokenDictionary<T> dictionary = new TokenDictionary<>();
+	
+	/* The number of Predictors in the file */
+	protected final int size;
+	
+	/* Buckets of the Predictor hash table */
+	protected final int tableMask;
+	protected final Region table;
+	
+	/* Predictor records and successor slots */
+	protected final Region records;
+	protected final Region slots;
+	
+	/**
+	 * Maps the chain in the specified file. The mapping stays valid after the
+	 * channel is closed.
+	 * 
+	 * @param channel
+	 * @param codec
+	 * @throws IOException
+	 */
+	MappedMarkovChain(FileChannel channel, TokenCodec<T> codec) throws IOException {
+		this(channel, readHeader(channel), codec);
+	}
+	
+	private MappedMarkovChain(FileChannel channel, ByteBuffer header, TokenCodec<T> codec) throws IOException {
+		super(header.getInt(8));
+		
+		final int tokens = header.getInt(12);
+		final int capacity = header.getInt(20);
+		final long slotCount = header.getLong(24);
+		final long tokenOffset = header.getLong(32);
+		final long tableOffset = header.getLong(40);
+		final long recordOffset = header.getLong(48);
+		final long slotOffset = header.getLong(56);
+		
+		this.size = header.getInt(16);
+		this.tableMask = capacity - 1;
+		if(channel.size() < slotOffset + slotCount * ChainFile.SLOT_SIZE)
+			throw new IOException("Chain file is truncated");
+		
+		/* The token table is the one part that has to be decoded */
+		channel.position(tokenOffset);
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+		for(int id = 1; id < tokens; id++) {
+			final byte[] bytes = new byte[Integer.reverseBytes(in.readInt())];
+			in.readFully(bytes);
+			dictionary.intern(codec.decode(bytes));
+		}
+		if(dictionary.size() != tokens)
+			throw new IOException("Chain file contains duplicate tokens");
+		
+		this.table = new Region(channel, tableOffset, capacity, 4);
+		this.records = new Region(channel, recordOffset, size, ChainFile.recordSize(predictorLength));
+		this.slots = new Region(channel, slotOffset, slotCount, ChainFile.SLOT_SIZE);
+		
+		final long filterOffset = slotOffset + slotCount * ChainFile.SLOT_SIZE;
+		if(channel.size() > filterOffset)
+			this.sources = readFilter(channel, filterOffset);
+	}
+	
+	private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(ChainFile.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while(header.hasRemaining())
+			if(channel.read(header, header.position()) < 0)
+				throw new IOException("Chain file is truncated");
+		
+		if(header.getInt(0) != ChainFile.MAGIC)
+			throw new IOException("Not a chain file");
+		if(header.getInt(4) != ChainFile.VERSION)
+			throw new IOException("Unsupported chain file version " + header.getInt(4));
+		return header;
+	}
+	
+	/**
+	 * Reads the source filter that follows the successor slots onto the heap.
+	 * 
+	 * @param channel
+	 * @param offset
+	 * @return
+	 * @throws IOException
+	 */
+	private static BloomFilter readFilter(FileChannel channel, long offset) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(ChainFile.FILTER_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while(header.hasRemaining())
+			if(channel.read(header, offset + header.position()) < 0)
+				throw new IOException("Chain file is truncated");
+		if(header.getInt(0) != ChainFile.FILTER_MAGIC)
+			throw new IOException("Chain file has an unknown section after its successor slots");
+		
+		final long count = header.getLong(8);
+		if(count < 1 || count > Integer.MAX_VALUE >> 3)
+			throw new IOException("Chain file has a source filter of invalid size");
+		if(channel.size() < offset + ChainFile.FILTER_HEADER_SIZE + 8 * count)
+			throw new IOException("Chain file is truncated");
+		
+		final long[] words = new long[(int) count];
+		channel.map(MapMode.READ_ONLY, offset + ChainFile.FILTER_HEADER_SIZE, 8 * count)
+				.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(words);
+		return BloomFilter.valueOf(words, header.getInt(4));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#next(ws.temple.markov.Predictor, java.util.random.RandomGenerator)
+	 */
+	@Override
+	public T next(Predictor<T> predictor, RandomGenerator rng) {
+		final int[] ids = new int[predictorLength];
+		for(int i = 0; i < predictorLength; i++)
+			if((ids[i] = dictionary.lookup(predictor.get(i))) < 0)
+				return null;
+		
+		final int n = find(ids);
+		return n < 0 ? null : dictionary.get(sample(n, rng));
+	}
+	
+	/**
+	 * Returns the number of the Predictor with the specified token ids, or -1 if
+	 * it isn't in the file.
+	 * 
+	 * @param ids
+	 * @return
+	 */
+	protected int find(int[] ids) {
+		for(int bucket = ChainFile.hash(ids) & tableMask; ; bucket = (bucket + 1) & tableMask) {
+			final int entry = table.getInt(bucket, 0);
+			if(entry == 0)
+				return -1;
+			
+			final int n = entry - 1;
+			boolean matches = true;
+			for(int i = 0; i < predictorLength && matches; i++)
+				matches = records.getInt(n, i) == ids[i];
+			if(matches)
+				return n;
+		}
+	}
+	
+	/**
+	 * Picks a successor id for the Predictor with the specified number.
+	 * 
+	 * @param n
+	 * @param rng
+	 * @return
+	 */
+	protected int sample(int n, RandomGenerator rng) {
+		final int first = records.getInt(n, predictorLength);
+		final int length = records.getInt(n, predictorLength + 1);
+		if(length == 0)
+			return TokenDictionary.NULL;
+		
+		final double u = rng.nextDouble() * length;
+		final int j = (int) u;
+		final int slot = first + j;
+		final int chosen = u - j < slots.getFloat(slot, 3) ? slot : slots.getInt(slot, 2);
+		return slots.getInt(chosen, 0);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#newCursor(java.util.random.RandomGenerator)
+	 */
+	@Override
+	protected Cursor newCursor(RandomGenerator rng) {
+		return new MappedCursor(rng);
+	}
+	
+	/**
+	 * A Cursor that keeps the context as token ids and looks it up in the
+	 * mapped hash table directly.
+	 */
+	private class MappedCursor extends Cursor {
+		
+		private final int[] context = new int[predictorLength];
+		
+		MappedCursor(RandomGenerator rng) {
+			super(rng);
+		}
+		
+		@Override
+		public T next() {
+			final int n = find(context);
+			if(n < 0)
+				return null;
+			
+			final int id = sample(n, rng);
+			if(id == TokenDictionary.NULL)
+				return null;
+			if(predictorLength > 0) {
+				System.arraycopy(context, 1, context, 0, predictorLength - 1);
+				context[predictorLength - 1] = id;
+			}
+			return dictionary.get(id);
+		}
+		
+	}
+	
+	/**
+	 * Returns a MarkovChain holding the same pairs as this one, which can be
+	 * trained further. Token ids and Predictor numbers are kept as they are
+	 * in the file.
+	 * 
+	 * @return
+	 */
+	public MarkovChain<T> toMarkovChain() {
+		final MarkovChain<T> chain = new MarkovChain<>(predictorLength);
+		copyTo(chain);
+		return chain;
+	}
+	
+	/**
+	 * Adds every pair in this chain to the specified chain, which must be empty.
+	 * 
+	 * @param chain
+	 */
+	void copyTo(MarkovChain<T> chain) {
+		if(chain.predictorLength != predictorLength)
+			throw new IllegalArgumentException("Predictor length does not match chain");
+		if(chain.dictionary.size() != 1 || chain.index.size() != 0)
+			throw new IllegalStateException("Chain is not empty");
+		
+		final BloomFilter sources = this.sources;
+		if(sources != null)
+			chain.sources = new BloomFilter(sources);
+		
+		/* Interning in order gives every token the same id it has here */
+		for(int id = 1; id < dictionary.size(); id++)
+			chain.dictionary.intern(dictionary.get(id));
+		
+		final Object[] elements = new Object[predictorLength];
+		for(int n = 0; n < size; n++) {
+			for(int i = 0; i < predictorLength; i++)
+				elements[i] = dictionary.get(records.getInt(n, i));
+			final int target = chain.index.put(elements, 0);
+			chain.distributionFor(target);
+			
+			final int first = records.getInt(n, predictorLength);
+			final int length = records.getInt(n, predictorLength + 1);
+			for(int slot = first; slot < first + length; slot++)
+				chain.add(target, slots.getInt(slot, 0), slots.getInt(slot, 1));
+		}
+	}
+	
+	/**
+	 * Returns the number of Predictors in this chain.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * A section of fixed-size records, mapped in chunks of up to 1GB so that
+	 * sections larger than a single ByteBuffer can address still work.
+	 */
+	protected static final class Region {
+		
+		private final ByteBuffer[] chunks;
+		private final int recordSize;
+		private final int shift;
+		private final long mask;
+		
+		Region(FileChannel channel, long offset, long records, int recordSize) throws IOException {
+			final int perChunk = Integer.highestOneBit(Math.max(1, (1 << 30) / recordSize));
+			this.recordSize = recordSize;
+			this.shift = Integer.numberOfTrailingZeros(perChunk);
+			this.mask = perChunk - 1;
+			this.chunks = new ByteBuffer[(int) ((records + perChunk - 1) >>> shift)];
+			for(int i = 0; i < chunks.length; i++) {
+				final long first = (long) i << shift;
+				final long count = Math.min(perChunk, records - first);
+				chunks[i] = channel.map(MapMode.READ_ONLY, offset + first * recordSize, count * recordSize)
+						.order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+		
+		int getInt(long record, int field) {
+			return chunks[(int) (record >>> shift)].getInt((int) (record & mask) * recordSize + field * 4);
+		}
+		
+		float getFloat(long record, int field) {
+			return chunks[(int) (record >>> shift)].getFloat((int) (record & mask) * recordSize + field * 4);
+		}
+		
+	}
+	
+}
@@ -25,34 +25,28 @@ package ws.temple.markov;
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.Random;
-import java.util.TreeMap;
+import java.util.random.RandomGenerator;
 
-import ws.temple.util.Utils;
+import ws.temple.util.BloomFilter;
+import ws.temple.util.Histogram;
 
-public class MarkovChain<T> implements Serializable {
+public class MarkovChain<T> extends AbstractMarkovChain<T> {
 
 	private static final long serialVersionUID = 1078889713056415705L;
 
-	/* Matches a Predictor to a list of probabilities for each possible token to follow it */
-	protected final Map<Predictor<T>, NavigableMap<Double, T>> top = new HashMap<>();
+	/* Assigns each token an int id */
+	protected final TokenDictionary<T> dictionary = new TokenDictionary<>();
 	
-	/* Tracks the number of pairs for each Predictor */
-	protected final Map<Predictor<T>, Integer> frequency = new HashMap<>();
+	/* Numbers each Predictor, packing it into a long key where possible */
+	protected final PredictorIndex<T> index;
 	
-	/* The number of tokens expected from Predictors */
-	protected final int predictorLength;
-	
-	/* RNG for grabbing random tokens */
-	protected final transient Random rng = new Random();
+	/* The counts for each possible token to follow a Predictor, indexed by
+	 * the Predictor's number */
+	protected Distribution[] distributions = new Distribution[16];
 	
 	/**
 	 * Constructs an empty MarkovChain accepting Predictors of the specified length.
@@ -60,132 +54,347 @@ public class MarkovChain<T> implements Serializable {
 	 * @param predictorLength
 	 */
 	public MarkovChain(int predictorLength) {
-		this.predictorLength = predictorLength;
+		super(predictorLength);
+		this.index = new PredictorIndex<>(predictorLength, dictionary);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#addPair(ws.temple.markov.Predictor, java.lang.Object)
+	 */
+	@Override
+	public void addPair(Predictor<T> predictor, T next) {
+		addPair(predictor, next, 1);
 	}
 	
 	/**
-	 * Adds a predictor/next-token pair to this Markov chain.
+	 * Adds the specified number of occurrences of a predictor/next-token pair to
+	 * this Markov chain.
 	 * 
 	 * @param predictor
 	 * @param next
+	 * @param count
 	 */
-	public void addPair(Predictor<T> predictor, T next) {
+	public void addPair(Predictor<T> predictor, T next, int count) {
 		if(predictor.size() != predictorLength)
 			throw new IllegalArgumentException("Predictor length does not match chain");
+		if(count < 0)
+			throw new IllegalArgumentException("Count must not be negative");
+		
+		/* Only the count changes here; the sampling table is rebuilt lazily
+		 * the next time the distribution is sampled */
+		add(index.put(predictor), dictionary.intern(next), count);
+		
+		final ChainMetrics metrics = this.metrics;
+		if(metrics != null)
+			metrics.recordPairs(count);
+	}
+	
+	/**
+	 * Adds every pair in the specified batch to this Markov chain. The pairs are
+	 * sorted by Predictor and successor first, so each distinct pair updates its
+	 * distribution only once however many times it appears in the batch.
+	 * 
+	 * @param batch
+	 */
+	@Override
+	public void addPairs(PairBatch<T> batch) {
+		if(batch.getPredictorLength() != predictorLength)
+			throw new IllegalArgumentException("Predictor length does not match chain");
+		
+		final TrainingEvent event = new TrainingEvent();
+		event.begin();
 		
-		/* Create a probability map for this Predictor if it doesn't exist yet */
-		NavigableMap<Double, T> distribution = top.get(predictor);
-		if(distribution == null) {
-			distribution = new TreeMap<>();
-			top.put(predictor, distribution);
+		/* Each pair becomes the Predictor's number in the high half of a long
+		 * and the successor's id in the low half */
+		final int size = batch.size();
+		final long[] pairs = new long[size];
+		for(int i = 0; i < size; i++) {
+			final int n = index.put(batch.contexts, i * predictorLength);
+			distributionFor(n);
+			pairs[i] = ((long) n << 32) | dictionary.intern(batch.getNext(i));
 		}
+		Arrays.sort(pairs);
 		
-		/* Calculate the new frequency for the Predictor */
-		final int oldTotal = Utils.firstNonNull(frequency.get(predictor), 0);
-		final int newTotal = oldTotal + 1;
-		frequency.put(predictor, newTotal);
+		for(int i = 0; i < size; ) {
+			int j = i + 1;
+			while(j < size && pairs[j] == pairs[i])
+				j++;
+			add((int) (pairs[i] >>> 32), (int) pairs[i], j - i);
+			i = j;
+		}
+		endTraining(event, "addPairs", size, true);
+	}
+	
+	/**
+	 * Adds every pair in the specified chain to this one, summing the counts of
+	 * pairs the two have in common. The other chain is left unchanged. Paths
+	 * in its source filter are added to this chain's, or copied if this chain
+	 * has none; the two filters must be the same size.
+	 * 
+	 * @param other
+	 */
+	public void merge(MarkovChain<T> other) {
+		if(other.predictorLength != predictorLength)
+			throw new IllegalArgumentException("Predictor length does not match chain");
 		
-		/* The Entry set is copied so that we can modify the original while iterating over it; an
-		 * ArrayList is used so that the original key order is preserved */
-		final List<Entry<Double, T>> entries = new ArrayList<Entry<Double, T>>(distribution.entrySet());
-		double oldWeightAccum = 0.0;
-		double newWeightAccum = 0.0;
+		final BloomFilter otherSources = other.sources;
+		if(otherSources != null) {
+			if(sources == null)
+				sources = new BloomFilter(otherSources);
+			else
+				sources.addAll(otherSources);
+		}
 		
-		/* Rebuild the probability map for the new counts */
-		distribution.clear();
-		boolean nextInOldDistribution = false;
-		for(Entry<Double, T> entry : entries) {
-			final boolean isNext = Utils.equals(entry.getValue(),next);
-			final double oldWeight = entry.getKey() - oldWeightAccum;
-			final double newCount = oldWeight * oldTotal + (isNext ? 1 : 0);
-			
-			oldWeightAccum = entry.getKey();
-			newWeightAccum += newCount / newTotal;
-			
-			distribution.put(newWeightAccum, entry.getValue());
-			
-			/* TreeMap.contains() runs in linear time and these things can get pretty large,
-			 * so this is tracked here since we're iterating over the set anyway */
-			nextInOldDistribution |= isNext;
+		final TrainingEvent event = new TrainingEvent();
+		event.begin();
+		
+		/* Translate the other chain's token ids into ours up front, so its
+		 * distributions can be copied without looking tokens up again */
+		final int[] ids = new int[other.dictionary.size()];
+		for(int id = 0; id < ids.length; id++)
+			ids[id] = dictionary.intern(other.dictionary.get(id));
+		
+		final int predictors = other.index.size();
+		long pairs = 0;
+		for(int n = 0; n < predictors; n++) {
+			final Distribution source = other.distributions[n];
+			final int target = index.put(other.index.getPredictor(n));
+			distributionFor(target);
+			for(int i = 0; i < source.size(); i++)
+				if(source.getCount(i) > 0)
+					add(target, ids[source.getId(i)], source.getCount(i));
+			pairs += source.getTotal();
 		}
+		endTraining(event, "merge", pairs, true);
+	}
+	
+	/**
+	 * Adds the specified number of occurrences of a token id to the distribution
+	 * for the Predictor with the given number. Every way of training the chain
+	 * ends up here, so subclasses can override this to follow along.
+	 * 
+	 * @param n
+	 * @param id
+	 * @param count
+	 */
+	protected void add(int n, int id, int count) {
+		distributionFor(n).add(id, count);
+	}
+	
+	/**
+	 * Returns the distribution for the Predictor with the specified number,
+	 * creating it if it doesn't exist yet.
+	 * 
+	 * @param n
+	 * @return
+	 */
+	protected Distribution distributionFor(int n) {
+		if(n == distributions.length)
+			distributions = Arrays.copyOf(distributions, n * 2);
+		if(distributions[n] == null)
+			distributions[n] = newDistribution();
+		return distributions[n];
+	}
+	
+	/**
+	 * Removes a single occurrence of a predictor/next-token pair from this Markov
+	 * chain, returning false if the pair was never added.
+	 * 
+	 * @param predictor
+	 * @param next
+	 * @return
+	 */
+	public boolean removePair(Predictor<T> predictor, T next) {
+		final int n = index.get(predictor);
+		final int id = dictionary.lookup(next);
+		if(n < 0 || id < 0 || distributions[n].remove(id, 1) == 0)
+			return false;
 		
-		/* If the word isn't new to the map, add it at the end; the difference in 1.0f and
-		 * the value of the previous token produce the appropriate range */
-		if(!nextInOldDistribution)
-			distribution.put(1.0, next);
+		/* Forget Predictors once nothing can follow them */
+		if(distributions[n].getTotal() == 0)
+			removePredictor(n);
+		return true;
+	}
+	
+	/**
+	 * Removes the Predictor with the specified number, along with its distribution.
+	 * 
+	 * @param n
+	 */
+	protected void removePredictor(int n) {
+		final int moved = index.remove(n);
+		distributions[n] = distributions[moved];
+		distributions[moved] = null;
 	}
 	
 	/**
-	 * Returns a random token from the weighted set of those that can follow the given
-	 * Predictor, or null if no such token exists.
+	 * Creates an empty Distribution for a newly-seen Predictor. Subclasses can
+	 * override this to choose a different sampling structure.
 	 * 
-	 * @param predictor 
 	 * @return
 	 */
-	public T next(Predictor<T> predictor) {
-		final NavigableMap<Double, T> dist = top.get(predictor);
-		if(dist == null)
+	protected Distribution newDistribution() {
+		return new Distribution();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#next(ws.temple.markov.Predictor, java.util.random.RandomGenerator)
+	 */
+	@Override
+	public T next(Predictor<T> predictor, RandomGenerator rng) {
+		final int n = index.get(predictor);
+		if(n < 0)
 			return null;
 		else {
-			return dist.ceilingEntry(rng.nextDouble()).getValue();
+			final int id = distributions[n].sample(rng);
+			return id < 0 ? null : dictionary.get(id);
 		}
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#newCursor(java.util.random.RandomGenerator)
+	 */
+	@Override
+	protected Cursor newCursor(RandomGenerator rng) {
+		return index.isPacked() ? new PackedCursor(rng) : super.newCursor(rng);
+	}
+	
 	/**
-	 * Generates a sequence from the current dictionary. 
-	 * 
-	 * @param maxLength
-	 * @param strictStart
-	 * @return
+	 * A Cursor that tracks the context as a packed key, so each step is a
+	 * primitive table lookup and a sample with nothing allocated.
 	 */
-	@SuppressWarnings("unchecked")
-	public List<T> generateSequence(int maxLength) {
-		final List<T> seq = new LinkedList<>();
+	private class PackedCursor extends Cursor {
 		
-		for(int i = 0; i < predictorLength; i++)
-			seq.add(null);
-
-		T next;
-		while(seq.size() < maxLength + predictorLength) {
-			next = next(new Predictor<>((T[]) seq.subList(seq.size() - predictorLength, seq.size()).toArray()));
-			if(next == null)
-				break;
-			seq.add(next);
+		private long key;
+		
+		PackedCursor(RandomGenerator rng) {
+			super(rng);
+		}
+		
+		@Override
+		public T next() {
+			final int n = index.get(key);
+			if(n < 0)
+				return null;
+			
+			final int id = distributions[n].sample(rng);
+			if(id <= TokenDictionary.NULL)
+				return null;
+			key = index.roll(key, id);
+			return dictionary.get(id);
 		}
 		
-		return seq.subList(predictorLength, seq.size());
 	}
 	
 	/**
-	 * Generate a string from the current dictionary, inserting the
-	 * specified string between tokens.
+	 * Returns the number of distinct Predictors in this chain.
 	 * 
-	 * @param maxLength
-	 * @param glue
 	 * @return
 	 */
-	public String generateString(int maxLength, String glue) {
-		final StringBuilder sb = new StringBuilder();
-		boolean first = true;
+	public int size() {
+		return index.size();
+	}
+	
+	/**
+	 * Returns a snapshot of this chain's size, fanout and estimated heap
+	 * footprint. This walks every distribution, so it takes time in
+	 * proportion to the size of the chain.
+	 * 
+	 * @return
+	 */
+	public ChainStats getStats() {
+		final int predictors = index.size();
+		final Histogram fanout = new Histogram();
+		long pairs = 0;
+		long bytes = 32 + ChainStats.objectArray(distributions.length) + index.estimateBytes() + dictionary.estimateBytes();
 		
-		for(T token : generateSequence(maxLength)) {
-			if(glue != null && !first)
-				sb.append(glue);
-			else if(first)
-				first = false;
-			
-			sb.append(token.toString());
+		for(int n = 0; n < predictors; n++) {
+			final Distribution dist = distributions[n];
+			int successors = 0;
+			for(int i = 0; i < dist.size(); i++)
+				if(dist.getCount(i) > 0)
+					successors++;
+			fanout.record(successors);
+			pairs += dist.getTotal();
+			bytes += dist.estimateBytes();
 		}
-		return sb.toString();
+		return new ChainStats(predictors, dictionary.size() - 1, pairs, fanout, bytes);
+	}
+	
+	/**
+	 * Returns the dictionary of token ids used by this chain.
+	 * 
+	 * @return
+	 */
+	public TokenDictionary<T> getDictionary() {
+		return dictionary;
+	}
+	
+	/**
+	 * Returns a read-only copy of this chain with every distribution compiled into
+	 * an alias table, for O(1) sampling. Pairs added to this chain afterwards are
+	 * not reflected in the copy.
+	 * 
+	 * @return
+	 */
+	public FrozenMarkovChain<T> freeze() {
+		return new FrozenMarkovChain<>(this);
+	}
+	
+	/**
+	 * Returns a generator whose sequences are always between minLength and
+	 * maxLength tokens long, start with the specified prefix, and end with
+	 * the specified suffix. Either may be empty. Building the generator
+	 * takes a pass over the whole chain for each allowed length, so it's
+	 * best kept and reused.
+	 * 
+	 * @param minLength
+	 * @param maxLength
+	 * @param prefix
+	 * @param suffix
+	 * @return
+	 */
+	public ConstrainedGenerator<T> constrain(int minLength, int maxLength, List<? extends T> prefix, List<? extends T> suffix) {
+		return new ConstrainedGenerator<>(this, minLength, maxLength, prefix, suffix);
 	}
 	
 	/**
-	 * Returns the number of tokens this chain expects in each Predictor.
+	 * Returns a scorer for working out how likely this chain is to generate
+	 * given sequences, smoothing unseen transitions by adding alpha to the
+	 * count of every possible token. Building it takes a pass over the whole
+	 * chain, so it's best kept and reused.
 	 * 
+	 * @param alpha
 	 * @return
 	 */
-	public int getPredictorLength() {
-		return predictorLength;
+	public SequenceScorer<T> scorer(double alpha) {
+		return new SequenceScorer<>(this, alpha);
+	}
+	
+	/**
+	 * Returns a searcher for the most likely sequences this chain could
+	 * generate from a given prefix. Building it sorts the successors of every
+	 * Predictor, so it's best kept and reused.
+	 * 
+	 * @return
+	 */
+	public BeamSearch<T> beamSearch() {
+		return new BeamSearch<>(this);
+	}
+	
+	/**
+	 * Writes this chain to the specified file in the {@link ChainFile} format,
+	 * from which it can later be memory-mapped.
+	 * 
+	 * @param file
+	 * @param codec
+	 * @throws IOException
+	 */
+	public void write(Path file, TokenCodec<T> codec) throws IOException {
+		ChainFile.write(this, file, codec);
 	}
 	
 	/**
@@ -194,10 +403,11 @@ public class MarkovChain<T> implements Serializable {
 	 * TODO Get rid of this shit or move it somewhere else
 	 */
 	public void printDictionaries() {
-		for(Entry<Predictor<T>, NavigableMap<Double, T>> topEntry : top.entrySet()) {
-			System.out.println(topEntry.getKey());
-			for(Entry<Double, T> distEntry : top.get(topEntry.getKey()).entrySet()) {
-				System.out.println(": " + distEntry.getKey() + " -> " + distEntry.getValue());
+		for(int n = 0; n < index.size(); n++) {
+			System.out.println(index.getPredictor(n));
+			final Distribution dist = distributions[n];
+			for(int i = 0; i < dist.size(); i++) {
+				System.out.println(": " + dist.getCount(i) + "/" + dist.getTotal() + " -> " + dictionary.get(dist.getId(i)));
 			}
 			System.out.println();
 		}
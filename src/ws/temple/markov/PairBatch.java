@@ -0,0 +1,162 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size buffer of predictor/next-token pairs, for handing many pairs
+ * to {@link AbstractMarkovChain#addPairs(PairBatch)} at once. Contexts are
+ * copied into one flat array, so adding a pair allocates nothing.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class PairBatch<T> {
+	
+	/* The number of tokens in each context */
+	protected final int predictorLength;
+	
+	/* The context of pair i occupies [i * predictorLength, (i + 1) * predictorLength) */
+	protected final Object[] contexts;
+	
+	/* The token following each context */
+	protected final Object[] nexts;
+	
+	/* The number of pairs in the batch */
+	protected int size;
+	
+	/**
+	 * Constructs an empty batch holding up to the specified number of pairs with
+	 * contexts of the given length.
+	 * 
+	 * @param predictorLength
+	 * @param capacity
+	 */
+	public PairBatch(int predictorLength, int capacity) {
+		if(capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive");
+		this.predictorLength = predictorLength;
+		this.contexts = new Object[predictorLength * capacity];
+		this.nexts = new Object[capacity];
+	}
+	
+	/**
+	 * Adds a pair whose context is held in a ring buffer of predictorLength
+	 * tokens, oldest first from the specified index. Returns true if the batch
+	 * is now full.
+	 * 
+	 * @param ring
+	 * @param head
+	 * @param next
+	 * @return
+	 */
+	public boolean add(Object[] ring, int head, T next) {
+		if(isFull())
+			throw new IllegalStateException("Batch is full");
+		
+		final int base = size * predictorLength;
+		final int wrap = predictorLength - head;
+		System.arraycopy(ring, head, contexts, base, wrap);
+		System.arraycopy(ring, 0, contexts, base + wrap, head);
+		nexts[size++] = next;
+		return isFull();
+	}
+	
+	/**
+	 * Adds a predictor/next-token pair. Returns true if the batch is now full.
+	 * 
+	 * @param predictor
+	 * @param next
+	 * @return
+	 */
+	public boolean add(Predictor<T> predictor, T next) {
+		if(predictor.size() != predictorLength)
+			throw new IllegalArgumentException("Predictor length does not match batch");
+		return add(predictor.elements, 0, next);
+	}
+	
+	/**
+	 * Returns the token at the specified position in the context of a pair.
+	 * 
+	 * @param pair
+	 * @param position
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public T getContext(int pair, int position) {
+		return (T) contexts[pair * predictorLength + position];
+	}
+	
+	/**
+	 * Returns the token following the context of a pair.
+	 * 
+	 * @param pair
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public T getNext(int pair) {
+		return (T) nexts[pair];
+	}
+	
+	/**
+	 * Returns the number of tokens in each context.
+	 * 
+	 * @return
+	 */
+	public int getPredictorLength() {
+		return predictorLength;
+	}
+	
+	/**
+	 * Returns the number of pairs in the batch.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns true if no more pairs can be added.
+	 * 
+	 * @return
+	 */
+	public boolean isFull() {
+		return size == nexts.length;
+	}
+	
+	/**
+	 * Empties the batch, releasing its references to tokens.
+	 */
+	public void clear() {
+		Arrays.fill(contexts, 0, size * predictorLength, null);
+		Arrays.fill(nexts, 0, size, null);
+		size = 0;
+	}
+	
+}
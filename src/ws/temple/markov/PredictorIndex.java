@@ -0,0 +1,381 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ws.temple.util.LongIntHashMap;
+
+/**
+ * Numbers the Predictors in a chain densely from zero. While every token id
+ * fits in 64 / length bits, each Predictor is packed into a single long key
+ * and kept in a primitive hash table, so lookups never touch the tokens
+ * themselves. Once the dictionary outgrows that, the index switches over to
+ * a map keyed by Predictor, which works for any length.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class PredictorIndex<T> implements Serializable {
+
+	private static final long serialVersionUID = -4484342922314318405L;
+
+	/* The number of tokens in each Predictor */
+	protected final int length;
+	
+	/* The number of bits given to each token id in a packed key */
+	protected final int bits;
+	
+	/* Ids at or above this can't be packed */
+	protected final long idLimit;
+	
+	/* Covers the bits used by a packed key */
+	protected final long mask;
+	
+	/* Supplies token ids */
+	protected final TokenDictionary<T> dictionary;
+	
+	/* Packed keys to numbers, and numbers back to keys; null once the
+	 * index stops packing */
+	protected LongIntHashMap packed;
+	protected long[] keys;
+	
+	/* Predictors to numbers and back, used once ids no longer fit */
+	protected Map<Predictor<T>, Integer> map;
+	protected List<Predictor<T>> predictors;
+	
+	/* The number of Predictors indexed */
+	protected int size;
+	
+	/**
+	 * Constructs an empty index for Predictors of the specified length, drawing
+	 * token ids from the given dictionary.
+	 * 
+	 * @param length
+	 * @param dictionary
+	 */
+	public PredictorIndex(int length, TokenDictionary<T> dictionary) {
+		this.length = length;
+		this.bits = length == 0 ? 32 : Math.min(32, 64 / length);
+		this.idLimit = 1L << bits;
+		this.mask = bits * length >= 64 ? -1L : (1L << (bits * length)) - 1;
+		this.dictionary = dictionary;
+		
+		if(bits > 0) {
+			this.packed = new LongIntHashMap();
+			this.keys = new long[16];
+		}
+		else {
+			this.map = new HashMap<>();
+			this.predictors = new ArrayList<>();
+		}
+	}
+	
+	/**
+	 * Constructs a copy of the specified index that draws its ids from the
+	 * given dictionary, which should be a copy of the original's.
+	 * 
+	 * @param other
+	 * @param dictionary
+	 */
+	public PredictorIndex(PredictorIndex<T> other, TokenDictionary<T> dictionary) {
+		this.length = other.length;
+		this.bits = other.bits;
+		this.idLimit = other.idLimit;
+		this.mask = other.mask;
+		this.dictionary = dictionary;
+		this.size = other.size;
+		
+		if(other.isPacked()) {
+			this.packed = new LongIntHashMap(other.packed);
+			this.keys = Arrays.copyOf(other.keys, Math.max(other.size, 16));
+		}
+		else {
+			this.map = new HashMap<>(other.map);
+			this.predictors = new ArrayList<>(other.predictors);
+		}
+	}
+	
+	/**
+	 * Returns the number of the specified Predictor, or -1 if it isn't indexed.
+	 * 
+	 * @param predictor
+	 * @return
+	 */
+	public int get(Predictor<T> predictor) {
+		if(!isPacked()) {
+			final Integer n = map.get(predictor);
+			return n == null ? -1 : n;
+		}
+		
+		long key = 0;
+		for(int i = 0; i < length; i++) {
+			final int id = dictionary.lookup(predictor.get(i));
+			if(id < 0 || id >= idLimit)
+				return -1;
+			key = (key << bits) | id;
+		}
+		return packed.get(key);
+	}
+	
+	/**
+	 * Returns the number of the Predictor with the specified packed key, or -1
+	 * if it isn't indexed. Only meaningful while the index {@link #isPacked()}.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public int get(long key) {
+		return packed.get(key);
+	}
+	
+	/**
+	 * Returns the packed key for the Predictor that results from dropping the
+	 * first token of the specified key and appending the given id. This lets a
+	 * sequence's context be tracked as a single long.
+	 * 
+	 * @param key
+	 * @param id
+	 * @return
+	 */
+	public long roll(long key, int id) {
+		return ((key << bits) | id) & mask;
+	}
+	
+	/**
+	 * Returns the number of the specified Predictor, indexing it (and interning
+	 * its tokens) if needed. New Predictors are numbered {@link #size()}.
+	 * 
+	 * @param predictor
+	 * @return
+	 */
+	public int put(Predictor<T> predictor) {
+		return put(predictor.elements, 0, predictor);
+	}
+	
+	/**
+	 * Returns the number of the Predictor made up of the tokens starting at the
+	 * specified offset of an array, indexing it if needed. This saves building
+	 * a Predictor for lookups while the index is packed.
+	 * 
+	 * @param elements
+	 * @param offset
+	 * @return
+	 */
+	public int put(Object[] elements, int offset) {
+		return put(elements, offset, null);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private int put(Object[] elements, int offset, Predictor<T> predictor) {
+		if(isPacked()) {
+			long key = 0;
+			for(int i = 0; i < length; i++) {
+				final int id = dictionary.intern((T) elements[offset + i]);
+				if(id >= idLimit) {
+					unpack();
+					return put(elements, offset, predictor);
+				}
+				key = (key << bits) | id;
+			}
+			
+			final int n = packed.get(key);
+			if(n >= 0)
+				return n;
+			if(size == keys.length)
+				keys = Arrays.copyOf(keys, size * 2);
+			keys[size] = key;
+			packed.put(key, size);
+		}
+		else {
+			if(predictor == null)
+				predictor = new Predictor<>((T[]) Arrays.copyOfRange(elements, offset, offset + length));
+			final Integer n = map.get(predictor);
+			if(n != null)
+				return n;
+			for(int i = 0; i < length; i++)
+				dictionary.intern(predictor.get(i));
+			predictors.add(predictor);
+			map.put(predictor, size);
+		}
+		return size++;
+	}
+	
+	/**
+	 * Removes the Predictor with the specified number. To keep the numbering
+	 * dense, the last Predictor takes over the removed one's number; its old
+	 * number is returned so callers can move anything they keep alongside.
+	 * 
+	 * @param n
+	 * @return
+	 */
+	public int remove(int n) {
+		final int last = --size;
+		if(isPacked()) {
+			packed.remove(keys[n]);
+			if(n != last) {
+				keys[n] = keys[last];
+				packed.put(keys[n], n);
+			}
+		}
+		else {
+			map.remove(predictors.get(n));
+			final Predictor<T> moved = predictors.remove(last);
+			if(n != last) {
+				predictors.set(n, moved);
+				map.put(moved, n);
+			}
+		}
+		return last;
+	}
+	
+	/**
+	 * Returns the Predictor with the specified number.
+	 * 
+	 * @param n
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public Predictor<T> getPredictor(int n) {
+		if(!isPacked())
+			return predictors.get(n);
+		
+		final T[] elements = (T[]) new Object[length];
+		final long key = keys[n];
+		for(int i = 0; i < length; i++)
+			elements[i] = dictionary.get(tokenId(key, i));
+		return new Predictor<>(elements);
+	}
+	
+	/**
+	 * Fills the specified array with the token ids of the Predictor with the
+	 * specified number, oldest first.
+	 * 
+	 * @param n
+	 * @param ids
+	 */
+	public void getIds(int n, int[] ids) {
+		if(isPacked()) {
+			final long key = keys[n];
+			for(int i = 0; i < length; i++)
+				ids[i] = tokenId(key, i);
+		}
+		else {
+			final Predictor<T> predictor = predictors.get(n);
+			for(int i = 0; i < length; i++)
+				ids[i] = dictionary.lookup(predictor.get(i));
+		}
+	}
+	
+	/**
+	 * Returns the id of the token at the specified position in a packed key.
+	 * 
+	 * @param key
+	 * @param position
+	 * @return
+	 */
+	public int tokenId(long key, int position) {
+		return (int) ((key >>> (bits * (length - 1 - position))) & (idLimit - 1));
+	}
+	
+	/**
+	 * Returns the packed key for the Predictor with the specified number. Only
+	 * meaningful while the index {@link #isPacked()}.
+	 * 
+	 * @param n
+	 * @return
+	 */
+	public long getKey(int n) {
+		return keys[n];
+	}
+	
+	/**
+	 * Returns true if Predictors are currently stored as packed keys.
+	 * 
+	 * @return
+	 */
+	public boolean isPacked() {
+		return packed != null;
+	}
+	
+	/**
+	 * Returns the number of bits each token id takes up in a packed key.
+	 * 
+	 * @return
+	 */
+	public int getBits() {
+		return bits;
+	}
+	
+	/**
+	 * Returns a rough estimate of the heap space taken by the index, in
+	 * bytes, not counting the tokens themselves.
+	 * 
+	 * @return
+	 */
+	long estimateBytes() {
+		if(isPacked())
+			return 48 + ChainStats.longArray(keys.length) + packed.estimateBytes();
+		
+		/* A HashMap node, its share of the table, a boxed number, the
+		 * Predictor and its array, and a slot in the list */
+		final long perPredictor = 32 + 8 + 16 + 16 + ChainStats.objectArray(length) + 4;
+		return 48 + size * perPredictor;
+	}
+	
+	/**
+	 * Returns the number of Predictors indexed.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Switches from packed keys to a Predictor map, keeping the numbering.
+	 */
+	private void unpack() {
+		final Map<Predictor<T>, Integer> map = new HashMap<>(size * 4 / 3 + 1);
+		final List<Predictor<T>> predictors = new ArrayList<>(size);
+		for(int n = 0; n < size; n++) {
+			final Predictor<T> predictor = getPredictor(n);
+			predictors.add(predictor);
+			map.put(predictor, n);
+		}
+		this.map = map;
+		this.predictors = predictors;
+		this.packed = null;
+		this.keys = null;
+	}
+	
+}
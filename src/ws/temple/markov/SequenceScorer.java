@@ -0,0 +1,319 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.stream.IntStream;
+
+import ws.temple.util.LongIntHashMap;
+
+/**
+ * Works out how likely a MarkovChain is to generate given sequences. The
+ * log-probability of every transition is computed once, when the scorer is
+ * built, and kept in a table keyed by Predictor number and token id, along
+ * with the Predictor each transition leads to; scoring a token is then a
+ * single table lookup and an addition, and nothing is allocated per token.
+ * 
+ * Transitions the chain has never seen are smoothed by adding alpha to the
+ * count of every possible token, including the end of the sequence and one
+ * extra for tokens the chain doesn't know at all. Contexts the chain has
+ * never seen give every token the same chance. With an alpha of 0, anything
+ * unseen makes the whole sequence impossible, and its log-probability
+ * negative infinity.
+ * 
+ * Probabilities are natural logs and cover the whole sequence, including
+ * its ending where it does, just as a generated sequence would. Instances are
+ * obtained from {@link MarkovChain#scorer(double)}; later changes to the
+ * chain aren't reflected, and any number of threads may score at once.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class SequenceScorer<T> {
+	
+	/* Batches at least this big are scored in parallel */
+	private static final int PARALLEL_THRESHOLD = 1024;
+	
+	/* Private copies of the chain's token ids and Predictor numbering */
+	protected final TokenDictionary<T> dictionary;
+	protected final PredictorIndex<T> index;
+	
+	protected final int length;
+	protected final double alpha;
+	
+	/* Maps a Predictor number in the high half and a token id in the low half
+	 * to a slot in the arrays below */
+	protected final LongIntHashMap transitions;
+	
+	/* The log-probability of each transition, and the Predictor it leads to,
+	 * or -1 for the end of a sequence and Predictors the chain doesn't have */
+	protected final double[] logs;
+	protected final int[] targets;
+	
+	/* The log-probability of any unseen token after each Predictor */
+	protected final double[] unseen;
+	
+	/* The log-probability of any token after an unseen Predictor */
+	protected final double unseenContext;
+	
+	/* The Predictor every sequence starts from, or -1 if the chain is empty */
+	protected final int start;
+	
+	/**
+	 * Compiles the transitions of the specified chain.
+	 * 
+	 * @param chain
+	 * @param alpha
+	 */
+	@SuppressWarnings("unchecked")
+	SequenceScorer(MarkovChain<T> chain, double alpha) {
+		if(!(alpha >= 0) || Double.isInfinite(alpha))
+			throw new IllegalArgumentException("Alpha must be finite and not negative");
+		
+		this.length = chain.predictorLength;
+		this.alpha = alpha;
+		this.dictionary = new TokenDictionary<>(chain.dictionary);
+		this.index = new PredictorIndex<>(chain.index, dictionary);
+		
+		/* Every id, the null token included, plus one for unknown tokens */
+		final int vocabulary = dictionary.size() + 1;
+		final int predictors = index.size();
+		int slots = 0;
+		for(int n = 0; n < predictors; n++)
+			slots += chain.distributions[n].size();
+		
+		this.transitions = new LongIntHashMap(slots);
+		this.logs = new double[slots];
+		this.targets = new int[slots];
+		this.unseen = new double[predictors];
+		this.unseenContext = alpha > 0 ? -Math.log(vocabulary) : Double.NEGATIVE_INFINITY;
+		
+		int slot = 0;
+		for(int n = 0; n < predictors; n++) {
+			final Distribution dist = chain.distributions[n];
+			final double denominator = Math.log(dist.getTotal() + alpha * vocabulary);
+			unseen[n] = alpha > 0 ? Math.log(alpha) - denominator : Double.NEGATIVE_INFINITY;
+			final Predictor<T> predictor = index.isPacked() ? null : index.getPredictor(n);
+			
+			for(int i = 0; i < dist.size(); i++) {
+				final int id = dist.getId(i);
+				if(dist.getCount(i) == 0)
+					continue;
+				
+				transitions.put(pair(n, id), slot);
+				logs[slot] = Math.log(dist.getCount(i) + alpha) - denominator;
+				if(id == TokenDictionary.NULL)
+					targets[slot] = -1;
+				else if(predictor == null)
+					targets[slot] = index.get(index.roll(index.getKey(n), id));
+				else {
+					final T[] elements = (T[]) new Object[length];
+					if(length > 0) {
+						System.arraycopy(predictor.elements, 1, elements, 0, length - 1);
+						elements[length - 1] = dictionary.get(id);
+					}
+					targets[slot] = index.get(new Predictor<>(elements));
+				}
+				slot++;
+			}
+		}
+		this.start = index.get(new Predictor<>((T[]) new Object[length]));
+	}
+	
+	/**
+	 * Returns the natural log of the probability of the chain generating
+	 * exactly the specified sequence.
+	 * 
+	 * @param sequence
+	 * @return
+	 */
+	public double logProbability(List<? extends T> sequence) {
+		return logProbability(sequence, sequence.size());
+	}
+	
+	/**
+	 * Returns the natural log of the probability of the chain generating
+	 * exactly the specified chars, for chains of Characters such as those
+	 * trained by a NameFeeder.
+	 * 
+	 * @param sequence
+	 * @return
+	 */
+	public double logProbability(CharSequence sequence) {
+		return logProbability(sequence, sequence.length());
+	}
+	
+	/**
+	 * Returns the average log-probability of each of the sequence's
+	 * transitions, counting its ending, so that sequences of different
+	 * lengths can be compared.
+	 * 
+	 * @param sequence
+	 * @return
+	 */
+	public double score(List<? extends T> sequence) {
+		return logProbability(sequence) / (sequence.size() + 1);
+	}
+	
+	/**
+	 * Returns the average log-probability of each of the transitions through
+	 * the specified chars, counting the ending.
+	 * 
+	 * @param sequence
+	 * @return
+	 */
+	public double score(CharSequence sequence) {
+		return logProbability(sequence) / (sequence.length() + 1);
+	}
+	
+	/**
+	 * Returns the perplexity of the chain on the specified sequence: the
+	 * number of equally likely choices that would be as surprising, on
+	 * average, as each of its transitions.
+	 * 
+	 * @param sequence
+	 * @return
+	 */
+	public double perplexity(List<? extends T> sequence) {
+		return Math.exp(-score(sequence));
+	}
+	
+	/**
+	 * Returns the log-probability of each of the specified sequences, scoring
+	 * large batches in parallel.
+	 * 
+	 * @param sequences
+	 * @return
+	 */
+	public double[] logProbabilities(List<? extends List<? extends T>> sequences) {
+		return scoreAll(sequences, false);
+	}
+	
+	/**
+	 * Returns the average log-probability per transition of each of the
+	 * specified sequences, scoring large batches in parallel.
+	 * 
+	 * @param sequences
+	 * @return
+	 */
+	public double[] scores(List<? extends List<? extends T>> sequences) {
+		return scoreAll(sequences, true);
+	}
+	
+	private double[] scoreAll(List<? extends List<? extends T>> sequences, boolean average) {
+		final List<? extends List<? extends T>> list = sequences instanceof RandomAccess ? sequences : List.copyOf(sequences);
+		final double[] results = new double[list.size()];
+		IntStream range = IntStream.range(0, results.length);
+		if(results.length >= PARALLEL_THRESHOLD)
+			range = range.parallel();
+		range.forEach(i -> results[i] = average ? score(list.get(i)) : logProbability(list.get(i)));
+		return results;
+	}
+	
+	/**
+	 * Walks a sequence from the start of a path, summing the log-probability
+	 * of every transition and the ending. The context is tracked as the current
+	 * Predictor's number, which known transitions give directly; after an
+	 * unseen one it's looked up again from a packed key, or from a Predictor
+	 * if the index isn't packed.
+	 * 
+	 * @param sequence
+	 * @param size
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private double logProbability(Object sequence, int size) {
+		final boolean packed = index.isPacked();
+		final Object[] ring = packed ? null : new Object[length];
+		long key = 0;
+		int head = 0;
+		
+		/* The number of upcoming contexts that contain an unknown token */
+		int unknown = 0;
+		
+		int n = start;
+		double sum = 0;
+		for(int i = 0; ; i++) {
+			final T token = i < size ? token(sequence, i) : null;
+			final int id = dictionary.lookup(token);
+			final int slot = n >= 0 && id >= 0 ? transitions.get(pair(n, id)) : LongIntHashMap.MISSING;
+			if(slot >= 0)
+				sum += logs[slot];
+			else
+				sum += n >= 0 ? unseen[n] : unseenContext;
+			if(i == size || sum == Double.NEGATIVE_INFINITY)
+				return sum;
+			
+			if(id < 0)
+				unknown = length;
+			else if(unknown > 0)
+				unknown--;
+			if(packed)
+				key = index.roll(key, Math.max(id, 0));
+			else if(length > 0) {
+				ring[head] = token;
+				head = (head + 1) % length;
+			}
+			
+			if(slot >= 0)
+				n = targets[slot];
+			else if(unknown > 0)
+				n = -1;
+			else if(packed)
+				n = index.get(key);
+			else {
+				final T[] elements = (T[]) new Object[length];
+				for(int j = 0; j < length; j++)
+					elements[j] = (T) ring[(head + j) % length];
+				n = index.get(new Predictor<>(elements));
+			}
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private T token(Object sequence, int i) {
+		if(sequence instanceof CharSequence)
+			return (T) Character.valueOf(((CharSequence) sequence).charAt(i));
+		return ((List<? extends T>) sequence).get(i);
+	}
+	
+	private static long pair(int n, int id) {
+		return ((long) n << 32) | id;
+	}
+	
+	/**
+	 * Returns the smoothing added to the count of every possible token.
+	 * 
+	 * @return
+	 */
+	public double getAlpha() {
+		return alpha;
+	}
+	
+}
@@ -0,0 +1,276 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.random.RandomGenerator;
+
+import ws.temple.markov.ChainSnapshot.Row;
+
+/**
+ * A MarkovChain that can keep being trained while other threads generate
+ * from it. Training goes into the chain itself as usual, but generation
+ * reads an immutable {@link ChainSnapshot}, which only changes when the
+ * writer calls {@link #publish()}. Publishing compiles just the Predictors
+ * whose distributions changed since the last snapshot, shares everything
+ * else with it, and swaps the new snapshot in with a single volatile write,
+ * so its cost depends on how much was trained rather than on the size of
+ * the chain, and readers never lock or see a half-applied update.
+ * 
+ * There should only be one writer at a time: training, publishing, and the
+ * MarkovChain methods that look at the training state directly, like
+ * freeze() and getStats(), aren't safe to call from several threads at
+ * once. The generation methods, next() and {@link #getSnapshot()} may be
+ * called from anywhere.
+ * 
+ * Predictors keep their numbers for as long as the chain exists, since
+ * compiled rows refer to each other by number, so a Predictor whose pairs
+ * have all been removed stays in the chain with nothing to follow it.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class SnapshotMarkovChain<T> extends MarkovChain<T> {
+
+	private static final long serialVersionUID = 7526413092871064253L;
+	
+	/* The snapshot readers currently generate from */
+	private volatile ChainSnapshot<T> snapshot;
+	
+	/* Tokens by id as of the last snapshot; only ever appended to, so
+	 * snapshots can share it */
+	private Object[] tokens = new Object[16];
+	private int tokenCount;
+	
+	/* The rows of the last snapshot; chunks are copied before they change */
+	private Row[][] chunks = new Row[1][];
+	
+	/* Numbers Predictors for the snapshots' next(Predictor) */
+	private final Map<Predictor<T>, Integer> numbers = new ConcurrentHashMap<>();
+	private int numbered;
+	
+	/* The Predictors changed since the last snapshot, as a list and a bitset */
+	private int[] dirty = new int[16];
+	private int dirtyCount;
+	private long[] dirtyBits = new long[1];
+	
+	private long version;
+	
+	/**
+	 * Constructs an empty SnapshotMarkovChain accepting Predictors of the
+	 * specified length, and publishes its first, empty snapshot.
+	 * 
+	 * @param predictorLength
+	 */
+	@SuppressWarnings("unchecked")
+	public SnapshotMarkovChain(int predictorLength) {
+		super(predictorLength);
+		
+		/* Snapshots start every sequence at Predictor 0 */
+		distributionFor(index.put(new Predictor<>((T[]) new Object[predictorLength])));
+		publish();
+	}
+	
+	/**
+	 * Compiles every Predictor changed since the last snapshot and makes the
+	 * result the snapshot that generation reads from, returning it.
+	 * 
+	 * @return
+	 */
+	public ChainSnapshot<T> publish() {
+		final Object[] context = new Object[predictorLength];
+		
+		/* The last snapshot holds the current arrays, so nothing in them can
+		 * change; the outer one is copied, and each chunk before its first
+		 * change. Compiling a row can add Predictors, which are dirty in turn. */
+		chunks = chunks.clone();
+		boolean[] copied = new boolean[chunks.length];
+		for(int i = 0; i < dirtyCount; i++) {
+			final int n = dirty[i];
+			final int c = n >>> ChainSnapshot.CHUNK_BITS;
+			if(c >= chunks.length)
+				chunks = Arrays.copyOf(chunks, Math.max(c + 1, chunks.length * 2));
+			if(c >= copied.length)
+				copied = Arrays.copyOf(copied, chunks.length);
+			if(!copied[c]) {
+				chunks[c] = chunks[c] == null ? new Row[ChainSnapshot.CHUNK_SIZE] : chunks[c].clone();
+				copied[c] = true;
+			}
+			chunks[c][n & (ChainSnapshot.CHUNK_SIZE - 1)] = compile(n, context);
+		}
+		
+		final int size = index.size();
+		for(; numbered < size; numbered++)
+			numbers.put(index.getPredictor(numbered), numbered);
+		
+		final int ids = dictionary.size();
+		if(ids > tokens.length)
+			tokens = Arrays.copyOf(tokens, Math.max(ids, tokens.length * 2));
+		for(; tokenCount < ids; tokenCount++)
+			tokens[tokenCount] = dictionary.get(tokenCount);
+		
+		Arrays.fill(dirtyBits, 0L);
+		dirtyCount = 0;
+		
+		final ChainSnapshot<T> published = new ChainSnapshot<>(predictorLength, tokens, chunks, size, numbers, ++version);
+		snapshot = published;
+		return published;
+	}
+	
+	/**
+	 * Compiles the row for the Predictor with the specified number, or returns
+	 * null if nothing follows it.
+	 * 
+	 * @param n
+	 * @param context
+	 * @return
+	 */
+	private Row compile(int n, Object[] context) {
+		final Distribution dist = distributions[n];
+		int length = 0;
+		for(int i = 0; i < dist.size(); i++)
+			if(dist.getCount(i) > 0)
+				length++;
+		if(length == 0)
+			return null;
+		
+		/* The context following each successor is this Predictor shifted
+		 * along by one, with the successor on the end */
+		if(predictorLength > 0)
+			System.arraycopy(index.getPredictor(n).elements, 1, context, 0, predictorLength - 1);
+		
+		final int[] successors = new int[length];
+		final int[] counts = new int[length];
+		final int[] targets = new int[length];
+		int j = 0;
+		for(int i = 0; i < dist.size(); i++) {
+			final int count = dist.getCount(i);
+			if(count == 0)
+				continue;
+			
+			final int id = dist.getId(i);
+			successors[j] = id;
+			counts[j] = count;
+			if(id == TokenDictionary.NULL)
+				targets[j] = -1;
+			else {
+				if(predictorLength > 0)
+					context[predictorLength - 1] = dictionary.get(id);
+				final int target = index.put(context, 0);
+				if(target >= distributions.length || distributions[target] == null)
+					distributionFor(target);
+				targets[j] = target;
+			}
+			j++;
+		}
+		return new Row(successors, counts, targets);
+	}
+	
+	/**
+	 * Returns the most recently published snapshot.
+	 * 
+	 * @return
+	 */
+	public ChainSnapshot<T> getSnapshot() {
+		return snapshot;
+	}
+	
+	/**
+	 * Returns the number of Predictors changed since the last snapshot was
+	 * published.
+	 * 
+	 * @return
+	 */
+	public int getPendingPredictors() {
+		return dirtyCount;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.MarkovChain#distributionFor(int)
+	 */
+	@Override
+	protected Distribution distributionFor(int n) {
+		if(n >= dirtyBits.length << 6)
+			dirtyBits = Arrays.copyOf(dirtyBits, Math.max((n >>> 6) + 1, dirtyBits.length * 2));
+		if((dirtyBits[n >>> 6] & (1L << n)) == 0) {
+			dirtyBits[n >>> 6] |= 1L << n;
+			if(dirtyCount == dirty.length)
+				dirty = Arrays.copyOf(dirty, dirtyCount * 2);
+			dirty[dirtyCount++] = n;
+		}
+		return super.distributionFor(n);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.MarkovChain#removePair(ws.temple.markov.Predictor, java.lang.Object)
+	 */
+	@Override
+	public boolean removePair(Predictor<T> predictor, T next) {
+		if(!super.removePair(predictor, next))
+			return false;
+		distributionFor(index.get(predictor));
+		return true;
+	}
+	
+	/**
+	 * Does nothing, since Predictors have to keep their numbers; one whose
+	 * pairs have all been removed is compiled with nothing to follow it.
+	 * 
+	 * @param n
+	 */
+	@Override
+	protected void removePredictor(int n) {
+	}
+	
+	/**
+	 * Picks a token to follow the specified Predictor from the current
+	 * snapshot, so pairs added since it was published aren't considered.
+	 * 
+	 * @param predictor
+	 * @param rng
+	 * @return
+	 */
+	@Override
+	public T next(Predictor<T> predictor, RandomGenerator rng) {
+		return snapshot.next(predictor, rng);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.MarkovChain#newCursor(java.util.random.RandomGenerator)
+	 */
+	@Override
+	protected Cursor newCursor(RandomGenerator rng) {
+		return snapshot.newCursor(rng);
+	}
+
+}
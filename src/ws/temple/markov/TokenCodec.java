@@ -0,0 +1,87 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts tokens to and from bytes, so that a chain's token table can be
+ * written to a {@link ChainFile}.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public interface TokenCodec<T> {
+	
+	/* Stores each Character as two bytes */
+	TokenCodec<Character> CHARACTER = new TokenCodec<>() {
+		
+		@Override
+		public byte[] encode(Character token) {
+			final char c = token;
+			return new byte[] { (byte) (c >>> 8), (byte) c };
+		}
+		
+		@Override
+		public Character decode(byte[] bytes) {
+			return (char) (((bytes[0] & 0xff) << 8) | (bytes[1] & 0xff));
+		}
+		
+	};
+	
+	/* Stores each String as UTF-8 */
+	TokenCodec<String> STRING = new TokenCodec<>() {
+		
+		@Override
+		public byte[] encode(String token) {
+			return token.getBytes(StandardCharsets.UTF_8);
+		}
+		
+		@Override
+		public String decode(byte[] bytes) {
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		
+	};
+	
+	/**
+	 * Returns the bytes representing the specified token, which is never null.
+	 * 
+	 * @param token
+	 * @return
+	 */
+	byte[] encode(T token);
+	
+	/**
+	 * Returns the token represented by the specified bytes.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	T decode(byte[] bytes);
+	
+}
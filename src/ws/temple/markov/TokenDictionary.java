@@ -0,0 +1,147 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns each distinct token a dense int id, so that chains can store and
+ * compare tokens as primitives. The null token, which marks the start and
+ * end of a path, always has the id {@link #NULL}.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class TokenDictionary<T> implements Serializable {
+
+	private static final long serialVersionUID = 3702255135581366314L;
+
+	/* The id of the null token */
+	public static final int NULL = 0;
+	
+	/* Returned by lookup() for tokens that have no id */
+	public static final int MISSING = -1;
+	
+	/* Matches each token to its id */
+	protected final Map<T, Integer> ids;
+	
+	/* Tokens indexed by id */
+	protected Object[] tokens;
+	
+	/* The number of ids assigned, including NULL */
+	protected int size = 1;
+	
+	/**
+	 * Constructs a dictionary containing only the null token.
+	 */
+	public TokenDictionary() {
+		this.ids = new HashMap<>();
+		this.tokens = new Object[16];
+	}
+	
+	/**
+	 * Constructs a copy of the specified dictionary.
+	 * 
+	 * @param other
+	 */
+	public TokenDictionary(TokenDictionary<T> other) {
+		this.ids = new HashMap<>(other.ids);
+		this.tokens = Arrays.copyOf(other.tokens, other.size);
+		this.size = other.size;
+	}
+	
+	/**
+	 * Returns the id for the specified token, assigning a new one if needed.
+	 * 
+	 * @param token
+	 * @return
+	 */
+	public int intern(T token) {
+		if(token == null)
+			return NULL;
+		
+		final Integer id = ids.get(token);
+		if(id != null)
+			return id;
+		
+		if(size == tokens.length)
+			tokens = Arrays.copyOf(tokens, size * 2);
+		tokens[size] = token;
+		ids.put(token, size);
+		return size++;
+	}
+	
+	/**
+	 * Returns the id for the specified token, or MISSING if it hasn't been
+	 * assigned one.
+	 * 
+	 * @param token
+	 * @return
+	 */
+	public int lookup(T token) {
+		if(token == null)
+			return NULL;
+		
+		final Integer id = ids.get(token);
+		return id == null ? MISSING : id;
+	}
+	
+	/**
+	 * Returns the token with the specified id.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int id) {
+		return (T) tokens[id];
+	}
+	
+	/**
+	 * Returns a rough estimate of the heap space taken by the dictionary, in
+	 * bytes, not counting the tokens themselves.
+	 * 
+	 * @return
+	 */
+	long estimateBytes() {
+		/* A HashMap node, its share of the table, and a boxed id */
+		return 32 + ChainStats.objectArray(tokens.length) + size * (32L + 8 + 16);
+	}
+	
+	/**
+	 * Returns the number of ids assigned, including NULL.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+	
+}
@@ -0,0 +1,504 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+import ws.temple.util.Histogram;
+import ws.temple.util.LongIntHashMap;
+
+/**
+ * A Markov chain that models every order from zero up to its predictor
+ * length at once, and picks the longest context with enough support when
+ * generating, backing off to shorter ones where the data is thin. That
+ * gives the coherence of a high-order chain where the corpus supports it
+ * and the variety of a low-order one where it doesn't.
+ * 
+ * Contexts are kept in a single trie, each node standing for one context.
+ * A context is stored once, as a single child entry under the context it
+ * extends, rather than once per order in separate chains. Every node also
+ * links to the node for its context minus its first token, which is where
+ * backing off goes, and stepping forward after a token just follows that
+ * link and one child, rather than walking the whole context from the root
+ * again.
+ * 
+ * Only the contexts that pairs are actually recorded against, those of the
+ * highest order and those at the start of a path, keep a Distribution of
+ * their successors. Every shorter context keeps just a total, which is all
+ * that's needed to decide whether to back off from it. Its successor counts
+ * are the sums of those of the contexts that back off to it, so sampling
+ * from it picks one of those in proportion to its total and carries on down
+ * until it reaches a Distribution. That keeps memory close to a single chain
+ * of the highest order. The index used for that descent is built the first
+ * time it's needed and thrown away whenever the counts change, so training
+ * and generating in alternation is best avoided.
+ * 
+ * With a minimum support of 1 the chain generates exactly what a
+ * MarkovChain of the highest order would.
+ * 
+ * The start of a path is stored as a single null token at the front of a
+ * context, so contexts near the start are shorter than the predictor
+ * length. Predictors passed in follow the usual convention of padding
+ * the front with nulls, so the existing feeders work unchanged.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ */
+public class VariableOrderMarkovChain<T> extends AbstractMarkovChain<T> {
+
+	private static final long serialVersionUID = 6127835096406254780L;
+	
+	/* Contexts followed fewer times than this are backed off from, by default */
+	public static final int DEFAULT_MIN_SUPPORT = 2;
+	
+	/* The node for the empty context */
+	private static final int ROOT = 0;
+	
+	/* Assigns each token an int id */
+	protected final TokenDictionary<T> dictionary = new TokenDictionary<>();
+	
+	/* The least number of times a context must have been followed to be used */
+	protected final int minSupport;
+	
+	/* Maps a node's number in the high half and a token id in the low half to
+	 * the node for the context extended by that token */
+	protected final LongIntHashMap children = new LongIntHashMap();
+	
+	/* The node for each node's context without its first token */
+	protected int[] suffixes = new int[16];
+	
+	/* The length of each node's context */
+	protected byte[] depths = new byte[16];
+	
+	/* The number of pairs counted against each node's context; the shorter
+	 * contexts sum over many distributions, so these are longs */
+	protected long[] totals = new long[16];
+	
+	/* The tokens seen following each node's context, for the contexts pairs
+	 * are recorded against; null for shorter contexts */
+	protected Distribution[] distributions = new Distribution[16];
+	
+	/* The number of nodes, including the root */
+	protected int size;
+	
+	/* Used by sample() to descend from a shorter context; built on demand and
+	 * null when stale */
+	private transient volatile Backoff backoff;
+	
+	/* Reused by addPair() for the ids of a context */
+	private transient int[] scratch;
+	
+	/**
+	 * Constructs an empty chain using contexts of up to the specified length,
+	 * backing off from those with too little support.
+	 * 
+	 * @param maxOrder
+	 */
+	public VariableOrderMarkovChain(int maxOrder) {
+		this(maxOrder, DEFAULT_MIN_SUPPORT);
+	}
+	
+	/**
+	 * Constructs an empty chain using contexts of up to the specified length,
+	 * backing off from any context followed fewer than minSupport times.
+	 * 
+	 * @param maxOrder
+	 * @param minSupport
+	 */
+	public VariableOrderMarkovChain(int maxOrder, int minSupport) {
+		super(maxOrder);
+		if(maxOrder > Byte.MAX_VALUE)
+			throw new IllegalArgumentException("Order must be " + Byte.MAX_VALUE + " or less");
+		if(minSupport < 1)
+			throw new IllegalArgumentException("Minimum support must be positive");
+		
+		this.minSupport = minSupport;
+		newNode(0, ROOT, maxOrder == 0);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#addPair(ws.temple.markov.Predictor, java.lang.Object)
+	 */
+	@Override
+	public void addPair(Predictor<T> predictor, T next) {
+		addPair(predictor, next, 1);
+	}
+	
+	/**
+	 * Adds the specified number of occurrences of a predictor/next-token pair to
+	 * this Markov chain, counting it against the Predictor's context and every
+	 * shorter context it ends with.
+	 * 
+	 * @param predictor
+	 * @param next
+	 * @param count
+	 */
+	public void addPair(Predictor<T> predictor, T next, int count) {
+		if(predictor.size() != predictorLength)
+			throw new IllegalArgumentException("Predictor length does not match chain");
+		if(count < 0)
+			throw new IllegalArgumentException("Count must not be negative");
+		
+		int[] context = scratch;
+		if(context == null)
+			scratch = context = new int[predictorLength];
+		add(context, encode(predictor.elements, 0, context, true), dictionary.intern(next), count);
+		
+		final ChainMetrics metrics = this.metrics;
+		if(metrics != null)
+			metrics.recordPairs(count);
+	}
+	
+	/**
+	 * Adds every pair in the specified batch to this Markov chain, reading the
+	 * contexts straight out of the batch.
+	 * 
+	 * @param batch
+	 */
+	@Override
+	public void addPairs(PairBatch<T> batch) {
+		if(batch.getPredictorLength() != predictorLength)
+			throw new IllegalArgumentException("Predictor length does not match chain");
+		
+		final TrainingEvent event = new TrainingEvent();
+		event.begin();
+		
+		final int[] context = new int[predictorLength];
+		for(int i = 0; i < batch.size(); i++) {
+			final int length = encode(batch.contexts, i * predictorLength, context, true);
+			add(context, length, dictionary.intern(batch.getNext(i)), 1);
+		}
+		endTraining(event, "addPairs", batch.size(), true);
+	}
+	
+	/**
+	 * Counts a token against the node for the specified context, and adds to the
+	 * totals of every node on its chain of suffixes, down to the root.
+	 * 
+	 * @param context
+	 * @param length
+	 * @param next
+	 * @param count
+	 */
+	private void add(int[] context, int length, int next, int count) {
+		int node = ROOT;
+		for(int i = 0; i < length; i++)
+			node = childFor(node, context[i]);
+		
+		/* A Predictor's context is always either of the highest order or at
+		 * the start of a path, so it has a distribution of its own */
+		distributions[node].add(next, count);
+		for(; ; node = suffixes[node]) {
+			totals[node] += count;
+			if(node == ROOT)
+				break;
+		}
+		if(backoff != null)
+			backoff = null;
+	}
+	
+	/**
+	 * Converts a Predictor's tokens to the ids of its context, returning the
+	 * context's length. Leading nulls become a single null marking the start of
+	 * a path. Without interning, a token that has never been seen cuts off
+	 * everything before it, since no stored context can contain it.
+	 * 
+	 * @param elements
+	 * @param offset
+	 * @param context
+	 * @param intern
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private int encode(Object[] elements, int offset, int[] context, boolean intern) {
+		int length = 0;
+		for(int i = 0; i < predictorLength; i++) {
+			final T token = (T) elements[offset + i];
+			if(token == null) {
+				context[0] = TokenDictionary.NULL;
+				length = 1;
+			}
+			else {
+				final int id = intern ? dictionary.intern(token) : dictionary.lookup(token);
+				if(id == TokenDictionary.MISSING)
+					length = 0;
+				else
+					context[length++] = id;
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * Returns the node for a context extended by one token, creating it, and
+	 * the nodes for its suffixes, if they don't exist yet.
+	 * 
+	 * @param node
+	 * @param id
+	 * @return
+	 */
+	private int childFor(int node, int id) {
+		final long key = key(node, id);
+		int child = children.get(key);
+		if(child == LongIntHashMap.MISSING) {
+			final int suffix = node == ROOT ? ROOT : childFor(suffixes[node], id);
+			
+			/* Contexts that start a path keep their own distributions, as do
+			 * those of the highest order */
+			final int depth = depths[node] + 1;
+			final boolean starts = node == ROOT ? id == TokenDictionary.NULL : distributions[node] != null;
+			child = newNode(depth, suffix, starts || depth == predictorLength);
+			children.put(key, child);
+		}
+		return child;
+	}
+	
+	private int newNode(int depth, int suffix, boolean recorded) {
+		final int node = size++;
+		if(node == suffixes.length) {
+			suffixes = Arrays.copyOf(suffixes, node * 2);
+			depths = Arrays.copyOf(depths, node * 2);
+			totals = Arrays.copyOf(totals, node * 2);
+			distributions = Arrays.copyOf(distributions, node * 2);
+		}
+		suffixes[node] = suffix;
+		depths[node] = (byte) depth;
+		if(recorded)
+			distributions[node] = new Distribution();
+		return node;
+	}
+	
+	private static long key(int node, int id) {
+		return ((long) node << 32) | id;
+	}
+	
+	/**
+	 * Returns the node for the longest context that ends with the specified
+	 * node's context followed by a token. The deepest nodes have no children,
+	 * so their suffix is extended instead.
+	 * 
+	 * @param node
+	 * @param id
+	 * @return
+	 */
+	private int advance(int node, int id) {
+		if(depths[node] == predictorLength)
+			node = suffixes[node];
+		for(; ; node = suffixes[node]) {
+			final int child = children.get(key(node, id));
+			if(child != LongIntHashMap.MISSING)
+				return child;
+			if(node == ROOT)
+				return ROOT;
+		}
+	}
+	
+	/**
+	 * Returns a random token id to follow the specified node's context, backing
+	 * off to shorter contexts until one has enough support. Returns -1 if even
+	 * the empty context has nothing to follow it.
+	 * 
+	 * @param node
+	 * @param rng
+	 * @return
+	 */
+	private int sample(int node, RandomGenerator rng) {
+		while(node != ROOT && totals[node] < minSupport)
+			node = suffixes[node];
+		if(totals[node] == 0)
+			return -1;
+		if(distributions[node] != null)
+			return distributions[node].sample(rng);
+		
+		/* Descend through the contexts that back off to this one, each picked
+		 * in proportion to its total, spending a single draw on the way */
+		Backoff backoff = this.backoff;
+		if(backoff == null)
+			this.backoff = backoff = new Backoff();
+		long value = rng.nextLong(totals[node]);
+		while(distributions[node] == null) {
+			int lo = backoff.offsets[node];
+			int hi = backoff.offsets[node + 1] - 1;
+			while(lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if(backoff.cumulative[mid] > value)
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+			if(lo > backoff.offsets[node])
+				value -= backoff.cumulative[lo - 1];
+			node = backoff.nodes[lo];
+		}
+		/* A node with a distribution counts nothing but its own pairs, so the
+		 * remaining value is within the distribution's int total */
+		return distributions[node].getId(distributions[node].find((int) value));
+	}
+	
+	/**
+	 * For every node without a distribution, the nodes that back off to it and
+	 * the running totals of their counts. Each node backs off to exactly one
+	 * other, so this takes two ints and a long per node however deep the chain
+	 * is.
+	 */
+	private final class Backoff {
+		
+		/* The nodes backing off to node n occupy [offsets[n], offsets[n + 1])
+		 * in the arrays below */
+		final int[] offsets = new int[size + 1];
+		final int[] nodes = new int[size];
+		final long[] cumulative = new long[size];
+		
+		Backoff() {
+			for(int node = 1; node < size; node++)
+				offsets[suffixes[node] + 1]++;
+			for(int node = 0; node < size; node++)
+				offsets[node + 1] += offsets[node];
+			
+			final int[] next = Arrays.copyOf(offsets, size);
+			for(int node = 1; node < size; node++)
+				nodes[next[suffixes[node]]++] = node;
+			
+			for(int node = 0; node < size; node++) {
+				long accum = 0;
+				for(int i = offsets[node]; i < offsets[node + 1]; i++)
+					cumulative[i] = accum += totals[nodes[i]];
+			}
+		}
+		
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#next(ws.temple.markov.Predictor, java.util.random.RandomGenerator)
+	 */
+	@Override
+	public T next(Predictor<T> predictor, RandomGenerator rng) {
+		final int[] context = new int[predictorLength];
+		final int length = encode(predictor.elements, 0, context, false);
+		
+		/* Find the longest stored context the Predictor ends with */
+		int node = ROOT;
+		for(int start = 0; start <= length; start++) {
+			node = ROOT;
+			for(int i = start; i < length && node != LongIntHashMap.MISSING; i++)
+				node = children.get(key(node, context[i]));
+			if(node != LongIntHashMap.MISSING)
+				break;
+		}
+		
+		final int id = sample(node, rng);
+		return id <= TokenDictionary.NULL ? null : dictionary.get(id);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see ws.temple.markov.AbstractMarkovChain#newCursor(java.util.random.RandomGenerator)
+	 */
+	@Override
+	protected Cursor newCursor(RandomGenerator rng) {
+		return new Cursor(rng) {
+			
+			/* The node for the longest context the sequence so far ends with */
+			private int node = predictorLength == 0 ? ROOT : children.get(key(ROOT, TokenDictionary.NULL));
+			
+			@Override
+			public T next() {
+				if(node == LongIntHashMap.MISSING)
+					return null;
+				
+				final int id = sample(node, rng);
+				if(id <= TokenDictionary.NULL)
+					return null;
+				node = advance(node, id);
+				return dictionary.get(id);
+			}
+			
+		};
+	}
+	
+	/**
+	 * Returns the number of distinct contexts in this chain, of every length,
+	 * including the empty one.
+	 * 
+	 * @return
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the least number of times a context must have been followed for
+	 * it to be used in generation.
+	 * 
+	 * @return
+	 */
+	public int getMinSupport() {
+		return minSupport;
+	}
+	
+	/**
+	 * Returns the dictionary of token ids used by this chain.
+	 * 
+	 * @return
+	 */
+	public TokenDictionary<T> getDictionary() {
+		return dictionary;
+	}
+	
+	/**
+	 * Takes a snapshot of the chain's size and shape, counting each context as
+	 * a Predictor. Every pair is counted against the empty context, so that
+	 * context's total is the number of pairs. The fanout only covers the
+	 * contexts that keep their own distributions.
+	 * 
+	 * @return
+	 */
+	public ChainStats getStats() {
+		final Histogram fanout = new Histogram();
+		long bytes = 64 + ChainStats.intArray(suffixes.length) + 16 + depths.length + ChainStats.longArray(totals.length)
+				+ ChainStats.objectArray(distributions.length) + children.estimateBytes() + dictionary.estimateBytes();
+		
+		for(int node = 0; node < size; node++) {
+			if(distributions[node] != null) {
+				fanout.record(distributions[node].size());
+				bytes += distributions[node].estimateBytes();
+			}
+		}
+		
+		final Backoff backoff = this.backoff;
+		if(backoff != null)
+			bytes += 3 * 16 + ChainStats.intArray(backoff.offsets.length) + ChainStats.intArray(backoff.nodes.length)
+					+ ChainStats.longArray(backoff.cumulative.length);
+		return new ChainStats(size, dictionary.size() - 1, totals[ROOT], fanout, bytes);
+	}
+
+}
@@ -0,0 +1,130 @@
+package ws.temple.markov.feeders;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import ws.temple.markov.AbstractMarkovChain;
+import ws.temple.markov.CharMarkovChain;
+
+/**
+ * Feeds paths into a CharMarkovChain one char at a time, keeping the
+ * context as a packed long so that nothing is boxed or allocated per
+ * char. This is the primitive counterpart to SequentialFeeder.
+ * 
+ * Like SequentialFeeder, a CharFeeder tracks the path it's in the middle
+ * of, so each one should only be used by one thread at a time, and it
+ * records each path it completes in the chain's source filter if there
+ * is one.
+ * 
+ * @author Brian Dixon
+ */
+public class CharFeeder {
+	
+	/* The chain that this object feeds */
+	protected final CharMarkovChain chain;
+	
+	/* The codes of the last few chars, packed by the chain */
+	protected long context;
+	
+	/* The hash of the chars in the current path */
+	protected long pathHash = AbstractMarkovChain.PATH_SEED;
+	
+	/* The number of chars and path ends fed so far */
+	protected long tokenCount;
+	protected long pathCount;
+	
+	/**
+	 * Constructs a feeder for the specified chain.
+	 * 
+	 * @param chain
+	 */
+	public CharFeeder(CharMarkovChain chain) {
+		this.chain = chain;
+	}
+	
+	/**
+	 * Adds the specified char to the chain, using the previous chars as the
+	 * context.
+	 * 
+	 * @param c
+	 * @return
+	 */
+	public CharFeeder registerChar(char c) {
+		final int code = chain.encode(c);
+		chain.increment(context, code);
+		context = chain.roll(context, code);
+		pathHash = AbstractMarkovChain.hashPath(pathHash, c);
+		tokenCount++;
+		return this;
+	}
+	
+	/**
+	 * Adds every char in the specified range of a sequence, in order.
+	 * 
+	 * @param chars
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public CharFeeder registerChars(CharSequence chars, int start, int end) {
+		for(int i = start; i < end; i++)
+			registerChar(chars.charAt(i));
+		return this;
+	}
+	
+	/**
+	 * Marks the end of a path, so that paths may end on the previously
+	 * registered char, and starts a new one.
+	 * 
+	 * @return
+	 */
+	public CharFeeder endPath() {
+		chain.increment(context, CharMarkovChain.END);
+		chain.recordPath(pathHash);
+		context = 0;
+		pathHash = AbstractMarkovChain.PATH_SEED;
+		pathCount++;
+		return this;
+	}
+	
+	/**
+	 * Returns the number of tokens registered, not counting path ends.
+	 * 
+	 * @return
+	 */
+	public long getTokenCount() {
+		return tokenCount;
+	}
+	
+	/**
+	 * Returns the number of paths ended.
+	 * 
+	 * @return
+	 */
+	public long getPathCount() {
+		return pathCount;
+	}
+	
+}
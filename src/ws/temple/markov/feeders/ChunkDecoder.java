@@ -0,0 +1,223 @@
+package ws.temple.markov.feeders;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Decodes bytes into chars in large chunks, handing each chunk to a Sink
+ * in the same reusable CharBuffer. Files are memory-mapped a window at a
+ * time, so they can be far larger than the heap, and no per-line objects
+ * are created along the way. Malformed input is replaced, as it would be
+ * by an InputStreamReader.
+ * 
+ * A decoder may be reused, but only by one thread at a time.
+ * 
+ * @author Brian Dixon
+ */
+public class ChunkDecoder {
+	
+	/**
+	 * Receives decoded chars.
+	 */
+	public interface Sink {
+		
+		/**
+		 * Consumes the chars between the buffer's position and limit. The
+		 * buffer is reused once this returns, so it mustn't be kept.
+		 * 
+		 * @param chars
+		 * @throws IOException
+		 */
+		void accept(CharBuffer chars) throws IOException;
+		
+	}
+	
+	/* The most of a file that is mapped at once */
+	private static final long WINDOW_SIZE = 1L << 26;
+	
+	private static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+	
+	protected final CharsetDecoder decoder;
+	protected final CharBuffer chars;
+	protected final int chunkSize;
+	
+	/**
+	 * Constructs a decoder for the specified charset.
+	 * 
+	 * @param charset
+	 */
+	public ChunkDecoder(Charset charset) {
+		this(charset, DEFAULT_CHUNK_SIZE);
+	}
+	
+	/**
+	 * Constructs a decoder for the specified charset, handing chars to its Sink
+	 * in chunks of up to the given size.
+	 * 
+	 * @param charset
+	 * @param chunkSize
+	 */
+	public ChunkDecoder(Charset charset, int chunkSize) {
+		this.decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.chars = CharBuffer.allocate(chunkSize);
+		this.chunkSize = chunkSize;
+	}
+	
+	/**
+	 * Decodes the whole of the specified file.
+	 * 
+	 * @param file
+	 * @param sink
+	 * @throws IOException
+	 */
+	public void decode(Path file, Sink sink) throws IOException {
+		decode(file, 0, Long.MAX_VALUE, sink);
+	}
+	
+	/**
+	 * Decodes the bytes in [start, end) of the specified file, or up to the end of
+	 * the file if that comes first.
+	 * 
+	 * @param file
+	 * @param start
+	 * @param end
+	 * @param sink
+	 * @throws IOException
+	 */
+	public void decode(Path file, long start, long end, Sink sink) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			end = Math.min(end, channel.size());
+			begin();
+			
+			long pos = start;
+			do {
+				final long length = Math.max(0, Math.min(WINDOW_SIZE, end - pos));
+				final boolean last = pos + length >= end;
+				final ByteBuffer bytes = length == 0 ? ByteBuffer.allocate(0) : channel.map(MapMode.READ_ONLY, pos, length);
+				
+				/* A char split across windows is left undecoded, and the next
+				 * window starts from its first byte */
+				drain(bytes, last, sink);
+				pos += bytes.position();
+				if(last)
+					break;
+			} while(true);
+			
+			finish(sink);
+		}
+	}
+	
+	/**
+	 * Decodes everything that can be read from the specified stream, and closes it.
+	 * 
+	 * @param is
+	 * @param sink
+	 * @throws IOException
+	 */
+	public void decode(InputStream is, Sink sink) throws IOException {
+		try(ReadableByteChannel channel = Channels.newChannel(is)) {
+			decode(channel, sink);
+		}
+	}
+	
+	/**
+	 * Decodes everything that can be read from the specified channel.
+	 * 
+	 * @param channel
+	 * @param sink
+	 * @throws IOException
+	 */
+	public void decode(ReadableByteChannel channel, Sink sink) throws IOException {
+		final ByteBuffer bytes = ByteBuffer.allocateDirect(chunkSize);
+		begin();
+		
+		boolean eof = false;
+		while(!eof) {
+			eof = channel.read(bytes) < 0;
+			bytes.flip();
+			drain(bytes, eof, sink);
+			bytes.compact();
+		}
+		
+		finish(sink);
+	}
+	
+	private void begin() {
+		decoder.reset();
+		chars.clear();
+	}
+	
+	/**
+	 * Decodes as much of the specified bytes as possible, handing chars to the
+	 * sink whenever the buffer fills.
+	 * 
+	 * @param bytes
+	 * @param endOfInput
+	 * @param sink
+	 * @throws IOException
+	 */
+	private void drain(ByteBuffer bytes, boolean endOfInput, Sink sink) throws IOException {
+		while(true) {
+			final CoderResult result = decoder.decode(bytes, chars, endOfInput);
+			if(result.isUnderflow())
+				return;
+			if(result.isOverflow())
+				emit(sink);
+			else
+				result.throwException();
+		}
+	}
+	
+	private void finish(Sink sink) throws IOException {
+		while(decoder.flush(chars).isOverflow())
+			emit(sink);
+		emit(sink);
+	}
+	
+	private void emit(Sink sink) throws IOException {
+		chars.flip();
+		if(chars.hasRemaining())
+			sink.accept(chars);
+		chars.clear();
+	}
+	
+}
@@ -25,66 +25,205 @@ package ws.temple.markov.feeders;
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Arrays;
 
-import ws.temple.markov.MarkovChain;
+import ws.temple.markov.AbstractMarkovChain;
+import ws.temple.markov.CharMarkovChain;
+import ws.temple.markov.feeders.ParallelTrainer.FileShard;
 
 /**
  * Reads a newline-separated list of names into a MarkovChain.
  * 
+ * Input is decoded in bulk by a ChunkDecoder, and each name is trimmed and
+ * upper-cased in place as its chars go by, so no Strings are created per
+ * line. Lines end at '\n', '\r' or "\r\n", as with BufferedReader. Each char
+ * is upper-cased on its own with Character.toUpperCase(), which ignores the
+ * default locale and never expands a char into several (as
+ * String.toUpperCase() does with the German sharp s, for instance).
+ * 
+ * When the chain is a CharMarkovChain, names are fed through a CharFeeder
+ * instead, so no chars are boxed either.
+ * 
  * @author Brian Dixon
  */
 public class NameFeeder extends SequentialFeeder<Character> {
 
+	/* Used instead of registerToken() when feeding a CharMarkovChain */
+	protected final CharFeeder charFeeder;
+	
+	/* Whitespace seen since the last visible char of the current line; it's
+	 * only fed once something visible follows it */
+	private char[] pending = new char[16];
+	private int pendingLength;
+	
+	/* Whether the current line has any chars, and any visible ones */
+	private boolean lineStarted;
+	private boolean nameStarted;
+	
+	/* Whether the last char was a '\r', so a '\n' right after it is skipped */
+	private boolean afterReturn;
+	
 	/**
 	 * Constructs a NameFeeder instance feeding the specified MarkovChain.
 	 * 
 	 * @param chain
 	 */
-	public NameFeeder(MarkovChain<Character> chain) {
-		super(chain);
+	public NameFeeder(AbstractMarkovChain<Character> chain) {
+		super(chain, DEFAULT_BATCH_SIZE);
+		this.charFeeder = chain instanceof CharMarkovChain ? new CharFeeder((CharMarkovChain) chain) : null;
 	}
 
 	/**
-	 * Reads names from the specified InputStream.
+	 * Reads names from the specified InputStream, using the default charset for
+	 * the current JVM.
 	 * 
 	 * @param is
 	 */
 	public void feed(InputStream is) throws IOException {
-		try(BufferedReader br = new BufferedReader(new InputStreamReader(is));) {
+		feed(is, Charset.defaultCharset());
+	}
+	
+	/**
+	 * Reads names from the specified InputStream using the given charset.
+	 * 
+	 * @param is
+	 * @param charset
+	 * @throws IOException
+	 */
+	public void feed(InputStream is, Charset charset) throws IOException {
+		new ChunkDecoder(charset).decode(is, this::feedChars);
+		endInput();
+	}
+	
+	/**
+	 * Reads names from the specified file using the given charset. The file is
+	 * memory-mapped rather than read through the heap.
+	 * 
+	 * @param file
+	 * @param charset
+	 * @throws IOException
+	 */
+	public void feed(Path file, Charset charset) throws IOException {
+		new ChunkDecoder(charset).decode(file, this::feedChars);
+		endInput();
+	}
+	
+	/**
+	 * Reads names from the specified shard of a file using the given charset.
+	 * 
+	 * @param shard
+	 * @param charset
+	 * @throws IOException
+	 */
+	public void feed(FileShard shard, Charset charset) throws IOException {
+		new ChunkDecoder(charset).decode(shard.getFile(), shard.getStart(), shard.getEnd(), this::feedChars);
+		endInput();
+	}
+	
+	/**
+	 * Feeds a chunk of decoded chars, which may start or end partway through
+	 * a line.
+	 * 
+	 * @param chars
+	 */
+	private void feedChars(CharBuffer chars) {
+		for(int i = chars.position(); i < chars.limit(); i++) {
+			final char c = chars.get(i);
 			
-			String line;
-			while((line = br.readLine()) != null) {
-				
-				/* registerToken() adds a new entry in the MarkovChain
-				 * associating the previous tokens (as a Predictor)
-				 * with the token passed as an argument. The window
-				 * size is acquired from the MarkovChain automatically.
-				 *
-				 * As an analogy, if you were writing a Feeder for a
-				 * sentence generator, you would call this method on
-				 * each word in the source text.
-				 */
-				for(char c : line.toUpperCase().trim().toCharArray())
-					this.registerToken(c);
-				
-				/* endPath() associates the last set of tokens with
-				 * a null token, which means that generates sequences
-				 * may end after such a set. This method also prepares
-				 * the MarkovChain to register a predictor that can
-				 * begin a sequence.
-				 *
-				 * Referring again to the analogy of the text generator,
-				 * you would probably want to call this method at the
-				 * end of each sentence, or perhaps each independant
-				 * clause, in the source text.
-				 */
-				this.endPath();
+			if(c == '\n' && afterReturn) {
+				afterReturn = false;
+				continue;
+			}
+			afterReturn = c == '\r';
+			if(c == '\n' || c == '\r') {
+				endLine();
+				continue;
 			}
+			
+			lineStarted = true;
+			if(c <= ' ') {
+				/* Leading whitespace is dropped, and anything else is held
+				 * back in case it turns out to be trailing */
+				if(nameStarted) {
+					if(pendingLength == pending.length)
+						pending = Arrays.copyOf(pending, pendingLength * 2);
+					pending[pendingLength++] = c;
+				}
+				continue;
+			}
+			
+			for(int j = 0; j < pendingLength; j++)
+				register(pending[j]);
+			pendingLength = 0;
+			nameStarted = true;
+			register(Character.toUpperCase(c));
 		}
 	}
+	
+	/**
+	 * Feeds a single char of a name.
+	 * 
+	 * @param c
+	 */
+	private void register(char c) {
+		if(charFeeder != null) {
+			charFeeder.registerChar(c);
+			return;
+		}
+		
+		/* registerToken() adds a new entry in the MarkovChain
+		 * associating the previous tokens (as a Predictor)
+		 * with the token passed as an argument. The window
+		 * size is acquired from the MarkovChain automatically.
+		 *
+		 * As an analogy, if you were writing a Feeder for a
+		 * sentence generator, you would call this method on
+		 * each word in the source text.
+		 */
+		this.registerToken(c);
+	}
+	
+	/**
+	 * Finishes the current name.
+	 */
+	private void endLine() {
+		pendingLength = 0;
+		lineStarted = false;
+		nameStarted = false;
+		
+		if(charFeeder != null) {
+			charFeeder.endPath();
+			return;
+		}
+		
+		/* endPath() associates the last set of tokens with
+		 * a null token, which means that generates sequences
+		 * may end after such a set. This method also prepares
+		 * the MarkovChain to register a predictor that can
+		 * begin a sequence.
+		 *
+		 * Referring again to the analogy of the text generator,
+		 * you would probably want to call this method at the
+		 * end of each sentence, or perhaps each independant
+		 * clause, in the source text.
+		 */
+		this.endPath();
+	}
+	
+	/**
+	 * Finishes the last name, if the input didn't end with a newline, and
+	 * hands any batched pairs to the chain.
+	 */
+	private void endInput() {
+		if(lineStarted)
+			endLine();
+		afterReturn = false;
+		flush();
+	}
 
 }
@@ -0,0 +1,371 @@
+package ws.temple.markov.feeders;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import ws.temple.markov.MarkovChain;
+
+/**
+ * Trains a MarkovChain from several shards of input at once. Each shard is
+ * fed into a private MarkovChain on a fork/join worker, and the results are
+ * combined with {@link MarkovChain#merge(MarkovChain)}, so the counts come
+ * out exactly as if the shards had been fed one after another.
+ * 
+ * As an example, a newline-separated list of names can be split into
+ * line-aligned shards and trained like so:
+ * 
+ * <pre>
+ * ParallelTrainer&lt;Character, FileShard&gt; trainer = new ParallelTrainer&lt;&gt;(3,
+ *     (chain, shard) -&gt; new NameFeeder(chain).feed(shard, StandardCharsets.UTF_8));
+ * MarkovChain&lt;Character&gt; chain = trainer.train(ParallelTrainer.splitLines(path, 64));
+ * </pre>
+ * 
+ * @author Brian Dixon
+ *
+ * @param <T>
+ * @param <S>
+ */
+public class ParallelTrainer<T, S> {
+	
+	/**
+	 * Feeds a single shard of input into a chain.
+	 *
+	 * @param <T>
+	 * @param <S>
+	 */
+	public interface ShardFeeder<T, S> {
+		
+		/**
+		 * Feeds the specified shard into the chain. Each call gets its own
+		 * chain, so implementations don't need to be thread-safe as long as
+		 * they don't share state between calls.
+		 * 
+		 * @param chain
+		 * @param shard
+		 * @throws IOException
+		 */
+		void feed(MarkovChain<T> chain, S shard) throws IOException;
+		
+	}
+	
+	/* The number of tokens expected from Predictors */
+	protected final int predictorLength;
+	
+	/* Feeds each shard into its chain */
+	protected final ShardFeeder<T, S> feeder;
+	
+	/**
+	 * Constructs a trainer producing chains with the specified Predictor length.
+	 * 
+	 * @param predictorLength
+	 * @param feeder
+	 */
+	public ParallelTrainer(int predictorLength, ShardFeeder<T, S> feeder) {
+		this.predictorLength = predictorLength;
+		this.feeder = feeder;
+	}
+	
+	/**
+	 * Trains a chain from the specified shards using the common fork/join pool.
+	 * 
+	 * @param shards
+	 * @return
+	 * @throws IOException
+	 */
+	public MarkovChain<T> train(List<? extends S> shards) throws IOException {
+		return train(shards, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Trains a chain from the specified shards using the given fork/join pool.
+	 * 
+	 * @param shards
+	 * @param pool
+	 * @return
+	 * @throws IOException
+	 */
+	public MarkovChain<T> train(List<? extends S> shards, ForkJoinPool pool) throws IOException {
+		if(shards.isEmpty())
+			return new MarkovChain<>(predictorLength);
+		try {
+			return pool.invoke(new TrainTask(shards));
+		}
+		catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Trains the shards in one half of a list while the other half is trained
+	 * in parallel, then merges the two.
+	 */
+	private class TrainTask extends RecursiveTask<MarkovChain<T>> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final List<? extends S> shards;
+		
+		TrainTask(List<? extends S> shards) {
+			this.shards = shards;
+		}
+		
+		@Override
+		protected MarkovChain<T> compute() {
+			if(shards.size() == 1) {
+				final MarkovChain<T> chain = new MarkovChain<>(predictorLength);
+				try {
+					feeder.feed(chain, shards.get(0));
+				}
+				catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return chain;
+			}
+			
+			final int mid = shards.size() / 2;
+			final TrainTask left = new TrainTask(shards.subList(0, mid));
+			left.fork();
+			final MarkovChain<T> right = new TrainTask(shards.subList(mid, shards.size())).compute();
+			final MarkovChain<T> joined = left.join();
+			
+			/* Merging costs time in proportion to the chain being merged in,
+			 * so the smaller one is always merged into the larger */
+			if(joined.size() >= right.size()) {
+				joined.merge(right);
+				return joined;
+			}
+			right.merge(joined);
+			return right;
+		}
+		
+	}
+	
+	/**
+	 * Splits the specified file into roughly equal shards, each ending just after
+	 * a newline (or at the end of the file). The file is expected to use an
+	 * encoding in which a newline is always the single byte '\n', such as UTF-8
+	 * or any ASCII-compatible single-byte charset.
+	 * 
+	 * @param file
+	 * @param count
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<FileShard> splitLines(Path file, int count) throws IOException {
+		return split(file, count, (prev, b) -> prev == '\n');
+	}
+	
+	/**
+	 * Splits the specified file into roughly equal shards for a
+	 * {@link WordFeeder}, each ending at the end of a sentence (or of the
+	 * file). Shards begin at the whitespace after a '.', '!' or '?', or at
+	 * the second newline of a blank line, both of which always end a sentence
+	 * for a WordFeeder. The same encoding restrictions apply as for
+	 * {@link #splitLines(Path, int)}.
+	 * 
+	 * @param file
+	 * @param count
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<FileShard> splitSentences(Path file, int count) throws IOException {
+		return split(file, count, (prev, b) -> {
+			if(prev == '\n')
+				return b == '\n';
+			return (prev == '.' || prev == '!' || prev == '?')
+					&& (b == ' ' || b == '\t' || b == '\n' || b == '\r');
+		});
+	}
+	
+	/**
+	 * Decides whether a shard may begin at a byte, given the byte before it.
+	 */
+	private interface Boundary {
+		
+		boolean test(byte prev, byte b);
+		
+	}
+	
+	private static List<FileShard> split(Path file, int count, Boundary boundary) throws IOException {
+		final List<FileShard> shards = new ArrayList<>(count);
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			final ByteBuffer buffer = ByteBuffer.allocate(8192);
+			
+			long start = 0;
+			for(int i = 1; i <= count && start < size; i++) {
+				long end = i == count ? size : Math.max(start + 1, size * i / count);
+				
+				/* Move the boundary forward to the next byte a shard may
+				 * begin at; the read starts a byte early to see what
+				 * comes before it */
+				scan:
+				while(end < size) {
+					buffer.clear();
+					final int read = channel.read(buffer, end - 1);
+					if(read < 2) {
+						end = size;
+						break;
+					}
+					for(int j = 1; j < read; j++) {
+						if(boundary.test(buffer.get(j - 1), buffer.get(j))) {
+							end += j - 1;
+							break scan;
+						}
+					}
+					end += read - 1;
+				}
+				
+				if(end > start)
+					shards.add(new FileShard(file, start, end));
+				start = end;
+			}
+		}
+		return shards;
+	}
+	
+	/**
+	 * A byte range within a file.
+	 */
+	public static class FileShard {
+		
+		protected final Path file;
+		protected final long start;
+		protected final long end;
+		
+		/**
+		 * Constructs a shard covering [start, end) of the specified file.
+		 * 
+		 * @param file
+		 * @param start
+		 * @param end
+		 */
+		public FileShard(Path file, long start, long end) {
+			this.file = file;
+			this.start = start;
+			this.end = end;
+		}
+		
+		/**
+		 * Opens a stream over the bytes in this shard.
+		 * 
+		 * @return
+		 * @throws IOException
+		 */
+		public InputStream open() throws IOException {
+			final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+			channel.position(start);
+			return new BoundedInputStream(Channels.newInputStream(channel), end - start);
+		}
+		
+		public Path getFile() {
+			return file;
+		}
+		
+		public long getStart() {
+			return start;
+		}
+		
+		public long getEnd() {
+			return end;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return file + "[" + start + ", " + end + ")";
+		}
+		
+	}
+	
+	/**
+	 * Stops reading from the underlying stream after a fixed number of bytes.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+		
+		private long remaining;
+		
+		BoundedInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if(remaining <= 0)
+				return -1;
+			final int b = super.read();
+			if(b >= 0)
+				remaining--;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(remaining <= 0)
+				return -1;
+			final int read = super.read(b, off, (int) Math.min(len, remaining));
+			if(read > 0)
+				remaining -= read;
+			return read;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			final long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		
+	}
+	
+}
@@ -25,36 +25,87 @@ package ws.temple.markov.feeders;
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-import java.util.LinkedList;
+import java.io.Flushable;
+import java.util.Arrays;
 
-import ws.temple.markov.MarkovChain;
-import ws.temple.markov.Predictor;
+import ws.temple.markov.AbstractMarkovChain;
+import ws.temple.markov.PairBatch;
 
 /**
  * Abstract class that provides some helpful functionality for
  * sequentially feeding paths into a MarkovChain.
  * 
+ * The last few tokens are kept in a ring buffer, and each pair is added
+ * to the chain as soon as it's registered. Feeders constructed with a
+ * batch size larger than 1 collect pairs into a PairBatch instead, which
+ * is handed to the chain whenever it fills, so the chain can group them
+ * before updating its distributions. Pairs still in the batch haven't
+ * reached the chain yet; call {@link #flush()} once the input is finished
+ * (NameFeeder and WordFeeder batch, and their feed() methods do this
+ * themselves).
+ * 
+ * A feeder keeps track of the path it's in the middle of, so each
+ * feeder should only be used by one thread at a time. Several threads
+ * can still train a single ConcurrentMarkovChain, each through its
+ * own feeder.
+ * 
+ * Each path is handed to {@link AbstractMarkovChain#recordPath(long)} as it
+ * ends, which records it in the chain's source filter if there is one, so
+ * that generated sequences can be checked for novelty; see
+ * {@link AbstractMarkovChain#setSourceFilter(ws.temple.util.BloomFilter)}.
+ * When there is a filter, the batch is flushed first, so a path is never
+ * recorded before its pairs are in the chain.
+ * 
  * @author Brian Dixon
  *
  * @param <T>
  */
-public abstract class SequentialFeeder<T> {
+public abstract class SequentialFeeder<T> implements Flushable {
+	
+	/* The batch size used by the built-in feeders */
+	public static final int DEFAULT_BATCH_SIZE = 4096;
+	
+	/* The most recent tokens, oldest first starting at head, used as
+	 * the Predictor for the next token */
+	protected final Object[] context;
+	protected int head;
 	
-	/* Tracks tokens as they are added so that they can easily
-	 * be used to build Predictors */
-	protected final LinkedList<T> queue = new LinkedList<>();
+	/* Pairs waiting to be added to the chain */
+	protected final PairBatch<T> batch;
 	
 	/* The MarkovChain that this object feeds */
-	protected final MarkovChain<T> chain;
+	protected final AbstractMarkovChain<T> chain;
+	
+	/* The number of tokens, path ends and flushed batches fed so far */
+	protected long tokenCount;
+	protected long pathCount;
+	protected long flushCount;
+	
+	/* The hash of the tokens in the current path */
+	protected long pathHash = AbstractMarkovChain.PATH_SEED;
+	
+	/**
+	 * Constructs a feeder for the specified MarkovChain, which adds each pair
+	 * as soon as it's registered.
+	 * 
+	 * @param chain
+	 */
+	public SequentialFeeder(AbstractMarkovChain<T> chain) {
+		this(chain, 1);
+	}
 	
 	/**
-	 * Constructs a feeder for the specified MarkovChain
+	 * Constructs a feeder for the specified MarkovChain which hands pairs to
+	 * the chain in batches of the given size. A size of 1 adds each pair as
+	 * soon as it's registered.
 	 * 
 	 * @param chain
+	 * @param batchSize
 	 */
-	public SequentialFeeder(MarkovChain<T> chain) {
+	public SequentialFeeder(AbstractMarkovChain<T> chain, int batchSize) {
 		this.chain = chain;
-		primeQueue();
+		this.context = new Object[chain.getPredictorLength()];
+		this.batch = new PairBatch<>(chain.getPredictorLength(), batchSize);
 	}
 	
 	/**
@@ -64,11 +115,18 @@ public abstract class SequentialFeeder<T> {
 	 * @param next
 	 * @return
 	 */
-	@SuppressWarnings("unchecked")
 	public SequentialFeeder<T> registerToken(T next) {
-		chain.addPair(new Predictor<>((T[]) queue.toArray()), next);
-		queue.removeFirst();
-		queue.add(next);
+		if(batch.add(context, head, next))
+			flush();
+		if(next != null) {
+			pathHash = AbstractMarkovChain.hashPath(pathHash, next.hashCode());
+			tokenCount++;
+		}
+		
+		if(context.length > 0) {
+			context[head] = next;
+			head = (head + 1) % context.length;
+		}
 		return this;
 	}
 	
@@ -80,18 +138,61 @@ public abstract class SequentialFeeder<T> {
 	 */
 	public SequentialFeeder<T> endPath() {
 		registerToken(null);
+		if(chain.getSourceFilter() != null)
+			flush();
+		chain.recordPath(pathHash);
 		primeQueue();
+		pathCount++;
 		return this;
 	}
 	
+	/**
+	 * Adds any pairs still waiting in the batch to the chain.
+	 */
+	@Override
+	public void flush() {
+		if(batch.size() > 0) {
+			chain.addPairs(batch);
+			batch.clear();
+			flushCount++;
+		}
+	}
+	
+	/**
+	 * Returns the number of tokens registered, not counting path ends.
+	 * 
+	 * @return
+	 */
+	public long getTokenCount() {
+		return tokenCount;
+	}
+	
+	/**
+	 * Returns the number of paths ended.
+	 * 
+	 * @return
+	 */
+	public long getPathCount() {
+		return pathCount;
+	}
+	
+	/**
+	 * Returns the number of batches of pairs handed to the chain.
+	 * 
+	 * @return
+	 */
+	public long getFlushCount() {
+		return flushCount;
+	}
+	
 	/**
 	 * Prime the queue with a null predictor. Tokens in the
 	 * null-predictor's set for a chain may be used to begin a path.
 	 */
 	private void primeQueue() {
-		queue.clear();
-		for(int i = 0; i < chain.getPredictorLength(); i++)
-			queue.add(null);			
+		Arrays.fill(context, null);
+		head = 0;
+		pathHash = AbstractMarkovChain.PATH_SEED;
 	}
 
 }
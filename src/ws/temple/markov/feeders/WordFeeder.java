@@ -0,0 +1,204 @@
+package ws.temple.markov.feeders;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import ws.temple.markov.AbstractMarkovChain;
+import ws.temple.markov.feeders.ParallelTrainer.FileShard;
+import ws.temple.util.StringInterner;
+
+/**
+ * Reads running text into a MarkovChain of words, with each sentence fed as
+ * a separate path.
+ * 
+ * Words are runs of non-whitespace chars with any leading and trailing
+ * punctuation stripped, so "don't" and "3.14" survive intact but the quotes
+ * and full stop around "end." don't. Case is kept as it is, which lets
+ * generated sentences begin with the capitalized words that began the
+ * source sentences. A sentence ends at a word whose trailing punctuation
+ * includes '.', '!' or '?', or at a blank line, so headings and the like
+ * don't run into the paragraphs that follow them. Abbreviations such as
+ * "Mr." end sentences too; telling them apart is beyond a feeder this
+ * simple.
+ * 
+ * Words are built up in place from bulk-decoded chars and interned as they
+ * go, so each distinct word is allocated once per feeder however often it
+ * occurs. Large corpora can be split with
+ * {@link ParallelTrainer#splitSentences(Path, int)} and trained in parallel:
+ * 
+ * <pre>
+ * ParallelTrainer&lt;String, FileShard&gt; trainer = new ParallelTrainer&lt;&gt;(2,
+ *     (chain, shard) -&gt; new WordFeeder(chain).feed(shard, StandardCharsets.UTF_8));
+ * MarkovChain&lt;String&gt; chain = trainer.train(ParallelTrainer.splitSentences(path, 256));
+ * </pre>
+ * 
+ * Merging keeps the first instance of each word it sees, so the trained
+ * chain still holds every distinct word only once.
+ * 
+ * @author Brian Dixon
+ */
+public class WordFeeder extends SequentialFeeder<String> {
+	
+	/* Canonical instances of the words seen so far */
+	protected final StringInterner interner = new StringInterner();
+	
+	/* The chars of the current run of non-whitespace */
+	private char[] word = new char[32];
+	private int wordLength;
+	
+	/* Whether any words have been fed since the last sentence ended */
+	private boolean sentenceStarted;
+	
+	/* The number of newlines in the current run of whitespace */
+	private int newlines;
+	
+	/**
+	 * Constructs a WordFeeder instance feeding the specified MarkovChain.
+	 * 
+	 * @param chain
+	 */
+	public WordFeeder(AbstractMarkovChain<String> chain) {
+		super(chain, DEFAULT_BATCH_SIZE);
+	}
+	
+	/**
+	 * Reads text from the specified InputStream using the given charset.
+	 * 
+	 * @param is
+	 * @param charset
+	 * @throws IOException
+	 */
+	public void feed(InputStream is, Charset charset) throws IOException {
+		new ChunkDecoder(charset).decode(is, this::feedChars);
+		endInput();
+	}
+	
+	/**
+	 * Reads text from the specified file using the given charset. The file is
+	 * memory-mapped rather than read through the heap.
+	 * 
+	 * @param file
+	 * @param charset
+	 * @throws IOException
+	 */
+	public void feed(Path file, Charset charset) throws IOException {
+		new ChunkDecoder(charset).decode(file, this::feedChars);
+		endInput();
+	}
+	
+	/**
+	 * Reads text from the specified shard of a file using the given charset.
+	 * 
+	 * @param shard
+	 * @param charset
+	 * @throws IOException
+	 */
+	public void feed(FileShard shard, Charset charset) throws IOException {
+		new ChunkDecoder(charset).decode(shard.getFile(), shard.getStart(), shard.getEnd(), this::feedChars);
+		endInput();
+	}
+	
+	/**
+	 * Feeds a chunk of decoded chars, which may start or end partway through
+	 * a word.
+	 * 
+	 * @param chars
+	 */
+	private void feedChars(CharBuffer chars) {
+		for(int i = chars.position(); i < chars.limit(); i++) {
+			final char c = chars.get(i);
+			
+			if(Character.isWhitespace(c)) {
+				if(wordLength > 0)
+					endWord();
+				if(c == '\n' && ++newlines == 2)
+					endSentence();
+				continue;
+			}
+			
+			newlines = 0;
+			if(wordLength == word.length)
+				word = Arrays.copyOf(word, wordLength * 2);
+			word[wordLength++] = c;
+		}
+	}
+	
+	/**
+	 * Strips the punctuation from around the current run of chars and feeds
+	 * what's left, ending the sentence if the run asks for it.
+	 */
+	private void endWord() {
+		int end = wordLength;
+		while(end > 0 && !Character.isLetterOrDigit(word[end - 1]))
+			end--;
+		int start = 0;
+		while(start < end && !Character.isLetterOrDigit(word[start]))
+			start++;
+		
+		if(start < end) {
+			registerToken(interner.intern(word, start, end - start));
+			sentenceStarted = true;
+		}
+		
+		for(int i = end; i < wordLength; i++) {
+			final char c = word[i];
+			if(c == '.' || c == '!' || c == '?') {
+				endSentence();
+				break;
+			}
+		}
+		wordLength = 0;
+	}
+	
+	/**
+	 * Finishes the current sentence, if it has any words.
+	 */
+	private void endSentence() {
+		if(sentenceStarted) {
+			endPath();
+			sentenceStarted = false;
+		}
+	}
+	
+	/**
+	 * Finishes the last word and sentence, and hands any batched pairs to
+	 * the chain.
+	 */
+	private void endInput() {
+		if(wordLength > 0)
+			endWord();
+		endSentence();
+		newlines = 0;
+		flush();
+	}
+
+}
@@ -0,0 +1,282 @@
+package ws.temple.util;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * A Bloom filter: a fixed-size set of keys that may wrongly claim to contain
+ * a key it was never given, but never forgets one it was. Each key sets a
+ * few bits picked by double hashing, and a key might be present only if all
+ * of its bits are set.
+ * 
+ * Keys are longs, which should already be well-distributed hashes. Keys may
+ * be added from several threads at once, since bits are set atomically;
+ * reads aren't synchronized, so a key added on one thread is only certain
+ * to be seen by another once the threads have synchronized some other way.
+ * 
+ * @author Brian Dixon
+ */
+public class BloomFilter implements Serializable {
+
+	private static final long serialVersionUID = -2967408305743871126L;
+	
+	private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+	
+	private static final double LN2 = Math.log(2);
+	
+	/* The bits, 64 to a word */
+	private final long[] words;
+	private final long bits;
+	
+	/* The number of bits set by each key */
+	private final int hashes;
+	
+	/**
+	 * Constructs a filter sized to hold the expected number of keys with no
+	 * more than the specified rate of false positives.
+	 * 
+	 * @param expected
+	 * @param falsePositiveRate
+	 */
+	public BloomFilter(long expected, double falsePositiveRate) {
+		this(bitsFor(expected, falsePositiveRate), hashesFor(expected, bitsFor(expected, falsePositiveRate)));
+	}
+	
+	/**
+	 * Constructs a filter with at least the specified number of bits, rounded
+	 * up to a multiple of 64, which sets the given number of bits per key.
+	 * 
+	 * @param bits
+	 * @param hashes
+	 */
+	public BloomFilter(long bits, int hashes) {
+		this(new long[wordsFor(bits)], hashes);
+	}
+	
+	/**
+	 * Constructs a filter with a copy of the specified filter's bits.
+	 * 
+	 * @param other
+	 */
+	public BloomFilter(BloomFilter other) {
+		this(other.words.clone(), other.hashes);
+	}
+	
+	private BloomFilter(long[] words, int hashes) {
+		if(hashes < 1 || hashes > 64)
+			throw new IllegalArgumentException("Hash count must be between 1 and 64");
+		this.words = words;
+		this.bits = 64L * words.length;
+		this.hashes = hashes;
+	}
+	
+	/**
+	 * Returns a filter with the specified bits, as returned by
+	 * {@link #toLongArray()}, which sets the given number of bits per key.
+	 * 
+	 * @param words
+	 * @param hashes
+	 * @return
+	 */
+	public static BloomFilter valueOf(long[] words, int hashes) {
+		if(words.length == 0)
+			throw new IllegalArgumentException("Filter must have at least one word");
+		return new BloomFilter(words.clone(), hashes);
+	}
+	
+	/**
+	 * Adds a key to the filter, returning true if it wasn't already present.
+	 * A false result means the key was probably added before.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public boolean add(long key) {
+		final long h1 = mix(key);
+		final long h2 = mix(h1) | 1;
+		boolean added = false;
+		for(int i = 0; i < hashes; i++) {
+			final long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+			final int word = (int) (bit >>> 6);
+			final long mask = 1L << bit;
+			
+			/* Most bits are already set once the filter fills, so they're
+			 * checked before paying for an atomic update */
+			if((words[word] & mask) == 0 && ((long) WORDS.getAndBitwiseOr(words, word, mask) & mask) == 0)
+				added = true;
+		}
+		return added;
+	}
+	
+	/**
+	 * Returns true if the key might have been added to the filter, or false if
+	 * it certainly wasn't.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public boolean mightContain(long key) {
+		final long h1 = mix(key);
+		final long h2 = mix(h1) | 1;
+		for(int i = 0; i < hashes; i++) {
+			final long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+			if((words[(int) (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Adds every key in the specified filter to this one. Both filters must
+	 * have the same number of bits and of hashes.
+	 * 
+	 * @param other
+	 */
+	public void addAll(BloomFilter other) {
+		if(other.bits != bits || other.hashes != hashes)
+			throw new IllegalArgumentException("Filters do not have the same size");
+		for(int i = 0; i < words.length; i++)
+			if((other.words[i] & ~words[i]) != 0)
+				WORDS.getAndBitwiseOr(words, i, other.words[i]);
+	}
+	
+	/**
+	 * Removes every key from the filter.
+	 */
+	public void clear() {
+		Arrays.fill(words, 0);
+	}
+	
+	/**
+	 * Returns the number of bits in the filter.
+	 * 
+	 * @return
+	 */
+	public long getBitCount() {
+		return bits;
+	}
+	
+	/**
+	 * Returns the number of bits set by each key.
+	 * 
+	 * @return
+	 */
+	public int getHashCount() {
+		return hashes;
+	}
+	
+	/**
+	 * Returns the number of bits that are set.
+	 * 
+	 * @return
+	 */
+	public long cardinality() {
+		long set = 0;
+		for(long word : words)
+			set += Long.bitCount(word);
+		return set;
+	}
+	
+	/**
+	 * Returns an estimate of the number of distinct keys added, worked out
+	 * from the proportion of bits that are set.
+	 * 
+	 * @return
+	 */
+	public long estimateCount() {
+		final long set = cardinality();
+		if(set == bits)
+			return Long.MAX_VALUE;
+		return Math.round(-(double) bits / hashes * Math.log1p(-(double) set / bits));
+	}
+	
+	/**
+	 * Returns the chance that mightContain() wrongly returns true for a key
+	 * that was never added, given the bits set so far.
+	 * 
+	 * @return
+	 */
+	public double getFalsePositiveRate() {
+		return Math.pow((double) cardinality() / bits, hashes);
+	}
+	
+	/**
+	 * Returns a copy of the filter's bits, 64 to a word.
+	 * 
+	 * @return
+	 */
+	public long[] toLongArray() {
+		return words.clone();
+	}
+	
+	/**
+	 * Returns a rough estimate of the heap space taken by the filter, in bytes.
+	 * 
+	 * @return
+	 */
+	public long estimateBytes() {
+		return 32 + 16 + 8L * words.length;
+	}
+	
+	private static long bitsFor(long expected, double falsePositiveRate) {
+		if(expected < 1)
+			throw new IllegalArgumentException("Expected count must be positive");
+		if(!(falsePositiveRate > 0 && falsePositiveRate < 1))
+			throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+		return Math.max(64, (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (LN2 * LN2)));
+	}
+	
+	private static int hashesFor(long expected, long bits) {
+		return (int) Math.max(1, Math.min(64, Math.round((double) bits / expected * LN2)));
+	}
+	
+	private static int wordsFor(long bits) {
+		if(bits < 1 || bits > 64L * (Integer.MAX_VALUE - 8))
+			throw new IllegalArgumentException("Bit count out of range: " + bits);
+		return (int) ((bits + 63) >>> 6);
+	}
+	
+	/**
+	 * The MurmurHash3 finalizer, so that similar keys set unrelated bits.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+}
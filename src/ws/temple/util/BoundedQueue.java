@@ -0,0 +1,151 @@
+package ws.temple.util;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for any number of producers and consumers,
+ * after Dmitry Vyukov's array-based design. Each slot carries a sequence
+ * number saying whose turn it is, so producers and consumers claim slots
+ * with a single compare-and-set and never block one another. Nothing is
+ * allocated once the queue is constructed.
+ * 
+ * @author Brian Dixon
+ *
+ * @param <E>
+ */
+public class BoundedQueue<E> {
+	
+	private final int capacity;
+	
+	/* The elements, and for each slot the position it's next ready for:
+	 * equal to the position when it may be filled, one more when it may
+	 * be emptied */
+	private final AtomicReferenceArray<E> elements;
+	private final AtomicLongArray sequences;
+	
+	/* The next positions to fill and to empty */
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+	
+	/**
+	 * Constructs an empty queue holding at most the specified number of
+	 * elements.
+	 * 
+	 * @param capacity
+	 */
+	public BoundedQueue(int capacity) {
+		if(capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+		
+		this.capacity = capacity;
+		this.elements = new AtomicReferenceArray<>(capacity);
+		this.sequences = new AtomicLongArray(capacity);
+		for(int i = 0; i < capacity; i++)
+			sequences.set(i, i);
+	}
+	
+	/**
+	 * Adds an element to the tail of the queue, returning false if the
+	 * queue is full.
+	 * 
+	 * @param element
+	 * @return
+	 */
+	public boolean offer(E element) {
+		if(element == null)
+			throw new NullPointerException();
+		
+		long pos = tail.get();
+		while(true) {
+			final int slot = (int) (pos % capacity);
+			final long diff = sequences.get(slot) - pos;
+			if(diff == 0) {
+				if(tail.compareAndSet(pos, pos + 1)) {
+					elements.lazySet(slot, element);
+					sequences.set(slot, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			}
+			else if(diff < 0)
+				return false;
+			else
+				pos = tail.get();
+		}
+	}
+	
+	/**
+	 * Removes and returns the element at the head of the queue, or returns
+	 * null if the queue is empty.
+	 * 
+	 * @return
+	 */
+	public E poll() {
+		long pos = head.get();
+		while(true) {
+			final int slot = (int) (pos % capacity);
+			final long diff = sequences.get(slot) - (pos + 1);
+			if(diff == 0) {
+				if(head.compareAndSet(pos, pos + 1)) {
+					final E element = elements.get(slot);
+					elements.lazySet(slot, null);
+					sequences.set(slot, pos + capacity);
+					return element;
+				}
+				pos = head.get();
+			}
+			else if(diff < 0)
+				return null;
+			else
+				pos = head.get();
+		}
+	}
+	
+	/**
+	 * Returns the number of elements in the queue. While other threads are
+	 * using the queue, this is only a snapshot.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		final long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(capacity, size));
+	}
+	
+	/**
+	 * Returns the most elements the queue can hold.
+	 * 
+	 * @return
+	 */
+	public int capacity() {
+		return capacity;
+	}
+	
+}
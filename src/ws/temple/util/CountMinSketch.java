@@ -0,0 +1,195 @@
+package ws.temple.util;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A count-min sketch: approximate counts for any number of keys in a fixed
+ * amount of space. Each key is counted in one cell of each row, and its
+ * estimate is the smallest of those cells, so collisions can only make a
+ * count too high, never too low. Updates are conservative, raising only
+ * the cells that would otherwise fall below the new estimate, which keeps
+ * that error down.
+ * 
+ * Every counter is halved once the sketch has seen a set number of
+ * increments, so counts reflect recent history and keys that were only
+ * common a long time ago fade out.
+ * 
+ * Keys are longs, which should already be well-distributed hashes; the
+ * sketch isn't thread-safe.
+ * 
+ * @author Brian Dixon
+ */
+public class CountMinSketch implements Serializable {
+
+	private static final long serialVersionUID = 4470285211723570473L;
+	
+	public static final int DEFAULT_DEPTH = 4;
+	
+	/* By default, the counters are halved after ten increments per column */
+	private static final int DEFAULT_AGING = 10;
+	
+	private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+	
+	/* The counters, row by row */
+	private final int[] cells;
+	private final int width;
+	private final int depth;
+	
+	/* The number of increments between halvings, and the number since the last */
+	private final long period;
+	private long additions;
+	
+	/**
+	 * Constructs a sketch with at least the specified number of columns, the
+	 * default number of rows, and the default aging period.
+	 * 
+	 * @param width
+	 */
+	public CountMinSketch(int width) {
+		this(width, DEFAULT_DEPTH, (long) width * DEFAULT_AGING);
+	}
+	
+	/**
+	 * Constructs a sketch with at least the specified number of columns and the
+	 * specified number of rows, which halves its counters after the given number
+	 * of increments. A period of zero or less disables aging.
+	 * 
+	 * @param width
+	 * @param depth
+	 * @param period
+	 */
+	public CountMinSketch(int width, int depth, long period) {
+		if(width < 1 || width > 1 << 26)
+			throw new IllegalArgumentException("Width must be between 1 and 2^26");
+		if(depth < 1 || depth > 16)
+			throw new IllegalArgumentException("Depth must be between 1 and 16");
+		
+		this.width = Integer.highestOneBit(Math.max(width - 1, 1) << 1);
+		this.depth = depth;
+		this.period = period;
+		this.cells = new int[this.width * depth];
+	}
+	
+	/**
+	 * Adds the specified count to a key and returns its new estimate.
+	 * 
+	 * @param key
+	 * @param count
+	 * @return
+	 */
+	public int add(long key, int count) {
+		if(count < 0)
+			throw new IllegalArgumentException("Count must not be negative");
+		
+		final int estimate = estimate(key);
+		final int target = (int) Math.min((long) estimate + count, Integer.MAX_VALUE);
+		for(int row = 0; row < depth; row++) {
+			final int cell = cellOf(key, row);
+			if(cells[cell] < target)
+				cells[cell] = target;
+		}
+		
+		if(period > 0 && (additions += count) >= period) {
+			halve();
+			return target >>> 1;
+		}
+		return target;
+	}
+	
+	/**
+	 * Returns the estimated count for a key, which is never less than the
+	 * count actually added since the last halving.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public int estimate(long key) {
+		int min = Integer.MAX_VALUE;
+		for(int row = 0; row < depth; row++)
+			min = Math.min(min, cells[cellOf(key, row)]);
+		return min;
+	}
+	
+	/**
+	 * Halves every counter, as happens automatically at the end of each
+	 * aging period.
+	 */
+	public void halve() {
+		for(int i = 0; i < cells.length; i++)
+			cells[i] >>>= 1;
+		additions = 0;
+	}
+	
+	/**
+	 * Resets every counter to zero.
+	 */
+	public void clear() {
+		Arrays.fill(cells, 0);
+		additions = 0;
+	}
+	
+	/**
+	 * Returns the number of columns in each row.
+	 * 
+	 * @return
+	 */
+	public int getWidth() {
+		return width;
+	}
+	
+	/**
+	 * Returns the number of rows.
+	 * 
+	 * @return
+	 */
+	public int getDepth() {
+		return depth;
+	}
+	
+	/**
+	 * Returns a rough estimate of the heap space taken by the sketch, in bytes.
+	 * 
+	 * @return
+	 */
+	public long estimateBytes() {
+		return 48 + 16 + 4L * cells.length;
+	}
+	
+	private int cellOf(long key, int row) {
+		key += GOLDEN * (row + 1);
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return row * width + ((int) key & (width - 1));
+	}
+
+}
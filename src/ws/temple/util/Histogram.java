@@ -0,0 +1,215 @@
+package ws.temple.util;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts non-negative values in buckets by order of magnitude: bucket 0
+ * holds zeros, and bucket i holds values in [2^(i-1), 2^i). That's coarse,
+ * but it takes a fixed 65 counters however wide the range, and recording
+ * is just a couple of uncontended adds, so it's cheap enough to leave on.
+ * Any number of threads may record at once.
+ * 
+ * @author Brian Dixon
+ */
+public class Histogram {
+	
+	public static final int BUCKETS = 65;
+	
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+	
+	/**
+	 * Constructs an empty histogram.
+	 */
+	public Histogram() {
+		for(int i = 0; i < BUCKETS; i++)
+			buckets[i] = new LongAdder();
+	}
+	
+	/**
+	 * Records a single value.
+	 * 
+	 * @param value
+	 */
+	public void record(long value) {
+		record(value, 1);
+	}
+	
+	/**
+	 * Records the specified number of occurrences of a value.
+	 * 
+	 * @param value
+	 * @param count
+	 */
+	public void record(long value, long count) {
+		if(value < 0)
+			throw new IllegalArgumentException("Values must not be negative");
+		
+		buckets[bucketOf(value)].add(count);
+		sum.add(value * count);
+		max.accumulate(value);
+	}
+	
+	/**
+	 * Returns the bucket the specified value falls into.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public static int bucketOf(long value) {
+		return 64 - Long.numberOfLeadingZeros(value);
+	}
+	
+	/**
+	 * Returns the smallest value that falls into the specified bucket.
+	 * 
+	 * @param bucket
+	 * @return
+	 */
+	public static long lowerBound(int bucket) {
+		return bucket == 0 ? 0 : 1L << (bucket - 1);
+	}
+	
+	/**
+	 * Returns the largest value that falls into the specified bucket.
+	 * 
+	 * @param bucket
+	 * @return
+	 */
+	public static long upperBound(int bucket) {
+		return bucket == 64 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+	
+	/**
+	 * Returns the number of values recorded in the specified bucket.
+	 * 
+	 * @param bucket
+	 * @return
+	 */
+	public long getCount(int bucket) {
+		return buckets[bucket].sum();
+	}
+	
+	/**
+	 * Returns the number of values recorded.
+	 * 
+	 * @return
+	 */
+	public long getCount() {
+		long count = 0;
+		for(LongAdder bucket : buckets)
+			count += bucket.sum();
+		return count;
+	}
+	
+	/**
+	 * Returns the sum of the values recorded.
+	 * 
+	 * @return
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+	
+	/**
+	 * Returns the largest value recorded, or 0 if there are none.
+	 * 
+	 * @return
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Returns the mean of the values recorded, or 0 if there are none.
+	 * 
+	 * @return
+	 */
+	public double getMean() {
+		final long count = getCount();
+		return count == 0 ? 0.0 : (double) getSum() / count;
+	}
+	
+	/**
+	 * Returns an upper bound on the specified quantile of the values recorded:
+	 * the top of the bucket it falls in, or the maximum if that's lower. The
+	 * quantile is a fraction between 0 and 1.
+	 * 
+	 * @param quantile
+	 * @return
+	 */
+	public long getQuantile(double quantile) {
+		final long[] counts = new long[BUCKETS];
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++)
+			count += counts[i] = buckets[i].sum();
+		if(count == 0)
+			return 0;
+		
+		final long rank = (long) Math.ceil(quantile * count);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if(seen >= rank && counts[i] > 0)
+				return Math.min(upperBound(i), getMax());
+		}
+		return getMax();
+	}
+	
+	/**
+	 * Forgets every value recorded. Values recorded while this runs may or
+	 * may not survive.
+	 */
+	public void reset() {
+		for(LongAdder bucket : buckets)
+			bucket.reset();
+		sum.reset();
+		max.reset();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("count=").append(getCount()).append(" mean=").append(String.format("%.2f", getMean()))
+				.append(" p50<=").append(getQuantile(0.5)).append(" p99<=").append(getQuantile(0.99))
+				.append(" max=").append(getMax());
+		for(int i = 0; i < BUCKETS; i++) {
+			final long count = buckets[i].sum();
+			if(count > 0)
+				sb.append("\n  [").append(lowerBound(i)).append(", ").append(upperBound(i)).append("]: ").append(count);
+		}
+		return sb.toString();
+	}
+	
+}
@@ -0,0 +1,228 @@
+package ws.temple.util;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from primitive longs to non-negative primitive
+ * ints, for lookups that would otherwise box both. Linear probing is used,
+ * and removals shift later entries back rather than leaving tombstones.
+ * 
+ * @author Brian Dixon
+ */
+public class LongIntHashMap implements Serializable {
+
+	private static final long serialVersionUID = -8127391745532041046L;
+
+	/* Stored in values to mark an empty slot, and returned for missing keys */
+	public static final int MISSING = -1;
+	
+	private static final int MIN_CAPACITY = 8;
+	
+	protected long[] keys;
+	protected int[] values;
+	protected int size;
+	
+	/**
+	 * Constructs an empty map.
+	 */
+	public LongIntHashMap() {
+		this(MIN_CAPACITY);
+	}
+	
+	/**
+	 * Constructs an empty map able to hold the specified number of entries
+	 * without resizing.
+	 * 
+	 * @param expected
+	 */
+	public LongIntHashMap(int expected) {
+		allocate(capacityFor(expected));
+	}
+	
+	/**
+	 * Constructs a copy of the specified map.
+	 * 
+	 * @param other
+	 */
+	public LongIntHashMap(LongIntHashMap other) {
+		this.keys = other.keys.clone();
+		this.values = other.values.clone();
+		this.size = other.size;
+	}
+	
+	/**
+	 * Returns the value for the specified key, or MISSING if there is none.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public int get(long key) {
+		final int mask = keys.length - 1;
+		for(int i = mix(key) & mask; ; i = (i + 1) & mask) {
+			final int value = values[i];
+			if(value == MISSING || keys[i] == key)
+				return value;
+		}
+	}
+	
+	/**
+	 * Associates a non-negative value with the specified key, returning the
+	 * previous value or MISSING.
+	 * 
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public int put(long key, int value) {
+		if(value < 0)
+			throw new IllegalArgumentException("Values must not be negative");
+		
+		final int mask = keys.length - 1;
+		int i = mix(key) & mask;
+		for(; values[i] != MISSING; i = (i + 1) & mask) {
+			if(keys[i] == key) {
+				final int old = values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		
+		/* Keep the load factor at or below one half */
+		if(++size > keys.length >> 1)
+			rehash(keys.length << 1);
+		return MISSING;
+	}
+	
+	/**
+	 * Removes the entry for the specified key, returning its value or MISSING.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public int remove(long key) {
+		final int mask = keys.length - 1;
+		int i = mix(key) & mask;
+		for(; values[i] != MISSING; i = (i + 1) & mask) {
+			if(keys[i] == key)
+				break;
+		}
+		final int old = values[i];
+		if(old == MISSING)
+			return MISSING;
+		
+		/* Shift back any later entries in the run that would no longer be
+		 * reachable from their home slot */
+		int gap = i;
+		for(int j = (i + 1) & mask; values[j] != MISSING; j = (j + 1) & mask) {
+			final int home = mix(keys[j]) & mask;
+			if(((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		values[gap] = MISSING;
+		size--;
+		return old;
+	}
+	
+	/**
+	 * Returns the number of entries in the map.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns a rough estimate of the heap space taken by the map, in bytes,
+	 * assuming a 64-bit JVM with compressed references.
+	 * 
+	 * @return
+	 */
+	public long estimateBytes() {
+		return 32 + (16 + 8L * keys.length) + (16 + 4L * values.length);
+	}
+	
+	/**
+	 * Removes every entry from the map.
+	 */
+	public void clear() {
+		Arrays.fill(values, MISSING);
+		size = 0;
+	}
+	
+	private void rehash(int capacity) {
+		final long[] oldKeys = keys;
+		final int[] oldValues = values;
+		allocate(capacity);
+		
+		final int mask = capacity - 1;
+		for(int j = 0; j < oldKeys.length; j++) {
+			if(oldValues[j] == MISSING)
+				continue;
+			int i = mix(oldKeys[j]) & mask;
+			while(values[i] != MISSING)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+	
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(values, MISSING);
+	}
+	
+	private static int capacityFor(int expected) {
+		final int wanted = Math.max(MIN_CAPACITY, expected * 2);
+		return Integer.highestOneBit(wanted - 1) << 1;
+	}
+	
+	/**
+	 * Scrambles a key so that packed keys, whose low bits often vary little,
+	 * spread evenly over the table.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	private static int mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+}
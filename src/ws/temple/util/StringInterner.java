@@ -0,0 +1,135 @@
+package ws.temple.util;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Turns runs of chars into canonical Strings, so that a word seen many times
+ * is only ever allocated once. Lookups hash and compare the chars in place,
+ * and a String is only created the first time a run is seen.
+ * 
+ * An interner isn't thread-safe; give each thread its own.
+ * 
+ * @author Brian Dixon
+ */
+public class StringInterner {
+	
+	private static final int MIN_CAPACITY = 16;
+	
+	protected String[] strings;
+	protected int size;
+	
+	/**
+	 * Constructs an empty interner.
+	 */
+	public StringInterner() {
+		this.strings = new String[MIN_CAPACITY];
+	}
+	
+	/**
+	 * Returns the canonical String with the specified chars.
+	 * 
+	 * @param chars
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public String intern(char[] chars, int offset, int length) {
+		/* Same hash as String.hashCode(), so Strings can be rehashed
+		 * without going back to their chars */
+		int hash = 0;
+		for(int i = 0; i < length; i++)
+			hash = 31 * hash + chars[offset + i];
+		
+		final int mask = strings.length - 1;
+		int i = mix(hash) & mask;
+		for(String s; (s = strings[i]) != null; i = (i + 1) & mask) {
+			if(s.hashCode() == hash && matches(s, chars, offset, length))
+				return s;
+		}
+		
+		final String s = new String(chars, offset, length);
+		strings[i] = s;
+		if(++size > strings.length >> 1)
+			rehash(strings.length << 1);
+		return s;
+	}
+	
+	/**
+	 * Returns the number of distinct Strings interned.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Forgets every interned String.
+	 */
+	public void clear() {
+		Arrays.fill(strings, null);
+		size = 0;
+	}
+	
+	private static boolean matches(String s, char[] chars, int offset, int length) {
+		if(s.length() != length)
+			return false;
+		for(int i = 0; i < length; i++)
+			if(s.charAt(i) != chars[offset + i])
+				return false;
+		return true;
+	}
+	
+	private void rehash(int capacity) {
+		final String[] old = strings;
+		strings = new String[capacity];
+		
+		final int mask = capacity - 1;
+		for(String s : old) {
+			if(s == null)
+				continue;
+			int i = mix(s.hashCode()) & mask;
+			while(strings[i] != null)
+				i = (i + 1) & mask;
+			strings[i] = s;
+		}
+	}
+	
+	/**
+	 * Spreads the high bits of a String hash, which vary most for short
+	 * words, into the low bits used to pick a slot.
+	 * 
+	 * @param hash
+	 * @return
+	 */
+	private static int mix(int hash) {
+		hash *= 0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+
+}
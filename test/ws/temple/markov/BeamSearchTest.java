@@ -0,0 +1,187 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+import ws.temple.markov.BeamSearch.Result;
+
+/**
+ * Checks beam search against every sequence a small chain can generate.
+ *
+ * @author Brian Dixon
+ */
+class BeamSearchTest {
+
+	private static final int MAX_LENGTH = 7;
+
+	@Test
+	void wideBeamFindsEverySequence() {
+		for(int length = 1; length <= 3; length++) {
+			final MarkovChain<Character> chain = Fixtures.train(new MarkovChain<>(length), Fixtures.NAMES);
+			final Map<List<Character>, Double> expected = Fixtures.enumerate(chain, MAX_LENGTH);
+
+			final List<Result<Character>> results = chain.beamSearch().search(Collections.emptyList(), expected.size() + 1, MAX_LENGTH);
+			assertEquals(expected.size(), results.size());
+			assertMatches(expected, results);
+		}
+	}
+
+	@Test
+	void narrowBeamReturnsTheMostLikely() {
+		final MarkovChain<Character> chain = Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES);
+		final Map<List<Character>, Double> expected = Fixtures.enumerate(chain, MAX_LENGTH);
+		final List<Double> best = new ArrayList<>(expected.values());
+		best.sort(Collections.reverseOrder());
+
+		/* A narrow beam may miss sequences, but whatever it finds has to be
+		 * scored exactly, and the single most likely sequence is never out of
+		 * a beam of this chain's branching factor */
+		final List<Result<Character>> results = chain.beamSearch().search(Collections.emptyList(), 4, MAX_LENGTH);
+		assertEquals(4, results.size());
+		assertMatches(expected, results);
+		assertEquals(best.get(0), results.get(0).getLogProbability(), 1e-9);
+	}
+
+	@Test
+	void prunedSearchMatchesPlainBeamSearch() {
+		/* Random counts over a wide range, so no two sequences tie and the
+		 * beams are the same whatever order they're filled in */
+		final SplittableRandom rng = new SplittableRandom(21);
+		for(int trial = 0; trial < 50; trial++) {
+			final MarkovChain<Character> chain = new MarkovChain<>(1);
+			for(char c = '@'; c <= 'F'; c++) {
+				final Predictor<Character> predictor = new Predictor<>(c == '@' ? null : c);
+				for(char next = '@'; next <= 'F'; next++)
+					if(rng.nextInt(3) > 0)
+						chain.addPair(predictor, next == '@' ? null : next, 1 + rng.nextInt(1000000));
+			}
+
+			final BeamSearch<Character> search = chain.beamSearch();
+			for(int width = 1; width <= 6; width++) {
+				final List<Result<Character>> results = search.search(Collections.emptyList(), width, MAX_LENGTH);
+				final List<Map.Entry<List<Character>, Double>> expected = plainBeamSearch(chain, width, MAX_LENGTH);
+				assertEquals(expected.size(), results.size());
+				for(int i = 0; i < results.size(); i++) {
+					assertEquals(expected.get(i).getKey(), results.get(i).getSequence());
+					assertEquals(expected.get(i).getValue(), results.get(i).getLogProbability(), 1e-9);
+				}
+			}
+		}
+	}
+
+	@Test
+	void prefixRestrictsTheSequences() {
+		final MarkovChain<Character> chain = Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES);
+		final List<Character> prefix = Fixtures.chars("BO");
+		final Map<List<Character>, Double> expected = Fixtures.enumerate(chain, MAX_LENGTH);
+		expected.keySet().removeIf(sequence -> sequence.size() < prefix.size() || !sequence.subList(0, prefix.size()).equals(prefix));
+
+		final List<Result<Character>> results = chain.beamSearch().search(prefix, 100, MAX_LENGTH);
+		assertEquals(expected.size(), results.size());
+		assertMatches(expected, results);
+	}
+
+	@Test
+	void unknownPrefixFindsNothing() {
+		final MarkovChain<Character> chain = Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES);
+		assertTrue(chain.beamSearch().search(Fixtures.chars("ZZ"), 10, MAX_LENGTH).isEmpty());
+		assertTrue(chain.beamSearch().search(Fixtures.chars("NN"), 10, MAX_LENGTH).isEmpty());
+	}
+
+	/**
+	 * Runs a beam search with no pruning at all: every partial sequence in the
+	 * beam is extended by every successor, every ending is kept, and only the
+	 * best of each step's extensions go on to the next.
+	 * 
+	 * @param chain
+	 * @param width
+	 * @param maxLength
+	 * @return
+	 */
+	private static List<Map.Entry<List<Character>, Double>> plainBeamSearch(MarkovChain<Character> chain, int width, int maxLength) {
+		final Map<Predictor<Character>, Map<Character, Integer>> counts = Fixtures.counts(chain);
+		final List<Map.Entry<List<Character>, Double>> results = new ArrayList<>();
+		List<Map.Entry<List<Character>, Double>> beam = new ArrayList<>();
+		if(counts.containsKey(Fixtures.predictorFor(Collections.<Character>emptyList(), 1)))
+			beam.add(new SimpleEntry<>(new ArrayList<>(), 0.0));
+
+		for(int length = 0; length <= maxLength && !beam.isEmpty(); length++) {
+			final List<Map.Entry<List<Character>, Double>> next = new ArrayList<>();
+			for(Map.Entry<List<Character>, Double> partial : beam) {
+				final Map<Character, Integer> successors = counts.get(Fixtures.predictorFor(partial.getKey(), 1));
+				int total = 0;
+				for(int count : successors.values())
+					total += count;
+				for(Map.Entry<Character, Integer> successor : successors.entrySet()) {
+					final double log = partial.getValue() + Math.log(successor.getValue()) - Math.log(total);
+					if(successor.getKey() == null) {
+						results.add(new SimpleEntry<>(partial.getKey(), log));
+						continue;
+					}
+					if(length == maxLength)
+						continue;
+					
+					final List<Character> sequence = new ArrayList<>(partial.getKey());
+					sequence.add(successor.getKey());
+					if(counts.containsKey(Fixtures.predictorFor(sequence, 1)))
+						next.add(new SimpleEntry<>(sequence, log));
+					else
+						results.add(new SimpleEntry<>(sequence, log));
+				}
+			}
+			next.sort(Map.Entry.<List<Character>, Double>comparingByValue().reversed());
+			beam = next.subList(0, Math.min(width, next.size()));
+		}
+		
+		results.sort(Map.Entry.<List<Character>, Double>comparingByValue().reversed());
+		return results.subList(0, Math.min(width, results.size()));
+	}
+
+	private static void assertMatches(Map<List<Character>, Double> expected, List<Result<Character>> results) {
+		double previous = 0.0;
+		for(Result<Character> result : results) {
+			final Double log = expected.get(result.getSequence());
+			assertNotNull(log, () -> "Not a sequence the chain can generate: " + result);
+			assertEquals(log, result.getLogProbability(), 1e-9);
+			assertFalse(result.getLogProbability() > previous, "Results are out of order");
+			previous = result.getLogProbability();
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Admission and eviction in a BoundedMarkovChain.
+ *
+ * @author Brian Dixon
+ */
+class BoundedMarkovChainTest {
+
+	@Test
+	void pairsAreAdmittedWithEverySighting() {
+		final BoundedMarkovChain<Character> chain = new BoundedMarkovChain<>(1, 100, 1000, 3);
+		final Predictor<Character> predictor = new Predictor<>('X');
+
+		chain.addPair(predictor, 'Y');
+		chain.addPair(predictor, 'Y');
+		assertEquals(0, chain.size());
+		assertEquals(2, chain.getRejectedPairs());
+
+		chain.addPair(predictor, 'Y');
+		chain.addPair(predictor, 'Y');
+		assertEquals(Map.of(predictor, Map.of('Y', 4)), Fixtures.counts(chain));
+	}
+
+	@Test
+	void evictionHoldsPredictorsUnderTheCap() {
+		final int cap = 64;
+		final BoundedMarkovChain<Character> chain = new BoundedMarkovChain<>(2, cap, Integer.MAX_VALUE, 1);
+
+		/* Names over a wide alphabet, so there are far more contexts than
+		 * the chain can hold */
+		final SplittableRandom rng = new SplittableRandom(5);
+		final StringBuilder names = new StringBuilder();
+		for(int i = 0; i < 2000; i++) {
+			final int length = 3 + rng.nextInt(5);
+			for(int j = 0; j < length; j++)
+				names.append((char) ('A' + rng.nextInt(26)));
+			names.append('\n');
+		}
+		Fixtures.train(chain, names.toString());
+
+		assertTrue(chain.size() <= cap);
+		assertTrue(chain.getEvictedPredictors() > 0);
+
+		/* The start of every sequence survives, and what's left can still be
+		 * generated from */
+		assertNotNull(chain.next(new Predictor<>(null, null), rng));
+		assertTrue(chain.generateSequence(10, rng).size() > 0);
+	}
+
+	@Test
+	void evictionHoldsTransitionsUnderTheCap() {
+		final int cap = 100;
+		final BoundedMarkovChain<Character> chain = new BoundedMarkovChain<>(1, 1000, cap, 1);
+		final SplittableRandom rng = new SplittableRandom(9);
+		for(int i = 0; i < 10000; i++)
+			chain.addPair(new Predictor<>((char) ('A' + rng.nextInt(26))), (char) ('A' + rng.nextInt(26)));
+
+		assertTrue(chain.getTransitions() <= cap);
+		assertTrue(chain.getEvictedTransitions() > 0);
+
+		int transitions = 0;
+		for(Map<Character, Integer> successors : Fixtures.counts(chain).values())
+			transitions += successors.size();
+		assertEquals(chain.getTransitions(), transitions);
+	}
+
+	@Test
+	void evictedPredictorsEndSequences() {
+		final BoundedMarkovChain<Character> chain = new BoundedMarkovChain<>(1, 2, Integer.MAX_VALUE, 1);
+		chain.addPair(new Predictor<>((Character) null), 'A', 10);
+		chain.addPair(new Predictor<>('A'), 'B', 5);
+		chain.addPair(new Predictor<>('B'), 'C', 1);
+
+		/* The cap of two is exceeded, so the sweep leaves the start alone and
+		 * takes the rarest of the rest */
+		assertEquals(1, chain.getEvictedPredictors());
+		assertNull(chain.next(new Predictor<>('B'), new SplittableRandom(1)));
+	}
+
+}
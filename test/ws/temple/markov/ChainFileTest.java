@@ -0,0 +1,172 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ws.temple.util.BloomFilter;
+
+/**
+ * Writing chains to files and mapping them back.
+ *
+ * @author Brian Dixon
+ */
+class ChainFileTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void mappedChainMatchesLiveChain() throws IOException {
+		for(int length = 0; length <= 3; length++) {
+			final MarkovChain<Character> chain = Fixtures.train(new MarkovChain<>(length), Fixtures.NAMES);
+			final Path file = directory.resolve("chain-" + length + ".mkvl");
+			chain.write(file, TokenCodec.CHARACTER);
+
+			final MappedMarkovChain<Character> mapped = ChainFile.map(file, TokenCodec.CHARACTER);
+			assertEquals(chain.size(), mapped.size());
+			assertEquals(length, mapped.getPredictorLength());
+			assertEquals(Fixtures.counts(chain), Fixtures.counts(mapped.toMarkovChain()));
+
+			/* Every Predictor is found in the file, and only ever yields the
+			 * successors it was trained with */
+			final SplittableRandom rng = new SplittableRandom(length);
+			for(Map.Entry<Predictor<Character>, Map<Character, Integer>> entry : Fixtures.counts(chain).entrySet())
+				for(int i = 0; i < 20; i++)
+					assertTrue(entry.getValue().containsKey(mapped.next(entry.getKey(), rng)));
+		}
+	}
+
+	@Test
+	void unknownPredictorsYieldNothing() throws IOException {
+		final MarkovChain<Character> chain = Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES);
+		final Path file = directory.resolve("chain.mkvl");
+		chain.write(file, TokenCodec.CHARACTER);
+
+		final MappedMarkovChain<Character> mapped = ChainFile.map(file, TokenCodec.CHARACTER);
+		final SplittableRandom rng = new SplittableRandom(1);
+		assertNull(mapped.next(new Predictor<>('Z', 'Z'), rng));
+		assertNull(mapped.next(new Predictor<>('N', 'B'), rng));
+	}
+
+	@Test
+	void aliasSamplingFollowsCounts() throws IOException {
+		final int[] counts = {1, 2, 3, 4, 10, 30, 50};
+		final MarkovChain<Character> chain = new MarkovChain<>(1);
+		final Predictor<Character> predictor = new Predictor<>('X');
+		int total = 0;
+		for(int i = 0; i < counts.length; i++) {
+			chain.addPair(predictor, (char) ('A' + i), counts[i]);
+			total += counts[i];
+		}
+
+		final Path file = directory.resolve("alias.mkvl");
+		chain.write(file, TokenCodec.CHARACTER);
+		final MappedMarkovChain<Character> mapped = ChainFile.map(file, TokenCodec.CHARACTER);
+
+		final int draws = 200000;
+		final Map<Character, Integer> seen = new HashMap<>();
+		final SplittableRandom rng = new SplittableRandom(42);
+		for(int i = 0; i < draws; i++)
+			seen.merge(mapped.next(predictor, rng), 1, Integer::sum);
+
+		for(int i = 0; i < counts.length; i++) {
+			final double expected = (double) counts[i] / total;
+			final double actual = seen.getOrDefault((char) ('A' + i), 0) / (double) draws;
+			assertEquals(expected, actual, 0.005, "Share of " + (char) ('A' + i));
+		}
+	}
+
+	@Test
+	void sourceFilterRoundTrips() throws IOException {
+		final MarkovChain<Character> chain = new MarkovChain<>(2);
+		chain.setSourceFilter(new BloomFilter(1000, 0.001));
+		Fixtures.train(chain, Fixtures.NAMES);
+
+		final Path file = directory.resolve("filtered.mkvl");
+		chain.write(file, TokenCodec.CHARACTER);
+
+		final MarkovChain<Character> read = ChainFile.read(file, TokenCodec.CHARACTER);
+		assertFalse(read.isNovel("BOBBY"));
+		assertTrue(read.isNovel("BOBBYBOB"));
+		assertEquals(chain.getSourceFilter().cardinality(), read.getSourceFilter().cardinality());
+
+		/* Without a filter, nothing follows the successor slots */
+		final Path plain = directory.resolve("plain.mkvl");
+		Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES).write(plain, TokenCodec.CHARACTER);
+		assertNull(ChainFile.map(plain, TokenCodec.CHARACTER).getSourceFilter());
+	}
+
+	@Test
+	void rejectsOtherVersions() throws IOException {
+		final Path file = directory.resolve("chain.mkvl");
+		Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES).write(file, TokenCodec.CHARACTER);
+
+		patchInt(file, 4, ChainFile.VERSION + 1);
+		final IOException e = assertThrows(IOException.class, () -> ChainFile.map(file, TokenCodec.CHARACTER));
+		assertTrue(e.getMessage().contains("version"));
+
+		patchInt(file, 0, 0);
+		assertThrows(IOException.class, () -> ChainFile.map(file, TokenCodec.CHARACTER));
+	}
+
+	@Test
+	void rejectsTruncatedFiles() throws IOException {
+		final Path file = directory.resolve("chain.mkvl");
+		Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES).write(file, TokenCodec.CHARACTER);
+
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 1);
+		}
+		assertThrows(IOException.class, () -> ChainFile.map(file, TokenCodec.CHARACTER));
+	}
+
+	private static void patchInt(Path file, long position, int value) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			final ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).flip();
+			while(buffer.hasRemaining())
+				channel.write(buffer, position + buffer.position());
+		}
+	}
+
+}
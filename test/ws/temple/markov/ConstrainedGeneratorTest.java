@@ -0,0 +1,140 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks constrained generation against every sequence a small chain can
+ * generate.
+ *
+ * @author Brian Dixon
+ */
+class ConstrainedGeneratorTest {
+
+	@Test
+	void acceptanceProbabilityMatchesEnumeration() {
+		final MarkovChain<Character> chain = Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES);
+		final String[][] constraints = {{"", ""}, {"", "A"}, {"B", ""}, {"B", "A"}, {"AN", "NA"}, {"E", "LA"}, {"", "NN"}};
+		for(int minLength = 0; minLength <= 5; minLength++) {
+			for(int maxLength = minLength; maxLength <= 7; maxLength++) {
+				for(String[] constraint : constraints) {
+					final Map<List<Character>, Double> valid = valid(chain, minLength, maxLength, constraint[0], constraint[1]);
+					double expected = 0.0;
+					for(double log : valid.values())
+						expected += Math.exp(log);
+
+					final ConstrainedGenerator<Character> generator = constrain(chain, minLength, maxLength, constraint[0], constraint[1]);
+					assertEquals(expected, generator.getAcceptanceProbability(), 1e-12,
+							() -> "prefix=" + constraint[0] + " suffix=" + constraint[1]);
+					assertEquals(!valid.isEmpty(), generator.isSatisfiable());
+				}
+			}
+		}
+	}
+
+	@Test
+	void generatedSequencesFollowRejectionSampling() {
+		final MarkovChain<Character> chain = Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES);
+		final Map<List<Character>, Double> valid = valid(chain, 3, 6, "", "A");
+		double accepted = 0.0;
+		for(double log : valid.values())
+			accepted += Math.exp(log);
+
+		final ConstrainedGenerator<Character> generator = constrain(chain, 3, 6, "", "A");
+		final int draws = 100000;
+		final Map<List<Character>, Integer> seen = new HashMap<>();
+		final SplittableRandom rng = new SplittableRandom(3);
+		for(int i = 0; i < draws; i++) {
+			final List<Character> sequence = generator.generateSequence(rng);
+			assertNotNull(sequence);
+			assertTrue(valid.containsKey(sequence), () -> "Invalid sequence " + sequence);
+			seen.merge(sequence, 1, Integer::sum);
+		}
+
+		/* Each sequence turns up as often as it would among the sequences
+		 * that rejection sampling kept */
+		for(Map.Entry<List<Character>, Double> entry : valid.entrySet()) {
+			final double expected = Math.exp(entry.getValue()) / accepted;
+			final double actual = seen.getOrDefault(entry.getKey(), 0) / (double) draws;
+			assertEquals(expected, actual, 0.01, () -> "Share of " + entry.getKey());
+		}
+	}
+
+	@Test
+	void impossibleConstraintsGenerateNothing() {
+		final MarkovChain<Character> chain = Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES);
+		final SplittableRandom rng = new SplittableRandom(1);
+
+		final ConstrainedGenerator<Character> unknownToken = constrain(chain, 0, 10, "", "Z");
+		assertFalse(unknownToken.isSatisfiable());
+		assertNull(unknownToken.generateSequence(rng));
+
+		final ConstrainedGenerator<Character> unreachablePrefix = constrain(chain, 0, 10, "NB", "");
+		assertFalse(unreachablePrefix.isSatisfiable());
+		assertEquals(0.0, unreachablePrefix.getAcceptanceProbability());
+
+		final ConstrainedGenerator<Character> tooShort = constrain(chain, 0, 1, "", "");
+		assertFalse(tooShort.isSatisfiable());
+	}
+
+	private static ConstrainedGenerator<Character> constrain(MarkovChain<Character> chain, int minLength, int maxLength, String prefix, String suffix) {
+		return chain.constrain(minLength, maxLength, Fixtures.chars(prefix), Fixtures.chars(suffix));
+	}
+
+	/**
+	 * Returns the sequences the chain can generate that meet the constraints,
+	 * with their log-probabilities.
+	 *
+	 * @param chain
+	 * @param minLength
+	 * @param maxLength
+	 * @param prefix
+	 * @param suffix
+	 * @return
+	 */
+	private static Map<List<Character>, Double> valid(MarkovChain<Character> chain, int minLength, int maxLength, String prefix, String suffix) {
+		final List<Character> start = Fixtures.chars(prefix);
+		final List<Character> end = Fixtures.chars(suffix);
+		final Map<List<Character>, Double> sequences = Fixtures.enumerate(chain, maxLength);
+		sequences.keySet().removeIf(sequence -> sequence.size() < minLength
+				|| sequence.size() < start.size() || !sequence.subList(0, start.size()).equals(start)
+				|| sequence.size() < end.size() || !sequence.subList(sequence.size() - end.size(), sequence.size()).equals(end));
+		return sequences;
+	}
+
+}
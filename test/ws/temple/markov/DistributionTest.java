@@ -0,0 +1,103 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Keeps the Fenwick tree in step with the plain cumulative table.
+ *
+ * @author Brian Dixon
+ */
+class DistributionTest {
+
+	@Test
+	void fenwickMatchesCumulativeTable() {
+		final Distribution plain = new Distribution();
+		final FenwickDistribution fenwick = new FenwickDistribution();
+		final SplittableRandom rng = new SplittableRandom(11);
+
+		/* Enough successors that both grow past their initial capacity and
+		 * start using the slot table, with removals mixed in */
+		for(int step = 0; step < 2000; step++) {
+			final int id = 1 + rng.nextInt(40);
+			if(rng.nextInt(4) == 0) {
+				final int count = 1 + rng.nextInt(3);
+				assertEquals(plain.remove(id, count), fenwick.remove(id, count));
+			}
+			else {
+				final int count = 1 + rng.nextInt(5);
+				plain.add(id, count);
+				fenwick.add(id, count);
+			}
+
+			if(step % 50 == 0)
+				assertSameDistribution(plain, fenwick);
+		}
+		assertSameDistribution(plain, fenwick);
+	}
+
+	@Test
+	void samplingFollowsCounts() {
+		final int[] counts = {5, 1, 0, 12, 2};
+		for(Distribution dist : new Distribution[] {new Distribution(), new FenwickDistribution()}) {
+			int total = 0;
+			for(int i = 0; i < counts.length; i++) {
+				dist.add(i + 1, counts[i] + 1);
+				dist.remove(i + 1, 1);
+				total += counts[i];
+			}
+
+			final int draws = 100000;
+			final int[] seen = new int[counts.length + 1];
+			final SplittableRandom rng = new SplittableRandom(17);
+			for(int i = 0; i < draws; i++)
+				seen[dist.sample(rng)]++;
+			for(int i = 0; i < counts.length; i++)
+				assertEquals((double) counts[i] / total, (double) seen[i + 1] / draws, 0.005);
+		}
+	}
+
+	private static void assertSameDistribution(Distribution plain, FenwickDistribution fenwick) {
+		assertEquals(plain.size(), fenwick.size());
+		assertEquals(plain.getTotal(), fenwick.getTotal());
+
+		int sum = 0;
+		for(int slot = 0; slot < plain.size(); slot++) {
+			assertEquals(plain.getId(slot), fenwick.getId(slot));
+			assertEquals(plain.getCount(slot), fenwick.getCount(slot));
+			assertEquals(sum, fenwick.prefixSum(slot));
+			sum += plain.getCount(slot);
+		}
+		for(int value = 0; value < plain.getTotal(); value++)
+			assertEquals(plain.find(value), fenwick.find(value));
+	}
+
+}
@@ -0,0 +1,164 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ws.temple.markov.feeders.NameFeeder;
+
+/**
+ * Small corpora and brute-force views of a chain, shared by the tests.
+ *
+ * @author Brian Dixon
+ */
+final class Fixtures {
+
+	private Fixtures(){}
+
+	/* A handful of names with plenty of shared contexts */
+	static final String NAMES = "ANNA\nANNE\nANN\nBOB\nBOBBY\nBELLA\nELLA\nEMMA\nNAN\nNELL\n";
+
+	/* More names, for training a second chain */
+	static final String MORE_NAMES = "ABBY\nBEN\nEBBA\nLENA\nMABEL\nNELLA\nANNABEL\n";
+
+	/**
+	 * Feeds newline-separated names to the specified chain and returns it.
+	 *
+	 * @param chain
+	 * @param names
+	 * @return
+	 */
+	static <C extends AbstractMarkovChain<Character>> C train(C chain, String names) {
+		try {
+			new NameFeeder(chain).feed(new ByteArrayInputStream(names.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return chain;
+	}
+
+	/**
+	 * Returns the count of every pair in the chain, by Predictor and then by
+	 * successor, leaving out anything with a count of zero.
+	 *
+	 * @param chain
+	 * @return
+	 */
+	static <T> Map<Predictor<T>, Map<T, Integer>> counts(MarkovChain<T> chain) {
+		final Map<Predictor<T>, Map<T, Integer>> counts = new HashMap<>();
+		for(int n = 0; n < chain.index.size(); n++) {
+			final Distribution dist = chain.distributions[n];
+			final Map<T, Integer> successors = new HashMap<>();
+			for(int i = 0; i < dist.size(); i++)
+				if(dist.getCount(i) > 0)
+					successors.put(chain.dictionary.get(dist.getId(i)), dist.getCount(i));
+			if(!successors.isEmpty())
+				counts.put(chain.index.getPredictor(n), successors);
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns every sequence of up to maxLength tokens the chain can generate,
+	 * with the natural log of its probability, by walking every path.
+	 *
+	 * @param chain
+	 * @param maxLength
+	 * @return
+	 */
+	static <T> Map<List<T>, Double> enumerate(MarkovChain<T> chain, int maxLength) {
+		final Map<List<T>, Double> sequences = new HashMap<>();
+		enumerate(counts(chain), chain.getPredictorLength(), new ArrayList<>(), 0.0, maxLength, sequences);
+		return sequences;
+	}
+
+	private static <T> void enumerate(Map<Predictor<T>, Map<T, Integer>> counts, int length, List<T> sequence,
+			double log, int maxLength, Map<List<T>, Double> sequences) {
+		/* A token with no Predictor of its own ends the sequence, just as it
+		 * does when generating */
+		final Map<T, Integer> successors = counts.get(predictorFor(sequence, length));
+		if(successors == null) {
+			if(!sequence.isEmpty())
+				sequences.put(new ArrayList<>(sequence), log);
+			return;
+		}
+
+		int total = 0;
+		for(int count : successors.values())
+			total += count;
+		for(Map.Entry<T, Integer> entry : successors.entrySet()) {
+			final double next = log + Math.log(entry.getValue()) - Math.log(total);
+			if(entry.getKey() == null)
+				sequences.put(new ArrayList<>(sequence), next);
+			else if(sequence.size() < maxLength) {
+				sequence.add(entry.getKey());
+				enumerate(counts, length, sequence, next, maxLength, sequences);
+				sequence.remove(sequence.size() - 1);
+			}
+		}
+	}
+
+	/**
+	 * Returns the Predictor made of the last tokens of the specified sequence,
+	 * padded at the front with nulls.
+	 *
+	 * @param sequence
+	 * @param length
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> Predictor<T> predictorFor(List<T> sequence, int length) {
+		final T[] elements = (T[]) new Object[length];
+		for(int i = 0; i < length; i++) {
+			final int j = sequence.size() - length + i;
+			if(j >= 0)
+				elements[i] = sequence.get(j);
+		}
+		return new Predictor<>(elements);
+	}
+
+	/**
+	 * Returns the chars of the specified string as a list.
+	 *
+	 * @param s
+	 * @return
+	 */
+	static List<Character> chars(String s) {
+		final List<Character> list = new ArrayList<>(s.length());
+		for(int i = 0; i < s.length(); i++)
+			list.add(s.charAt(i));
+		return list;
+	}
+
+}
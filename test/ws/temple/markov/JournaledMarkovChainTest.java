@@ -0,0 +1,233 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ws.temple.util.BloomFilter;
+
+/**
+ * Recovering journaled chains, including from journals cut short by a
+ * crash. A crash is stood in for by abandoning a chain without closing it
+ * and then damaging the end of its journal.
+ *
+ * @author Brian Dixon
+ */
+class JournaledMarkovChainTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void reopenedChainMatchesTrainedChain() throws IOException {
+		/* Small batches, so the journal is written in many of them */
+		final JournaledMarkovChain<Character> chain = JournaledMarkovChain.open(directory, 2, TokenCodec.CHARACTER, true, 64);
+		Fixtures.train(chain, Fixtures.NAMES);
+		chain.close();
+
+		final JournaledMarkovChain<Character> reopened = open();
+		assertEquals(Fixtures.counts(Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES)), Fixtures.counts(reopened));
+		assertTrue(reopened.getReplayedRecords() > 0);
+		reopened.close();
+	}
+
+	@Test
+	void truncatedTailIsDroppedOnReplay() throws IOException {
+		final JournaledMarkovChain<Character> chain = open();
+		Fixtures.train(chain, Fixtures.NAMES);
+		chain.flush();
+		final long whole = chain.getJournalSize();
+		final Map<Predictor<Character>, Map<Character, Integer>> expected = Fixtures.counts(chain);
+
+		/* The second batch is cut off partway through its payload */
+		Fixtures.train(chain, Fixtures.MORE_NAMES);
+		chain.flush();
+		assertTrue(chain.getJournalSize() > whole + 8);
+		truncate(journal(0), chain.getJournalSize() - 3);
+
+		final JournaledMarkovChain<Character> recovered = open();
+		assertEquals(expected, Fixtures.counts(recovered));
+		assertEquals(whole, recovered.getJournalSize());
+
+		/* The journal carries on from the last whole batch */
+		Fixtures.train(recovered, Fixtures.MORE_NAMES);
+		recovered.close();
+		assertEquals(Fixtures.counts(Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES + Fixtures.MORE_NAMES)),
+				Fixtures.counts(open()));
+	}
+
+	@Test
+	void truncatedFrameHeaderIsDroppedOnReplay() throws IOException {
+		final JournaledMarkovChain<Character> chain = open();
+		Fixtures.train(chain, Fixtures.NAMES);
+		chain.flush();
+		final long whole = chain.getJournalSize();
+		final Map<Predictor<Character>, Map<Character, Integer>> expected = Fixtures.counts(chain);
+
+		Fixtures.train(chain, Fixtures.MORE_NAMES);
+		chain.flush();
+		truncate(journal(0), whole + 5);
+
+		final JournaledMarkovChain<Character> recovered = open();
+		assertEquals(expected, Fixtures.counts(recovered));
+		assertEquals(whole, recovered.getJournalSize());
+		recovered.close();
+	}
+
+	@Test
+	void corruptBatchIsDroppedOnReplay() throws IOException {
+		final JournaledMarkovChain<Character> chain = open();
+		Fixtures.train(chain, Fixtures.NAMES);
+		chain.flush();
+		final long whole = chain.getJournalSize();
+		final Map<Predictor<Character>, Map<Character, Integer>> expected = Fixtures.counts(chain);
+
+		/* A torn write can leave the right length but the wrong bytes */
+		Fixtures.train(chain, Fixtures.MORE_NAMES);
+		chain.flush();
+		try(FileChannel channel = FileChannel.open(journal(0), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] {(byte) 0xff, (byte) 0xff}), channel.size() - 2);
+		}
+
+		final JournaledMarkovChain<Character> recovered = open();
+		assertEquals(expected, Fixtures.counts(recovered));
+		assertEquals(whole, recovered.getJournalSize());
+		recovered.close();
+	}
+
+	@Test
+	void checkpointStartsAFreshJournal() throws IOException {
+		final JournaledMarkovChain<Character> chain = open();
+		Fixtures.train(chain, Fixtures.NAMES);
+		chain.checkpoint();
+		assertEquals(1, chain.getGeneration());
+		assertEquals(JournaledMarkovChain.HEADER_SIZE, chain.getJournalSize());
+
+		Fixtures.train(chain, Fixtures.MORE_NAMES);
+		chain.flush();
+		assertEquals(Set.of("checkpoint-1.mkvl", "journal-1.log"), files());
+
+		/* Recovery needs both the checkpoint and what was journaled after it */
+		final JournaledMarkovChain<Character> recovered = open();
+		assertEquals(1, recovered.getGeneration());
+		assertEquals(Fixtures.counts(chain), Fixtures.counts(recovered));
+		recovered.close();
+	}
+
+	@Test
+	void unfinishedCheckpointIsDiscarded() throws IOException {
+		final JournaledMarkovChain<Character> chain = open();
+		Fixtures.train(chain, Fixtures.NAMES);
+		chain.checkpoint();
+		Fixtures.train(chain, Fixtures.MORE_NAMES);
+		chain.close();
+
+		/* A crash partway through the next checkpoint leaves its files behind
+		 * without the checkpoint itself */
+		Files.write(directory.resolve("checkpoint-2.tmp"), new byte[100]);
+		Files.write(directory.resolve("journal-2.log"), new byte[0]);
+
+		final JournaledMarkovChain<Character> recovered = open();
+		assertEquals(1, recovered.getGeneration());
+		assertEquals(Fixtures.counts(chain), Fixtures.counts(recovered));
+		assertEquals(Set.of("checkpoint-1.mkvl", "journal-1.log"), files());
+		recovered.close();
+	}
+
+	@Test
+	void sourceFilterSurvivesRecovery() throws IOException {
+		final JournaledMarkovChain<Character> chain = open();
+		chain.setSourceFilter(new BloomFilter(1000, 0.001));
+		Fixtures.train(chain, Fixtures.NAMES);
+		chain.flush();
+
+		final JournaledMarkovChain<Character> recovered = open();
+		assertFalse(recovered.isNovel("EMMA"));
+		assertTrue(recovered.isNovel("EMMAB"));
+		recovered.close();
+	}
+
+	@Test
+	void mergedSourceFilterSurvivesRecovery() throws IOException {
+		final MarkovChain<Character> other = new MarkovChain<>(2);
+		other.setSourceFilter(new BloomFilter(1000, 0.001));
+		Fixtures.train(other, Fixtures.MORE_NAMES);
+
+		final JournaledMarkovChain<Character> chain = open();
+		Fixtures.train(chain, Fixtures.NAMES);
+		chain.merge(other);
+		chain.flush();
+
+		final JournaledMarkovChain<Character> recovered = open();
+		assertFalse(recovered.isNovel("MABEL"));
+		assertEquals(Fixtures.counts(chain), Fixtures.counts(recovered));
+		recovered.close();
+	}
+
+	/**
+	 * Opens the chain in the test's directory. Batches are big enough that
+	 * each flush() writes exactly one.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private JournaledMarkovChain<Character> open() throws IOException {
+		return JournaledMarkovChain.open(directory, 2, TokenCodec.CHARACTER);
+	}
+
+	private Path journal(long generation) {
+		return directory.resolve("journal-" + generation + ".log");
+	}
+
+	private Set<String> files() throws IOException {
+		try(Stream<Path> files = Files.list(directory)) {
+			return files.map(file -> file.getFileName().toString()).collect(Collectors.toSet());
+		}
+	}
+
+	private static void truncate(Path file, long size) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(size);
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+import ws.temple.util.BloomFilter;
+
+/**
+ * Training, merging and sampling a MarkovChain.
+ *
+ * @author Brian Dixon
+ */
+class MarkovChainTest {
+
+	@Test
+	void mergeMatchesSequentialTraining() {
+		for(int length = 0; length <= 3; length++) {
+			final MarkovChain<Character> sequential = Fixtures.train(new MarkovChain<>(length), Fixtures.NAMES + Fixtures.MORE_NAMES);
+
+			final MarkovChain<Character> merged = Fixtures.train(new MarkovChain<>(length), Fixtures.NAMES);
+			merged.merge(Fixtures.train(new MarkovChain<>(length), Fixtures.MORE_NAMES));
+
+			assertEquals(Fixtures.counts(sequential), Fixtures.counts(merged));
+			assertEquals(sequential.size(), merged.size());
+		}
+	}
+
+	@Test
+	void mergeCombinesSourceFilters() {
+		final MarkovChain<Character> chain = new MarkovChain<>(2);
+		chain.setSourceFilter(new BloomFilter(1000, 0.001));
+		Fixtures.train(chain, Fixtures.NAMES);
+
+		final MarkovChain<Character> other = new MarkovChain<>(2);
+		other.setSourceFilter(new BloomFilter(1000, 0.001));
+		Fixtures.train(other, Fixtures.MORE_NAMES);
+
+		chain.merge(other);
+		assertFalse(chain.isNovel("ANNA"));
+		assertFalse(chain.isNovel("ANNABEL"));
+		assertTrue(chain.isNovel("ZELDA"));
+	}
+
+	@Test
+	void mergeRejectsOtherPredictorLengths() {
+		final MarkovChain<Character> chain = new MarkovChain<>(2);
+		assertThrows(IllegalArgumentException.class, () -> chain.merge(new MarkovChain<>(3)));
+	}
+
+	@Test
+	void removePairForgetsEmptyPredictors() {
+		final MarkovChain<Character> chain = new MarkovChain<>(1);
+		final Predictor<Character> predictor = new Predictor<>('X');
+		chain.addPair(predictor, 'Y');
+		assertEquals(1, chain.size());
+
+		assertTrue(chain.removePair(predictor, 'Y'));
+		assertFalse(chain.removePair(predictor, 'Y'));
+		assertEquals(0, chain.size());
+		assertNull(chain.next(predictor, new SplittableRandom(1)));
+	}
+
+	@Test
+	void generatedSequencesFollowTrainedPairs() {
+		final MarkovChain<Character> chain = Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES);
+		final Map<Predictor<Character>, Map<Character, Integer>> counts = Fixtures.counts(chain);
+		final SplittableRandom rng = new SplittableRandom(7);
+		for(int i = 0; i < 1000; i++) {
+			final List<Character> sequence = chain.generateSequence(20, rng);
+			for(int j = 0; j < sequence.size(); j++) {
+				final Map<Character, Integer> successors = counts.get(Fixtures.predictorFor(sequence.subList(0, j), 2));
+				assertTrue(successors != null && successors.containsKey(sequence.get(j)), () -> "Untrained pair in " + sequence);
+			}
+		}
+	}
+
+}
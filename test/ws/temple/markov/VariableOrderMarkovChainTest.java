@@ -0,0 +1,104 @@
+package ws.temple.markov;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Backing off in a VariableOrderMarkovChain.
+ *
+ * @author Brian Dixon
+ */
+class VariableOrderMarkovChainTest {
+
+	@Test
+	void fullSupportMatchesMarkovChain() {
+		final VariableOrderMarkovChain<Character> chain = Fixtures.train(new VariableOrderMarkovChain<>(2, 1), Fixtures.NAMES);
+		final MarkovChain<Character> plain = Fixtures.train(new MarkovChain<>(2), Fixtures.NAMES);
+
+		/* Every Predictor a MarkovChain knows has the same successors, in the
+		 * same proportions */
+		final SplittableRandom rng = new SplittableRandom(13);
+		for(Map.Entry<Predictor<Character>, Map<Character, Integer>> entry : Fixtures.counts(plain).entrySet()) {
+			int total = 0;
+			for(int count : entry.getValue().values())
+				total += count;
+
+			final int draws = 20000;
+			final Map<Character, Integer> seen = new HashMap<>();
+			for(int i = 0; i < draws; i++)
+				seen.merge(chain.next(entry.getKey(), rng), 1, Integer::sum);
+			assertEquals(entry.getValue().keySet(), seen.keySet());
+			for(Map.Entry<Character, Integer> successor : entry.getValue().entrySet())
+				assertEquals((double) successor.getValue() / total, seen.get(successor.getKey()) / (double) draws, 0.02);
+		}
+	}
+
+	@Test
+	void unseenContextsBackOff() {
+		final VariableOrderMarkovChain<Character> chain = new VariableOrderMarkovChain<>(2, 1);
+		chain.addPair(new Predictor<>('A', 'B'), 'C', 3);
+		chain.addPair(new Predictor<>('X', 'B'), 'D', 1);
+
+		/* Only the last token is known, so the context backs off to it and
+		 * picks between the two longer contexts in proportion */
+		final int draws = 40000;
+		final Map<Character, Integer> seen = new HashMap<>();
+		final SplittableRandom rng = new SplittableRandom(2);
+		for(int i = 0; i < draws; i++)
+			seen.merge(chain.next(new Predictor<>('Q', 'B'), rng), 1, Integer::sum);
+		assertEquals(0.75, seen.get('C') / (double) draws, 0.01);
+		assertEquals(0.25, seen.get('D') / (double) draws, 0.01);
+	}
+
+	@Test
+	void totalsGoPastIntegerRange() {
+		final VariableOrderMarkovChain<Character> chain = new VariableOrderMarkovChain<>(2, 1);
+		final int count = 1500000000;
+		chain.addPair(new Predictor<>('A', 'B'), 'C', count);
+		chain.addPair(new Predictor<>('X', 'B'), 'D', count);
+		chain.addPair(new Predictor<>('Y', 'B'), 'E', count);
+		assertEquals(3L * count, chain.getStats().getPairs());
+
+		/* Sampling the shared context draws across all three */
+		final Map<Character, Integer> seen = new HashMap<>();
+		final SplittableRandom rng = new SplittableRandom(4);
+		for(int i = 0; i < 3000; i++)
+			seen.merge(chain.next(new Predictor<>('Q', 'B'), rng), 1, Integer::sum);
+		assertEquals(List.of('C', 'D', 'E'), seen.keySet().stream().sorted().toList());
+		for(int times : seen.values())
+			assertTrue(times > 800);
+	}
+
+}
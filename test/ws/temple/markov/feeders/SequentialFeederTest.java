@@ -0,0 +1,90 @@
+package ws.temple.markov.feeders;
+
+/*
+ * Copyright (c) 2013, Brian Dixon
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import ws.temple.markov.MarkovChain;
+import ws.temple.util.BloomFilter;
+
+/**
+ * When pairs registered with a SequentialFeeder reach the chain.
+ *
+ * @author Brian Dixon
+ */
+class SequentialFeederTest {
+
+	@Test
+	void pairsAreAddedImmediatelyByDefault() {
+		final MarkovChain<String> chain = new MarkovChain<>(1);
+		final SequentialFeeder<String> feeder = new SequentialFeeder<String>(chain) { };
+		feeder.registerToken("a");
+		assertEquals(1, chain.size());
+		feeder.registerToken("b");
+		assertEquals(2, chain.size());
+		assertEquals(2, feeder.getFlushCount());
+	}
+
+	@Test
+	void batchedPairsWaitForFlush() {
+		final MarkovChain<String> chain = new MarkovChain<>(1);
+		final SequentialFeeder<String> feeder = new SequentialFeeder<String>(chain, 16) { };
+		feeder.registerToken("a").registerToken("b").endPath();
+		assertEquals(0, chain.size());
+
+		feeder.flush();
+		assertEquals(3, chain.size());
+		assertEquals(1, feeder.getFlushCount());
+	}
+
+	@Test
+	void pathsAreRecordedAfterTheirPairs() {
+		/* A chain that checks, as each path is recorded, that every pair of
+		 * the path is already in it */
+		final MarkovChain<String> chain = new MarkovChain<>(1) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void recordPath(long hash) {
+				assertEquals(3, size());
+				super.recordPath(hash);
+			}
+		};
+		chain.setSourceFilter(new BloomFilter(100, 0.01));
+
+		final SequentialFeeder<String> feeder = new SequentialFeeder<String>(chain, 16) { };
+		feeder.registerToken("a").registerToken("b").endPath();
+		assertFalse(chain.isNovel(List.of("a", "b")));
+		assertTrue(chain.isNovel(List.of("b", "a")));
+	}
+
+}